@@ -0,0 +1,48 @@
+package com.android.server.maxpower.chain;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * AdaGrad: rate per coordinate = ALPHA / sqrt(sum of its squared gradients).
+ * Rare A->B features keep a large step; frequent ones settle instead of overshooting.
+ */
+public final class AdaGradOptimizer implements Optimizer {
+    private static final float ALPHA = 0.3f;
+    private static final float EPS = 1e-6f;
+    private static final float L2 = 1e-5f;
+
+    // sparse: only touched coordinates carry state
+    private final HashedWeights mSumSq;
+
+    public AdaGradOptimizer(int dim) {
+        mSumSq = new HashedWeights(dim);
+    }
+
+    @Override
+    public int type() { return TYPE_ADAGRAD; }
+
+    @Override
+    public float step(int k, float w, float g) {
+        float n = mSumSq.get(k) + g * g;
+        mSumSq.set(k, n);
+        float lr = ALPHA / ((float) Math.sqrt(n) + EPS);
+        return w * (1f - lr * L2) - lr * g;
+    }
+
+    @Override
+    public void reset(int k) {
+        mSumSq.set(k, 0f);
+    }
+
+    @Override
+    public void writeState(DataOutputStream out) throws IOException {
+        mSumSq.writeTo(out);
+    }
+
+    @Override
+    public void readState(DataInputStream in) throws IOException {
+        mSumSq.readFrom(in);
+    }
+}
@@ -0,0 +1,221 @@
+package com.android.server.maxpower.chain;
+
+import android.util.AtomicFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allocation regression check for the per-event entry points (GC churn in system_server
+ * costs more than their CPU time).
+ *
+ * Each op runs WARMUP times, then ITERATIONS measured calls; bytes allocated by the calling
+ * thread (com.sun.management.ThreadMXBean) are summed around the call only, minus the
+ * probe's own cost, and the mean is checked against the op's budget below. Exits 1 if any
+ * op is over, or if the launch ops stopped reaching the launcher (a gate refusing every call
+ * would make their numbers meaningless).
+ *
+ * The model and Markov tables are trained through the manager first (A_i -> A_i+1), so the
+ * measured launches pass the (lowered) threshold and run the whole path: cascade, guard, governor,
+ * launch, outcome tracking and lookahead. Power is unconstrained, cooldown 0 and adaptive
+ * thresholds off (launches are never followed by the user, so every pair would back off);
+ * users rotate every LAUNCHES_PER_USER calls to stay within the token buckets.
+ *
+ * Runs on a plain JVM with the framework host stubs (android.util, android.os) on the
+ * classpath. Stand-ins: fixed candidates instead of PackageManager, a CountingLauncher, a
+ * constant top app, model and buffer files in a temp directory. The ArrayMap / ArraySet stubs
+ * must index without allocating, like the framework's, or the governor's target eviction
+ * scan dominates the launch numbers.
+ *
+ *   java -cp <stubs>:<classes> com.android.server.maxpower.chain.AllocationHarness [-v]
+ *
+ * No build step runs this yet (there is no host-side target for these sources); run it by
+ * hand before changing a hot path. Raise a budget only together with the change that needs
+ * it, and say why in its commit.
+ */
+public final class AllocationHarness {
+    private static final int WARMUP = 20_000;
+    private static final int ITERATIONS = 10_000;
+    private static final int USER = 0;
+    private static final int APPS = 40;
+    private static final int TRAIN_ROUNDS = 200;
+    private static final int TRAIN_USER = 999;
+    // below ChainConfig user/target burst, so no launch is refused for budget
+    private static final int LAUNCHES_PER_USER = 50;
+    private static final int BURST = 100;
+    // below what TRAIN_ROUNDS reaches, so launching does not hinge on how far SGD converged
+    private static final float THRESHOLD = 0.3f;
+    // share of launch-op calls that must reach the launcher
+    private static final float MIN_LAUNCH_RATE = 0.9f;
+
+    // committed per-call budgets, bytes (mean over ITERATIONS); worst of three runs + ~15%
+    private static final long BUDGET_ON_LAUNCHER_LAUNCHED = 1600;
+    private static final long BUDGET_ON_TRANSITION = 2304;
+    private static final long BUDGET_INFER_PROBABILITY = 512;
+    private static final long BUDGET_TRAIN = 512;
+    private static final long BUDGET_BUFFER_ON_TRANSITION = 112;
+    private static final long BUDGET_IS_ELIGIBLE_APP = 0;
+
+    /** A measured call; prepare() runs before each call, outside the measurement. */
+    private abstract static class Op {
+        final String name;
+        final long budget;
+        // launches the op is expected to cause per call (checked with MIN_LAUNCH_RATE)
+        final boolean launches;
+        int i;
+
+        Op(String name, long budget) {
+            this(name, budget, false);
+        }
+
+        Op(String name, long budget, boolean launches) {
+            this.name = name;
+            this.budget = budget;
+            this.launches = launches;
+        }
+
+        void prepare() {}
+
+        abstract void run();
+    }
+
+    private static final com.sun.management.ThreadMXBean sThreads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long allocated() {
+        return sThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Mean bytes per call, probe cost subtracted. */
+    private static double measure(Op op, long probeCost) {
+        for (op.i = 0; op.i < WARMUP; op.i++) {
+            op.prepare();
+            op.run();
+        }
+        long total = 0;
+        for (int n = 0; n < ITERATIONS; n++, op.i++) {
+            op.prepare();
+            final long before = allocated();
+            op.run();
+            total += allocated() - before - probeCost;
+        }
+        return Math.max(0, (double) total / ITERATIONS);
+    }
+
+    private static long probeCost() {
+        long min = Long.MAX_VALUE;
+        for (int n = 0; n < 1000; n++) {
+            final long before = allocated();
+            min = Math.min(min, allocated() - before);
+        }
+        return min;
+    }
+
+    public static void main(String[] args) throws IOException {
+        final boolean verbose = args.length > 0 && "-v".equals(args[0]);
+        if (!sThreads.isThreadAllocatedMemorySupported()) {
+            System.err.println("thread allocation accounting not supported by this JVM");
+            System.exit(2);
+        }
+        sThreads.setThreadAllocatedMemoryEnabled(true);
+        final File dir = Files.createTempDirectory("maxpower-alloc").toFile();
+
+        final List<String> apps = new ArrayList<>(APPS);
+        for (int i = 0; i < APPS; i++) apps.add("com.example.app" + i);
+        final String[] pkgs = apps.toArray(new String[0]);
+
+        final CandidateProvider candidates = new CandidateProvider(userId -> apps);
+        final TinyNextAppPredictorLite predictor =
+                new TinyNextAppPredictorLite(new AtomicFile(new File(dir, "model.bin")));
+        final ChainConfig cfg = ChainConfig.DEFAULT.toBuilder()
+                .setThresholdMin(THRESHOLD)
+                .setThreshold(THRESHOLD)
+                .setAdaptiveThreshold(false)
+                .setCooldownMs(0)
+                .setUserBurst(BURST)
+                .setTargetBurst(BURST)
+                .build();
+        final CountingLauncher launcher = new CountingLauncher();
+        final AppChainManager manager = new AppChainManager(candidates, predictor,
+                new ChainGuard(new LaunchGovernor(LaunchGovernor.UNCONSTRAINED)), launcher,
+                userId -> "com.example.launcher", new ChainConfigStore(cfg));
+        final TransitionBufferStore buffer = new TransitionBufferStore(
+                new AtomicFile(new File(dir, "transitions.bin")), 500, Integer.MAX_VALUE,
+                Long.MAX_VALUE);
+
+        // routine A_i -> A_i+1: model, Markov and second-order rows all learn it
+        for (int r = 0; r < TRAIN_ROUNDS; r++) {
+            for (int a = 0; a < APPS; a++) {
+                manager.onLauncherLaunched(pkgs[a], TRAIN_USER);
+                manager.onTransition(pkgs[a], pkgs[(a + 1) % APPS], TRAIN_USER);
+            }
+        }
+        if (verbose) {
+            System.out.println("trained: p(" + pkgs[0] + " -> " + pkgs[1] + ")="
+                    + predictor.inferProbability(pkgs[0], pkgs[1])
+                    + " threshold=" + cfg.threshold);
+        }
+
+        final List<Op> ops = new ArrayList<>();
+        ops.add(new Op("AppChainManager.onLauncherLaunched", BUDGET_ON_LAUNCHER_LAUNCHED, true) {
+            @Override
+            void run() {
+                manager.onLauncherLaunched(pkgs[i % APPS], 1000 + i / LAUNCHES_PER_USER);
+            }
+        });
+        ops.add(new Op("AppChainManager.onTransition", BUDGET_ON_TRANSITION, true) {
+            @Override
+            void prepare() {
+                manager.onLauncherLaunched(pkgs[i % APPS], 100_000 + i / LAUNCHES_PER_USER);
+            }
+
+            @Override
+            void run() {
+                // the chained app comes up: outcome arrival and pre-warm of C
+                manager.onTransition(pkgs[i % APPS], pkgs[(i + 1) % APPS],
+                        100_000 + i / LAUNCHES_PER_USER);
+            }
+        });
+        ops.add(new Op("TinyNextAppPredictorLite.inferProbability", BUDGET_INFER_PROBABILITY) {
+            @Override
+            void run() { predictor.inferProbability(pkgs[i % APPS], pkgs[(i + 3) % APPS]); }
+        });
+        ops.add(new Op("TinyNextAppPredictorLite.train", BUDGET_TRAIN) {
+            @Override
+            void run() { predictor.train(pkgs[i % APPS], pkgs[(i + 5) % APPS], i & 1); }
+        });
+        ops.add(new Op("TransitionBufferStore.onTransition", BUDGET_BUFFER_ON_TRANSITION) {
+            @Override
+            void run() { buffer.onTransition(pkgs[i % APPS], pkgs[(i * 3 + 1) % APPS]); }
+        });
+        ops.add(new Op("CandidateProvider.isEligibleApp", BUDGET_IS_ELIGIBLE_APP) {
+            @Override
+            void run() { candidates.isEligibleApp(pkgs[i % APPS], USER); }
+        });
+
+        final long probe = probeCost();
+        int failed = 0;
+        for (Op op : ops) {
+            final long launchesBefore = launcher.getLaunchCount();
+            final double perCall = measure(op, probe);
+            final boolean over = perCall > op.budget;
+            final float launchRate = (float) (launcher.getLaunchCount() - launchesBefore)
+                    / (WARMUP + ITERATIONS);
+            final boolean idle = op.launches && launchRate < MIN_LAUNCH_RATE;
+            if (over || idle) failed++;
+            if (over || idle || verbose) {
+                System.out.println(String.format("%-45s %8.1f B/call  budget %5d  %s%s",
+                        op.name, perCall, op.budget, over ? "OVER" : "ok",
+                        op.launches ? String.format("  launched %.0f%%%s", 100 * launchRate,
+                                idle ? " (path not exercised)" : "") : ""));
+            }
+        }
+        System.out.println(failed == 0 ? "allocation budgets ok"
+                : failed + " op(s) over allocation budget");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
@@ -1,36 +1,62 @@
 package com.android.server.maxpower.chain;
 
 import android.os.SystemClock;
-import android.util.Slog;
+import android.util.ArraySet;
 
-import java.util.ArrayList;
+import java.io.PrintWriter;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 public final class AppChainManager {
     private static final String TAG = "AppChainManager";
 
-    // Train window: chỉ train khi B mở trong khoảng này sau A launched
-    public static final long WINDOW_MS = 15_000;
-
-    // Trigger threshold: xác suất tối thiểu để auto-open B
-    private static final float THRESHOLD = 0.80f;
-
-    // số app trả về để mở (hoặc bạn chỉ mở 1 cái top-1)
-    private static final int DEFAULT_TOPK = 1;
+    // decision records kept for dumpsys / export (~30 bytes each)
+    private static final int TRACE_CAPACITY = 512;
+    private static final int TRACE_DUMP_MAX = 64;
 
     private final Object mLock = new Object();
 
+    // tuning (threshold, window, top-K, cascade, lookahead, ...): one snapshot per event
+    private final ChainConfigStore mConfig;
+
     private final CandidateProvider mCandidateProvider;
     private final TinyNextAppPredictorLite mPredictor;
     private final ChainGuard mGuard;
-    private final AppLauncher mLauncher;
+    private final ChainLauncher mLauncher;
     private final TopAppChecker mTopChecker;
+    private final MarkovTable mMarkov;
+    private final CascadeRanker mRanker;
+    private final ForegroundDebouncer<Void> mDebouncer;
+    private final ChainOutcomeTracker mOutcomes = new ChainOutcomeTracker();
+    private final PairThresholdController mThresholds = new PairThresholdController();
+    private final PackagePurger mPurger;
+    // optional candidate model fed off the hot path; null = none
+    private volatile ShadowEvaluator mShadow;
+    // host switch for auto-launch; decisions are traced as disabled and learning continues
+    private volatile boolean mLaunchEnabled = true;
+    // cross-process top-K table, refreshed per trained A; null = not published
+    private volatile SharedPredictionTable mPublished;
+    // push subscriptions for other services
+    private final PredictionFeed mFeed = new PredictionFeed();
+    private final LookaheadPredictor mLookahead;
+    // binary decision records; in-memory dictionary until setDecisionTrace() shares one
+    private volatile DecisionTrace mTrace =
+            new DecisionTrace(TRACE_CAPACITY, new PackageDictionary(null));
 
     // pending A launch for "clean training"
     private PendingLaunch mPending;
 
+    // foreground history for second-order context (guarded by mLock)
+    private String mFgPrev;
+    private String mFg;
+    private long mFgSinceUptime;
+
+    // C to pre-warm once the chained B is opened (guarded by mLock)
+    private String mPrewarmB;
+    private String mPrewarmC;
+    private int mPrewarmUserId;
+    private long mPrewarmSetUptime;
+
     static final class PendingLaunch {
         final String pkgA;
         final int userId;
@@ -46,13 +72,112 @@ public final class AppChainManager {
             CandidateProvider candidateProvider,
             TinyNextAppPredictorLite predictor,
             ChainGuard guard,
-            AppLauncher launcher,
+            ChainLauncher launcher,
             TopAppChecker topChecker) {
+        this(candidateProvider, predictor, guard, launcher, topChecker, new ChainConfigStore());
+    }
+
+    /** config: reloadable tuning; dependents are resized in place on every change. */
+    public AppChainManager(
+            CandidateProvider candidateProvider,
+            TinyNextAppPredictorLite predictor,
+            ChainGuard guard,
+            ChainLauncher launcher,
+            TopAppChecker topChecker,
+            ChainConfigStore config) {
         mCandidateProvider = candidateProvider;
         mPredictor = predictor;
         mGuard = guard;
         mLauncher = launcher;
         mTopChecker = topChecker;
+        mConfig = config;
+        final ChainConfig cfg = config.get();
+        mMarkov = new MarkovTable(cfg.markovTopM, cfg.markovDecay);
+        mLookahead = new LookaheadPredictor(mMarkov, cfg.markovDecay);
+        mRanker = new CascadeRanker(mMarkov, predictor, candidateProvider,
+                cfg.candidateTopN, cfg.cascadeBudgetMs);
+        mDebouncer = new ForegroundDebouncer<>(cfg.settleMs, (from, to, userId, unused) -> {
+            if (from != null) onTransition(from, to, userId);
+        });
+        mOutcomes.setListener(mThresholds);
+        mPurger = new PackagePurger(candidateProvider, null);
+        mPurger.addStore("markov", mMarkov, true);
+        mPurger.addStore("markov2", mLookahead.getSecondOrderTable(), false);
+        mPurger.addStore("outcomes", mOutcomes, false);
+        mPurger.addStore("thresholds", mThresholds, false);
+        mPurger.setPredictor(predictor);
+        applyConfig(cfg);
+        config.addListener((old, now) -> applyConfig(now));
+    }
+
+    /** Pushes the sized/tuned parts of cfg into the long-lived collaborators. */
+    private void applyConfig(ChainConfig cfg) {
+        mGuard.setConfig(cfg);
+        mRanker.setLimits(cfg.candidateTopN, cfg.cascadeBudgetMs);
+        mDebouncer.setSettleMs(cfg.settleMs);
+        mMarkov.setTopMPerA(cfg.markovTopM);
+        mMarkov.setDecayPerUpdate(cfg.markovDecay);
+        mLookahead.setDecayPerUpdate(cfg.markovDecay);
+        mPredictor.setSgdRates(cfg.lr, cfg.l2);
+        mPredictor.setOptimizer(cfg.optimizer);
+        mDebouncer.setTrampolinePackages(cfg.trampolinePackages());
+    }
+
+    /**
+     * Whether onLauncherLaunched() may open B. Off: nothing launches (as with cfg.enable off)
+     * while training, persistence and published predictions go on.
+     */
+    public void setLaunchEnabled(boolean enabled) {
+        mLaunchEnabled = enabled;
+    }
+
+    /** Replaces the trace, e.g. with one on the persisted PackageDictionary. */
+    public void setDecisionTrace(DecisionTrace trace) {
+        mTrace = trace;
+    }
+
+    /** Hosts a shadow model (null removes it); the previous one is closed. */
+    public void setShadow(ShadowEvaluator shadow) {
+        final ShadowEvaluator old;
+        synchronized (mLock) {
+            old = mShadow;
+            mShadow = shadow;
+        }
+        if (old != null && old != shadow) old.close();
+    }
+
+    /** Publishes each trained A's ranked successors into table (null stops it). */
+    public void setSharedTable(SharedPredictionTable table) {
+        mPublished = table;
+    }
+
+    /** Subscriptions to every new top-1 prediction per (user, A). */
+    public PredictionFeed getPredictionFeed() {
+        return mFeed;
+    }
+
+    public DecisionTrace getDecisionTrace() {
+        return mTrace;
+    }
+
+    public ChainConfigStore getConfigStore() {
+        return mConfig;
+    }
+
+    /**
+     * Raw foreground change (every activity switch). Bursts are collapsed and only the
+     * settled A -> B reaches onTransition(); see ForegroundDebouncer.
+     */
+    public void onForegroundChanged(String topPkg, int userId) {
+        mDebouncer.onForegroundChanged(topPkg, userId, null);
+    }
+
+    /**
+     * Packages never treated as a foreground destination (splash/resolver/permission UIs).
+     * Normally set from ChainConfig.KEY_TRAMPOLINES; the next config change replaces these.
+     */
+    public void setTrampolinePackages(ArraySet<String> pkgs) {
+        mDebouncer.setTrampolinePackages(pkgs);
     }
 
     /**
@@ -60,8 +185,22 @@ public final class AppChainManager {
      * Purpose: predict and auto-open B.
      */
     public void onLauncherLaunched(String pkgA, int userId) {
+        if (pkgA == null) return;
+        String lastPkg;
+        synchronized (mLock) {
+            lastPkg = pkgA.equals(mFg) ? mFgPrev : mFg;
+        }
+        onLauncherLaunched(pkgA, lastPkg, userId);
+    }
+
+    /**
+     * lastPkg: foreground app before A, may be null. When the (lastPkg, A) second-order row
+     * exists its P(B | lastPkg, A) is blended into the LR scores (cfg.contextWeight).
+     */
+    public void onLauncherLaunched(String pkgA, String lastPkg, int userId) {
         if (pkgA == null) return;
         final long now = SystemClock.uptimeMillis();
+        final ChainConfig cfg = mConfig.get();
 
         // 1) set pending for clean training later
         synchronized (mLock) {
@@ -69,39 +208,92 @@ public final class AppChainManager {
         }
 
         // 2) predict best B and open it
+        final DecisionTrace trace = mTrace;
+        if (!cfg.enable || !mLaunchEnabled) {
+            trace.record(userId, pkgA, null, 0f, cfg.threshold,
+                    DecisionTrace.VERDICT_DISABLED, DecisionTrace.ACTION_NONE);
+            return;
+        }
         List<String> candidates = mCandidateProvider.getCandidates(userId);
         if (candidates.isEmpty()) return;
 
-        List<Prediction> best = predictTopK(pkgA, candidates, DEFAULT_TOPK);
+        String launched = null;
+        List<Prediction> best = mLookahead.withContext(lastPkg, pkgA,
+                mRanker.rank(pkgA, userId, candidates, cfg.topK), cfg.contextWeight);
+        publishTop1(userId, pkgA, best);
         for (int i = 0; i < best.size(); i++) {
             String pkgB = best.get(i).pkg;
             float score = best.get(i).score;
 
-            if (score < THRESHOLD) continue;
-            if (!mGuard.allowChain(pkgA, pkgB, now)) continue;
-
-            // Check B is not already top
-            String top = mTopChecker.getTopPackage(userId);
-            if (pkgB.equals(top)) {
-                Slog.d(TAG, "Skip launch; B already top. B=" + pkgB);
+            // stage-1 fallback: frequencies, not comparable to the thresholds
+            if (!best.get(i).calibrated) {
+                trace.record(userId, pkgA, pkgB, score, cfg.threshold,
+                        DecisionTrace.VERDICT_UNCALIBRATED, DecisionTrace.ACTION_NONE);
+                break;
+            }
+            // per-pair threshold from observed precision; BLOCKED while backed off
+            float threshold = mThresholds.thresholdFor(pkgA, pkgB, cfg, now);
+            if (score < threshold) {
+                trace.record(userId, pkgA, pkgB, score, threshold,
+                        threshold == PairThresholdController.BLOCKED
+                                ? DecisionTrace.VERDICT_BACKOFF
+                                : DecisionTrace.VERDICT_BELOW_THRESHOLD,
+                        DecisionTrace.ACTION_NONE);
+                continue;
+            }
+            byte verdict = mGuard.check(pkgA, pkgB, userId, now);
+            if (verdict == DecisionTrace.VERDICT_ALLOWED
+                    && pkgB.equals(mTopChecker.getTopPackage(userId))) {
+                verdict = DecisionTrace.VERDICT_ALREADY_TOP;
+            }
+            if (verdict != DecisionTrace.VERDICT_ALLOWED) {
+                trace.record(userId, pkgA, pkgB, score, threshold, verdict,
+                        DecisionTrace.ACTION_NONE);
                 continue;
             }
 
             // Launch B (startActivity) (you can change to "unsuspend only" if needed)
             mLauncher.launch(pkgB, userId);
+            trace.record(userId, pkgA, pkgB, score, threshold,
+                    DecisionTrace.VERDICT_ALLOWED, DecisionTrace.ACTION_LAUNCH);
+
+            launched = pkgB;
+            mGuard.onChained(pkgA, pkgB, userId, now);
+            mOutcomes.onChainLaunched(pkgA, pkgB, userId, now);
 
-            mGuard.onChained(pkgA, pkgB, now);
+            // look one hop further: pre-warm C when B actually comes up
+            LookaheadPredictor.Path path = mLookahead.nextHop(pkgA, pkgB, score);
+            if (path.c != null && path.joint >= cfg.prewarmMinJoint
+                    && mCandidateProvider.isEligibleApp(path.c, userId)) {
+                synchronized (mLock) {
+                    mPrewarmB = pkgB;
+                    mPrewarmC = path.c;
+                    mPrewarmUserId = userId;
+                    mPrewarmSetUptime = now;
+                }
+            }
             break; // only launch top-1 by default
         }
+
+        final ShadowEvaluator shadow = mShadow;
+        if (shadow != null) shadow.onLaunch(pkgA, userId, candidates, launched, now);
     }
 
     /**
-     * Call when foreground app transitions A -> B.
-     * Purpose: clean training if within WINDOW_MS of last launcher launch A.
+     * Call when foreground app transitions A -> B (already settled; raw events should go
+     * through onForegroundChanged()).
+     * Purpose: clean training if within windowMs of last launcher launch A.
      */
     public void onTransition(String fromPkgA, String toPkgB, int userId) {
         if (fromPkgA == null || toPkgB == null) return;
         final long now = SystemClock.uptimeMillis();
+        final long windowMs = mConfig.get().windowMs;
+
+        // every transition counts for outcome accounting, not only clean training pairs
+        mOutcomes.onTransition(fromPkgA, toPkgB, userId, now);
+        final ShadowEvaluator shadow = mShadow;
+        if (shadow != null) shadow.onTransition(fromPkgA, toPkgB, userId, now);
+        onForegroundHop(fromPkgA, toPkgB, userId, now, windowMs);
 
         // Only train if matches pending launcher launch and within window
         PendingLaunch p;
@@ -110,47 +302,186 @@ public final class AppChainManager {
         if (p == null) return;
         if (p.userId != userId) return;
         if (!fromPkgA.equals(p.pkgA)) return;
-        if (now - p.t0Uptime > WINDOW_MS) return;
+        if (now - p.t0Uptime > windowMs) return;
         if (fromPkgA.equals(toPkgB)) return;
 
         // Filter to launcher/non-system pairs for clean data
         if (!mCandidateProvider.isEligibleApp(fromPkgA, userId)) return;
         if (!mCandidateProvider.isEligibleApp(toPkgB, userId)) return;
 
+        mMarkov.onTransition(fromPkgA, toPkgB);
+
         // Train: positive + negative sampling
+        final List<String> negs;
         synchronized (mLock) {
             mPredictor.train(fromPkgA, toPkgB, 1);
 
-            List<String> negs = mCandidateProvider.sampleNegatives(userId, fromPkgA, toPkgB, 3);
+            negs = mCandidateProvider.sampleNegatives(userId, fromPkgA, toPkgB, 3);
             for (int i = 0; i < negs.size(); i++) {
                 mPredictor.train(fromPkgA, negs.get(i), 0);
             }
-            mPredictor.maybeSave();
+        }
+        if (shadow != null) shadow.onTrain(fromPkgA, toPkgB, negs);
+        publish(fromPkgA, userId);
+        // outside mLock: only schedules a write-behind checkpoint when attached to a worker
+        mPredictor.maybeSave();
+    }
+
+    /** Re-ranks A after its model update for the shared table and subscribers. */
+    private void publish(String pkgA, int userId) {
+        final SharedPredictionTable table = mPublished;
+        if (table == null && !mFeed.hasSubscribers()) return;
+        List<String> candidates = mCandidateProvider.getCandidates(userId);
+        if (candidates.isEmpty()) return;
+        List<Prediction> best = mRanker.rank(pkgA, userId, candidates,
+                table != null ? table.k() : 1);
+        // a stage-1 fallback keeps the last published (LR) ranking
+        if (!best.isEmpty() && !best.get(0).calibrated) return;
+        publishTop1(userId, pkgA, best);
+        if (table == null) return;
+        final int n = best.size();
+        final String[] pkgs = new String[n];
+        final float[] scores = new float[n];
+        for (int i = 0; i < n; i++) {
+            pkgs[i] = best.get(i).pkg;
+            scores[i] = best.get(i).score;
+        }
+        table.publish(userId, pkgA, pkgs, scores, n);
+    }
+
+    /** Feed update for A; only LR probabilities are published (stage-1 is skipped). */
+    private void publishTop1(int userId, String pkgA, List<Prediction> best) {
+        if (best.isEmpty()) {
+            mFeed.publish(userId, pkgA, null, 0f);
+        } else if (best.get(0).calibrated) {
+            mFeed.publish(userId, pkgA, best.get(0).pkg, best.get(0).score);
+        }
+    }
+
+    /**
+     * Every hop: pre-warm a pending C, and learn the second-order X -> A -> B when A was
+     * left within windowMs (a routine, not two unrelated sessions).
+     */
+    private void onForegroundHop(String fromPkgA, String toPkgB, int userId, long now,
+            long windowMs) {
+        String prev = null;
+        String prewarm = null;
+        synchronized (mLock) {
+            if (fromPkgA.equals(mFg) && now - mFgSinceUptime <= windowMs) prev = mFgPrev;
+            mFgPrev = fromPkgA;
+            mFg = toPkgB;
+            mFgSinceUptime = now;
+
+            if (mPrewarmC != null && now - mPrewarmSetUptime > windowMs) {
+                mPrewarmB = null;
+                mPrewarmC = null;
+            }
+            if (mPrewarmC != null && toPkgB.equals(mPrewarmB) && userId == mPrewarmUserId) {
+                prewarm = mPrewarmC;
+                mPrewarmB = null;
+                mPrewarmC = null;
+            }
+        }
+        if (prewarm != null) {
+            mLauncher.prewarm(prewarm, userId);
+            mTrace.record(userId, toPkgB, prewarm, 0f, 0f, DecisionTrace.VERDICT_ALLOWED,
+                    DecisionTrace.ACTION_PREWARM);
+        }
+
+        if (prev != null
+                && mCandidateProvider.isEligibleApp(prev, userId)
+                && mCandidateProvider.isEligibleApp(fromPkgA, userId)
+                && mCandidateProvider.isEligibleApp(toPkgB, userId)) {
+            mLookahead.onTransition(prev, fromPkgA, toPkgB);
         }
     }
 
+    /**
+     * Ranked depth-2 paths A -> B -> C with joint probabilities, best first.
+     * lastPkg: foreground app before A, may be null.
+     */
+    public List<LookaheadPredictor.Path> predictPaths(String pkgA, String lastPkg, int userId,
+            int k) {
+        if (pkgA == null) return Collections.emptyList();
+        List<String> candidates = mCandidateProvider.getCandidates(userId);
+        if (candidates.isEmpty()) return Collections.emptyList();
+        List<Prediction> firstHop = mRanker.rank(pkgA, userId, candidates,
+                mConfig.get().pathBranch);
+        return mLookahead.predictPaths(lastPkg, pkgA, firstHop, k);
+    }
+
+    /** Nothing learned yet: first run of the feature or a reset model. */
+    public boolean needsBootstrap() {
+        return mPredictor.getUpdateCount() == 0 && mMarkov.size() == 0;
+    }
+
+    /**
+     * Seeds the model and Markov store from historical foreground events (see
+     * ColdStartBootstrap). Blocking; call from a background thread after restore.
+     */
+    public ColdStartBootstrap.Result bootstrap(ColdStartBootstrap.EventSource source,
+            int userId, long budgetMs) {
+        return new ColdStartBootstrap(mPredictor, mMarkov, mCandidateProvider)
+                .run(source, userId, mConfig.get(), budgetMs);
+    }
+
+    /** For persistence wiring (MarkovTable.attachTo, section "markov2"). */
+    public MarkovTable getSecondOrderMarkovTable() {
+        return mLookahead.getSecondOrderTable();
+    }
+
+    /** For persistence wiring (MarkovTable.attachTo). */
+    public MarkovTable getMarkovTable() {
+        return mMarkov;
+    }
+
+    /**
+     * Uninstall/disable purge. Wiring registers it for package broadcasts and adds stores it
+     * owns (e.g. TransitionBufferStore) with addStore().
+     */
+    public PackagePurger getPackagePurger() {
+        return mPurger;
+    }
+
+    /** Per-pair hit/miss/abandon stats of past chain launches (for gating). */
+    public ChainOutcomeTracker getOutcomeTracker() {
+        return mOutcomes;
+    }
+
     // ---------------- predictions ----------------
 
     static final class Prediction {
         final String pkg;
         final float score;
+        // false: stage-1 Markov frequency, not an LR probability (never launched)
+        final boolean calibrated;
         Prediction(String pkg, float score) {
+            this(pkg, score, true);
+        }
+        Prediction(String pkg, float score, boolean calibrated) {
             this.pkg = pkg;
             this.score = score;
+            this.calibrated = calibrated;
         }
     }
 
-    private List<Prediction> predictTopK(String pkgA, List<String> candidates, int k) {
-        ArrayList<Prediction> scored = new ArrayList<>(candidates.size());
-        for (int i = 0; i < candidates.size(); i++) {
-            String b = candidates.get(i);
-            if (pkgA.equals(b)) continue;
-            float p = mPredictor.inferProbability(pkgA, b);
-            scored.add(new Prediction(b, p));
-        }
-        Collections.sort(scored, (o1, o2) -> Float.compare(o2.score, o1.score));
-
-        if (scored.size() <= k) return scored;
-        return scored.subList(0, k);
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "AppChainManager: markovRows=" + mMarkov.size()
+                + " markov2Rows=" + mLookahead.getSecondOrderTable().size());
+        mConfig.dump(pw, prefix + "  ");
+        mDebouncer.dump(pw, prefix + "  ");
+        mRanker.dump(pw, prefix + "  ");
+        final long now = SystemClock.uptimeMillis();
+        mOutcomes.expire(now);
+        mOutcomes.dump(pw, prefix + "  ");
+        mThresholds.dump(pw, prefix + "  ", now);
+        mGuard.dump(pw, prefix + "  ", now);
+        mPurger.dump(pw, prefix + "  ");
+        final ShadowEvaluator shadow = mShadow;
+        if (shadow != null) shadow.dump(pw, prefix + "  ");
+        final SharedPredictionTable table = mPublished;
+        if (table != null) table.dump(pw, prefix + "  ");
+        mFeed.dump(pw, prefix + "  ");
+        mTrace.dump(pw, prefix + "  ", TRACE_DUMP_MAX);
     }
 }
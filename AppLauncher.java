@@ -3,20 +3,52 @@ package com.android.server.maxpower.chain;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.os.UserHandle;
 import android.util.Slog;
 
-public final class AppLauncher {
+public final class AppLauncher implements ChainLauncher {
     private static final String TAG = "AppLauncher";
 
     private final Context mContext;
     private final PackageManager mPm;
 
+    // background-priority thread for pre-warm work; created on first use
+    private Handler mPrewarmHandler;
+
     public AppLauncher(Context context) {
         mContext = context;
         mPm = context.getPackageManager();
     }
 
+    /**
+     * Low-priority preparation of a likely next launch (lookahead C): resolves the launch
+     * activity off the caller's thread so the real launch hits warm package caches.
+     * Unsuspend-ahead for MaxPower belongs here as well.
+     */
+    @Override
+    public void prewarm(String pkg, int userId) {
+        Handler h;
+        synchronized (this) {
+            if (mPrewarmHandler == null) {
+                HandlerThread t = new HandlerThread("maxpower-prewarm",
+                        Process.THREAD_PRIORITY_BACKGROUND);
+                t.start();
+                mPrewarmHandler = new Handler(t.getLooper());
+            }
+            h = mPrewarmHandler;
+        }
+        h.post(() -> {
+            Intent launch = mPm.getLaunchIntentForPackage(pkg);
+            if (launch == null) return;
+            mPm.queryIntentActivitiesAsUser(launch, PackageManager.MATCH_DEFAULT_ONLY, userId);
+            Slog.d(TAG, "Prewarmed " + pkg);
+        });
+    }
+
+    @Override
     public void launch(String pkg, int userId) {
         Intent launch = mPm.getLaunchIntentForPackage(pkg);
         if (launch == null) {
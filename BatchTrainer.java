@@ -36,17 +36,20 @@ public final class BatchTrainer {
             if (c <= 0) continue;
 
             String[] ab = TransitionBufferStore.splitKey(key);
-            String a = ab[0];
-            String b = ab[1];
+            trainPair(ab[0], ab[1], c, cand);
+        }
+    }
 
-            // positive weighted
-            mModel.train(a, b, 1, c);
+    /** One (A,B)xcount positive plus light negative sampling from cand. */
+    public void trainPair(String a, String b, int count, List<String> cand) {
+        // positive weighted
+        mModel.train(a, b, 1, count);
 
-            // negative sampling (light)
-            for (int s = 0; s < mNegSamples; s++) {
-                String neg = sampleNeg(cand, a, b);
-                if (neg != null) mModel.train(a, neg, 0, 1);
-            }
+        // negative sampling (light)
+        if (cand.isEmpty()) return;
+        for (int s = 0; s < mNegSamples; s++) {
+            String neg = sampleNeg(cand, a, b);
+            if (neg != null) mModel.train(a, neg, 0, 1);
         }
     }
 
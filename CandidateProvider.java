@@ -20,8 +20,12 @@ import java.util.Random;
 public final class CandidateProvider {
     private static final String TAG = "CandidateProvider";
 
-    private final Context mContext;
-    private final PackageManager mPm;
+    /** Uncached candidate query for one user; runs on a cache miss. */
+    public interface Source {
+        List<String> query(int userId);
+    }
+
+    private final Source mSource;
     private final Random mRand = new Random();
 
     private final Object mLock = new Object();
@@ -29,8 +33,12 @@ public final class CandidateProvider {
     private final ArrayMap<Integer, ArraySet<String>> mCacheSetByUser = new ArrayMap<>();
 
     public CandidateProvider(Context context) {
-        mContext = context;
-        mPm = context.getPackageManager();
+        this(launcherNonSystem(context.getPackageManager()));
+    }
+
+    /** source: e.g. a fixed list in host-side tools. */
+    public CandidateProvider(Source source) {
+        mSource = source;
     }
 
     public List<String> getCandidates(int userId) {
@@ -39,7 +47,7 @@ public final class CandidateProvider {
             if (cached != null) return cached;
         }
 
-        List<String> fresh = queryLauncherNonSystem(userId);
+        List<String> fresh = mSource.query(userId);
 
         synchronized (mLock) {
             mCacheByUser.put(userId, fresh);
@@ -57,6 +65,29 @@ public final class CandidateProvider {
         }
     }
 
+    /** Drops pkg from the user's cached candidates without re-querying PackageManager. */
+    public void onPackageRemoved(String pkg, int userId) {
+        synchronized (mLock) {
+            ArraySet<String> set = mCacheSetByUser.get(userId);
+            if (set == null || !set.contains(pkg)) return;
+            // copy-on-write: callers may still iterate the old list
+            ArrayList<String> list = new ArrayList<>(mCacheByUser.get(userId));
+            list.remove(pkg);
+            ArraySet<String> newSet = new ArraySet<>(set);
+            newSet.remove(pkg);
+            mCacheByUser.put(userId, list);
+            mCacheSetByUser.put(userId, newSet);
+        }
+    }
+
+    /** From the cache only: false if the user's cached candidates lack pkg, true if no cache. */
+    public boolean mayBeEligible(String pkg, int userId) {
+        synchronized (mLock) {
+            ArraySet<String> set = mCacheSetByUser.get(userId);
+            return set == null || set.contains(pkg);
+        }
+    }
+
     public boolean isEligibleApp(String pkg, int userId) {
         if (pkg == null) return false;
         ArraySet<String> set;
@@ -86,11 +117,16 @@ public final class CandidateProvider {
         return out;
     }
 
-    private List<String> queryLauncherNonSystem(int userId) {
+    /** Launcher activities of non-system packages. */
+    public static Source launcherNonSystem(PackageManager pm) {
+        return userId -> queryLauncherNonSystem(pm, userId);
+    }
+
+    private static List<String> queryLauncherNonSystem(PackageManager pm, int userId) {
         Intent i = new Intent(Intent.ACTION_MAIN);
         i.addCategory(Intent.CATEGORY_LAUNCHER);
 
-        List<ResolveInfo> ris = mPm.queryIntentActivitiesAsUser(
+        List<ResolveInfo> ris = pm.queryIntentActivitiesAsUser(
                 i, PackageManager.MATCH_DEFAULT_ONLY, userId);
 
         ArraySet<String> pkgs = new ArraySet<>();
@@ -0,0 +1,168 @@
+package com.android.server.maxpower.chain;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Two-stage ranking under a per-request latency budget.
+ *
+ * Stage 1: MarkovTable top-N successors of A (cheap, bounded by candidateTopN).
+ * Stage 2: LR rerank of those N only.
+ *
+ * Stage-1 order is served instead when the rerank would not fit the budget (estimated from
+ * measured per-infer cost, re-checked while scoring) or the model is being rebuilt. Those
+ * scores are Markov row frequencies, not LR probabilities, so they come back with
+ * Prediction.calibrated false and must not be compared to the launch thresholds.
+ * With no Markov history for A (cold), LR scores all candidates; if that misses the budget
+ * nothing is served.
+ */
+public final class CascadeRanker {
+    private static final float EWMA_ALPHA = 0.1f;
+    // re-check the deadline every N inferences
+    private static final int DEADLINE_CHECK_EVERY = 4;
+
+    private final MarkovTable mMarkov;
+    private final TinyNextAppPredictorLite mPredictor;
+    private final CandidateProvider mCandidates;
+    private volatile int mCandidateTopN;
+    private volatile long mBudgetNanos;
+
+    private final Object mStatsLock = new Object();
+    private long mRequests;
+    private long mServedRerank;
+    private long mServedStage1Budget;
+    private long mServedStage1Rebuilding;
+    private long mServedColdRerank;
+    private long mServedNone;
+    private float mInferNanosEwma = 2_000f; // prior until measured
+    private float mStage1NanosEwma;
+    private float mRerankNanosEwma;
+    private long mStage1NanosMax;
+    private long mRerankNanosMax;
+
+    public CascadeRanker(MarkovTable markov, TinyNextAppPredictorLite predictor,
+            CandidateProvider candidates, int candidateTopN, long budgetMs) {
+        mMarkov = markov;
+        mPredictor = predictor;
+        mCandidates = candidates;
+        mCandidateTopN = candidateTopN;
+        mBudgetNanos = budgetMs * 1_000_000L;
+    }
+
+    /** Config reload; takes effect from the next rank(). */
+    public void setLimits(int candidateTopN, long budgetMs) {
+        mCandidateTopN = candidateTopN;
+        mBudgetNanos = budgetMs * 1_000_000L;
+    }
+
+    /** Ranked predictions for A, best first, at most k. */
+    public List<AppChainManager.Prediction> rank(String pkgA, int userId,
+            List<String> candidates, int k) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        final long deadline = start + mBudgetNanos;
+        final int topN = mCandidateTopN;
+
+        // ---- stage 1 ----
+        String[] pkgs = new String[topN];
+        float[] probs = new float[topN];
+        int n = mMarkov.topN(pkgA, topN, pkgs, probs);
+        int kept = 0;
+        for (int i = 0; i < n; i++) {
+            if (pkgA.equals(pkgs[i]) || !mCandidates.isEligibleApp(pkgs[i], userId)) continue;
+            pkgs[kept] = pkgs[i];
+            probs[kept] = probs[i];
+            kept++;
+        }
+        n = kept;
+        final long stage1Done = SystemClock.elapsedRealtimeNanos();
+
+        final float inferNanos;
+        synchronized (mStatsLock) {
+            mRequests++;
+            inferNanos = mInferNanosEwma;
+        }
+        final boolean cold = n == 0;
+        final int toScore = cold ? candidates.size() : n;
+
+        // ---- stage 2 gate ----
+        if (mPredictor.isRebuilding()) {
+            return serveStage1(pkgs, probs, n, k, stage1Done - start, STAGE1_REBUILDING);
+        }
+        if (stage1Done + (long) (toScore * inferNanos) > deadline) {
+            return serveStage1(pkgs, probs, n, k, stage1Done - start, STAGE1_BUDGET);
+        }
+
+        // ---- stage 2 ----
+        ArrayList<AppChainManager.Prediction> scored = new ArrayList<>(toScore);
+        for (int i = 0; i < toScore; i++) {
+            if (i > 0 && i % DEADLINE_CHECK_EVERY == 0
+                    && SystemClock.elapsedRealtimeNanos() > deadline) {
+                return serveStage1(pkgs, probs, n, k, stage1Done - start, STAGE1_BUDGET);
+            }
+            String b = cold ? candidates.get(i) : pkgs[i];
+            if (pkgA.equals(b)) continue;
+            scored.add(new AppChainManager.Prediction(b, mPredictor.inferProbability(pkgA, b)));
+        }
+        Collections.sort(scored, (o1, o2) -> Float.compare(o2.score, o1.score));
+        final long end = SystemClock.elapsedRealtimeNanos();
+
+        synchronized (mStatsLock) {
+            if (cold) mServedColdRerank++;
+            else mServedRerank++;
+            recordStage1Locked(stage1Done - start);
+            long rerank = end - stage1Done;
+            mRerankNanosEwma += EWMA_ALPHA * (rerank - mRerankNanosEwma);
+            if (rerank > mRerankNanosMax) mRerankNanosMax = rerank;
+            if (toScore > 0) mInferNanosEwma += EWMA_ALPHA * ((float) rerank / toScore - mInferNanosEwma);
+        }
+        if (scored.size() <= k) return scored;
+        return scored.subList(0, k);
+    }
+
+    private static final int STAGE1_BUDGET = 0;
+    private static final int STAGE1_REBUILDING = 1;
+
+    private List<AppChainManager.Prediction> serveStage1(String[] pkgs, float[] probs, int n,
+            int k, long stage1Nanos, int reason) {
+        synchronized (mStatsLock) {
+            recordStage1Locked(stage1Nanos);
+            if (n == 0) mServedNone++;
+            else if (reason == STAGE1_REBUILDING) mServedStage1Rebuilding++;
+            else mServedStage1Budget++;
+        }
+        int count = Math.min(n, k);
+        ArrayList<AppChainManager.Prediction> out = new ArrayList<>(count);
+        // topN() already sorted by Markov probability
+        for (int i = 0; i < count; i++) {
+            out.add(new AppChainManager.Prediction(pkgs[i], probs[i], false));
+        }
+        return out;
+    }
+
+    private void recordStage1Locked(long nanos) {
+        mStage1NanosEwma += EWMA_ALPHA * (nanos - mStage1NanosEwma);
+        if (nanos > mStage1NanosMax) mStage1NanosMax = nanos;
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mStatsLock) {
+            pw.println(prefix + "CascadeRanker: topN=" + mCandidateTopN
+                    + " budgetUs=" + (mBudgetNanos / 1000));
+            pw.println(prefix + "  requests=" + mRequests
+                    + " rerank=" + mServedRerank
+                    + " coldRerank=" + mServedColdRerank
+                    + " stage1Budget=" + mServedStage1Budget
+                    + " stage1Rebuilding=" + mServedStage1Rebuilding
+                    + " none=" + mServedNone);
+            pw.println(prefix + "  stage1Us avg=" + (long) (mStage1NanosEwma / 1000)
+                    + " max=" + (mStage1NanosMax / 1000)
+                    + " rerankUs avg=" + (long) (mRerankNanosEwma / 1000)
+                    + " max=" + (mRerankNanosMax / 1000)
+                    + " inferNs=" + (long) mInferNanosEwma);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.android.server.maxpower.chain;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+
+import java.io.PrintWriter;
+
+/**
+ * Runs delayed chain actions (e.g. "open B 400ms after A resumed") on its own thread
+ * instead of the system_server main looper.
+ *
+ * - One pending action per (userId, A, B): scheduling the same action again is coalesced.
+ * - Pending actions of a user are cancelled when that user's foreground leaves A.
+ */
+public final class ChainActionScheduler {
+    private static final String TAG = "ChainActionScheduler";
+
+    // fired later than due + slop => counted as late
+    private static final long LATE_SLOP_MS = 100;
+
+    private final Handler mHandler;
+
+    private final Object mLock = new Object();
+    // key="userId\0A\0B" -> pending action
+    private final ArrayMap<String, Handle> mPending = new ArrayMap<>();
+
+    // metrics (guarded by mLock)
+    private long mQueued;
+    private long mCoalesced;
+    private long mFired;
+    private long mCancelled;
+    private long mLate;
+    private long mMaxLateMs;
+
+    /** Cancellable handle of one pending action. */
+    public static final class Handle {
+        final String key;
+        final String pkgA;
+        final String pkgB;
+        final int userId;
+        final long dueUptime;
+        final Runnable action;
+
+        Handle(String key, String pkgA, String pkgB, int userId, long dueUptime, Runnable action) {
+            this.key = key;
+            this.pkgA = pkgA;
+            this.pkgB = pkgB;
+            this.userId = userId;
+            this.dueUptime = dueUptime;
+            this.action = action;
+        }
+    }
+
+    public ChainActionScheduler() {
+        this(startThread().getLooper());
+    }
+
+    public ChainActionScheduler(Looper looper) {
+        mHandler = new Handler(looper);
+    }
+
+    private static HandlerThread startThread() {
+        HandlerThread t = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Schedule action to run after delayMs. If the same (userId, A, B) is already pending,
+     * the existing handle is returned and its due time is kept.
+     */
+    public Handle schedule(String pkgA, String pkgB, int userId, long delayMs, Runnable action) {
+        if (pkgA == null || pkgB == null || action == null) return null;
+        final String key = makeKey(userId, pkgA, pkgB);
+        final Handle h;
+        synchronized (mLock) {
+            Handle cur = mPending.get(key);
+            if (cur != null) {
+                mCoalesced++;
+                return cur;
+            }
+            h = new Handle(key, pkgA, pkgB, userId,
+                    SystemClock.uptimeMillis() + Math.max(0, delayMs), action);
+            mPending.put(key, h);
+            mQueued++;
+        }
+        mHandler.postAtTime(() -> fire(h), h, h.dueUptime);
+        return h;
+    }
+
+    /** Returns true if the action was still pending and is now cancelled. */
+    public boolean cancel(Handle h) {
+        if (h == null) return false;
+        synchronized (mLock) {
+            if (mPending.get(h.key) != h) return false;
+            mPending.remove(h.key);
+            mCancelled++;
+        }
+        mHandler.removeCallbacksAndMessages(h);
+        return true;
+    }
+
+    /** Foreground of userId is now topPkg: drop pending actions whose A is no longer top. */
+    public void onForegroundChanged(String topPkg, int userId) {
+        synchronized (mLock) {
+            for (int i = mPending.size() - 1; i >= 0; i--) {
+                Handle h = mPending.valueAt(i);
+                if (h.userId != userId) continue;
+                if (h.pkgA.equals(topPkg)) continue;
+                mPending.removeAt(i);
+                mCancelled++;
+                mHandler.removeCallbacksAndMessages(h);
+            }
+        }
+    }
+
+    public void cancelAll() {
+        synchronized (mLock) {
+            for (int i = 0; i < mPending.size(); i++) {
+                mHandler.removeCallbacksAndMessages(mPending.valueAt(i));
+            }
+            mCancelled += mPending.size();
+            mPending.clear();
+        }
+    }
+
+    public int getPendingCount() {
+        synchronized (mLock) { return mPending.size(); }
+    }
+
+    private void fire(Handle h) {
+        final long now = SystemClock.uptimeMillis();
+        synchronized (mLock) {
+            // cancelled (or replaced) after being posted
+            if (mPending.get(h.key) != h) return;
+            mPending.remove(h.key);
+            mFired++;
+            long lateMs = now - h.dueUptime;
+            if (lateMs > LATE_SLOP_MS) mLate++;
+            if (lateMs > mMaxLateMs) mMaxLateMs = lateMs;
+        }
+        h.action.run();
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.println(prefix + "ChainActionScheduler:");
+            pw.println(prefix + "  pending=" + mPending.size()
+                    + " queued=" + mQueued
+                    + " coalesced=" + mCoalesced
+                    + " fired=" + mFired
+                    + " cancelled=" + mCancelled
+                    + " late=" + mLate
+                    + " maxLateMs=" + mMaxLateMs);
+            for (int i = 0; i < mPending.size(); i++) {
+                Handle h = mPending.valueAt(i);
+                pw.println(prefix + "  u" + h.userId + " " + h.pkgA + " -> " + h.pkgB
+                        + " due=" + h.dueUptime);
+            }
+        }
+    }
+
+    private static String makeKey(int userId, String a, String b) {
+        return userId + "\0" + a + "\0" + b;
+    }
+}
@@ -0,0 +1,375 @@
+package com.android.server.maxpower.chain;
+
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Slog;
+
+/**
+ * Immutable, validated tuning snapshot for the chain engine.
+ *
+ * Published through ChainConfigStore; hot paths read the current instance once per event and
+ * use it for the whole decision. Textual form is "key=value" pairs separated by ',' or
+ * newlines (settings string or a local file). Keys not given keep their defaults. List values
+ * are separated by ':' ("trampolines=android:com.android.permissioncontroller").
+ */
+public final class ChainConfig {
+    private static final String TAG = "ChainConfig";
+
+    public static final String KEY_ENABLE = "enable";
+    public static final String KEY_THRESHOLD = "threshold";
+    public static final String KEY_ADAPTIVE_THRESHOLD = "adaptive_threshold";
+    public static final String KEY_THRESHOLD_MIN = "threshold_min";
+    public static final String KEY_THRESHOLD_MAX = "threshold_max";
+    public static final String KEY_TARGET_PRECISION = "target_precision";
+    public static final String KEY_TOP_K = "top_k";
+    public static final String KEY_WINDOW_MS = "window_ms";
+    public static final String KEY_SETTLE_MS = "settle_ms";
+    public static final String KEY_COOLDOWN_MS = "cooldown_ms";
+    public static final String KEY_ANTI_LOOP_MS = "anti_loop_ms";
+    public static final String KEY_USER_BURST = "user_burst";
+    public static final String KEY_USER_PER_HOUR = "user_per_hour";
+    public static final String KEY_TARGET_BURST = "target_burst";
+    public static final String KEY_TARGET_PER_HOUR = "target_per_hour";
+    public static final String KEY_LOW_BATTERY_PCT = "low_battery_pct";
+    public static final String KEY_CANDIDATE_TOP_N = "candidate_top_n";
+    public static final String KEY_CASCADE_BUDGET_MS = "cascade_budget_ms";
+    public static final String KEY_MARKOV_TOP_M = "markov_top_m";
+    public static final String KEY_MARKOV_DECAY = "markov_decay";
+    public static final String KEY_PATH_BRANCH = "path_branch";
+    public static final String KEY_PREWARM_MIN_JOINT = "prewarm_min_joint";
+    public static final String KEY_CONTEXT_WEIGHT = "context_weight";
+    public static final String KEY_OPTIMIZER = "optimizer";
+    public static final String KEY_LR = "lr";
+    public static final String KEY_L2 = "l2";
+    public static final String KEY_TRAMPOLINES = "trampolines";
+
+    private static final String LIST_SEP = ":";
+
+    public static final ChainConfig DEFAULT = new Builder().build();
+
+    /** Kill switch: no auto-launch when false (learning continues). */
+    public final boolean enable;
+    /** Min probability to auto-open B. */
+    public final float threshold;
+    /**
+     * Per-pair thresholds from observed precision (PairThresholdController), kept within
+     * [thresholdMin, thresholdMax]; targetPrecision is the hit rate a pair must beat to be
+     * lowered (and the prior for unseen pairs).
+     */
+    public final boolean adaptiveThreshold;
+    public final float thresholdMin;
+    public final float thresholdMax;
+    public final float targetPrecision;
+    /** Apps considered per launch (only the first that passes the guards is opened). */
+    public final int topK;
+    /** B must open within this long after A for clean training. */
+    public final long windowMs;
+    /** Foreground must stay this long to count as a transition. */
+    public final long settleMs;
+    /** Min time between two chains of a user, and the A <-> B anti-loop window. */
+    public final long cooldownMs;
+    public final long antiLoopMs;
+    /**
+     * LaunchGovernor token buckets: burst size and refill per hour, per user and per
+     * (user, target); no launches below lowBatteryPct unless charging.
+     */
+    public final int userBurst;
+    public final float userPerHour;
+    public final int targetBurst;
+    public final float targetPerHour;
+    public final int lowBatteryPct;
+    /** Cascade: Markov top-N prefilter, LR rerank only within the latency budget. */
+    public final int candidateTopN;
+    public final long cascadeBudgetMs;
+    /** Markov store rows (NextAppConfig.markovTopMPerA / markovDecay). */
+    public final int markovTopM;
+    public final float markovDecay;
+    /** Lookahead: first-hop branches for predictPaths(), min joint to pre-warm C. */
+    public final int pathBranch;
+    public final float prewarmMinJoint;
+    /** Weight of P(B | last, A) blended into the LR score when the context row exists. */
+    public final float contextWeight;
+    /** LR update rule (Optimizer.TYPE_*); lr/l2 are the SGD schedule's LR0 and L2. */
+    public final int optimizer;
+    public final float lr;
+    public final float l2;
+    /**
+     * Packages never treated as a foreground destination (resolver, chooser, permission UIs);
+     * see ForegroundDebouncer. Use trampolinePackages() for a set.
+     */
+    private final String[] mTrampolines;
+
+    private ChainConfig(Builder b) {
+        enable = b.enable;
+        threshold = b.threshold;
+        adaptiveThreshold = b.adaptiveThreshold;
+        thresholdMin = b.thresholdMin;
+        thresholdMax = b.thresholdMax;
+        targetPrecision = b.targetPrecision;
+        topK = b.topK;
+        windowMs = b.windowMs;
+        settleMs = b.settleMs;
+        cooldownMs = b.cooldownMs;
+        antiLoopMs = b.antiLoopMs;
+        userBurst = b.userBurst;
+        userPerHour = b.userPerHour;
+        targetBurst = b.targetBurst;
+        targetPerHour = b.targetPerHour;
+        lowBatteryPct = b.lowBatteryPct;
+        candidateTopN = b.candidateTopN;
+        cascadeBudgetMs = b.cascadeBudgetMs;
+        markovTopM = b.markovTopM;
+        markovDecay = b.markovDecay;
+        pathBranch = b.pathBranch;
+        prewarmMinJoint = b.prewarmMinJoint;
+        contextWeight = b.contextWeight;
+        optimizer = b.optimizer;
+        lr = b.lr;
+        l2 = b.l2;
+        mTrampolines = b.trampolines.clone();
+    }
+
+    /** Fresh copy of the trampoline package set. */
+    public ArraySet<String> trampolinePackages() {
+        ArraySet<String> out = new ArraySet<>(mTrampolines.length);
+        for (String pkg : mTrampolines) out.add(pkg);
+        return out;
+    }
+
+    public Builder toBuilder() {
+        Builder b = new Builder();
+        b.enable = enable;
+        b.threshold = threshold;
+        b.adaptiveThreshold = adaptiveThreshold;
+        b.thresholdMin = thresholdMin;
+        b.thresholdMax = thresholdMax;
+        b.targetPrecision = targetPrecision;
+        b.topK = topK;
+        b.windowMs = windowMs;
+        b.settleMs = settleMs;
+        b.cooldownMs = cooldownMs;
+        b.antiLoopMs = antiLoopMs;
+        b.userBurst = userBurst;
+        b.userPerHour = userPerHour;
+        b.targetBurst = targetBurst;
+        b.targetPerHour = targetPerHour;
+        b.lowBatteryPct = lowBatteryPct;
+        b.candidateTopN = candidateTopN;
+        b.cascadeBudgetMs = cascadeBudgetMs;
+        b.markovTopM = markovTopM;
+        b.markovDecay = markovDecay;
+        b.pathBranch = pathBranch;
+        b.prewarmMinJoint = prewarmMinJoint;
+        b.contextWeight = contextWeight;
+        b.optimizer = optimizer;
+        b.lr = lr;
+        b.l2 = l2;
+        b.trampolines = mTrampolines;
+        return b;
+    }
+
+    /**
+     * Parses "k=v,k=v" (or one pair per line, '#' starts a comment) on top of the defaults.
+     * Unknown keys are logged and ignored; malformed or out-of-range values throw
+     * IllegalArgumentException so the caller can keep its current snapshot.
+     */
+    public static ChainConfig parse(String text) {
+        Builder b = new Builder();
+        if (text == null) return b.build();
+        ArrayMap<String, String> kv = new ArrayMap<>();
+        for (String line : text.split("[,\\n]")) {
+            int hash = line.indexOf('#');
+            if (hash >= 0) line = line.substring(0, hash);
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            int eq = line.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("bad entry: " + line);
+            kv.put(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+        }
+        for (int i = 0; i < kv.size(); i++) {
+            String key = kv.keyAt(i);
+            String v = kv.valueAt(i);
+            try {
+                switch (key) {
+                    case KEY_ENABLE: b.enable = parseBoolean(v); break;
+                    case KEY_THRESHOLD: b.threshold = Float.parseFloat(v); break;
+                    case KEY_ADAPTIVE_THRESHOLD: b.adaptiveThreshold = parseBoolean(v); break;
+                    case KEY_THRESHOLD_MIN: b.thresholdMin = Float.parseFloat(v); break;
+                    case KEY_THRESHOLD_MAX: b.thresholdMax = Float.parseFloat(v); break;
+                    case KEY_TARGET_PRECISION: b.targetPrecision = Float.parseFloat(v); break;
+                    case KEY_TOP_K: b.topK = Integer.parseInt(v); break;
+                    case KEY_WINDOW_MS: b.windowMs = Long.parseLong(v); break;
+                    case KEY_SETTLE_MS: b.settleMs = Long.parseLong(v); break;
+                    case KEY_COOLDOWN_MS: b.cooldownMs = Long.parseLong(v); break;
+                    case KEY_ANTI_LOOP_MS: b.antiLoopMs = Long.parseLong(v); break;
+                    case KEY_USER_BURST: b.userBurst = Integer.parseInt(v); break;
+                    case KEY_USER_PER_HOUR: b.userPerHour = Float.parseFloat(v); break;
+                    case KEY_TARGET_BURST: b.targetBurst = Integer.parseInt(v); break;
+                    case KEY_TARGET_PER_HOUR: b.targetPerHour = Float.parseFloat(v); break;
+                    case KEY_LOW_BATTERY_PCT: b.lowBatteryPct = Integer.parseInt(v); break;
+                    case KEY_CANDIDATE_TOP_N: b.candidateTopN = Integer.parseInt(v); break;
+                    case KEY_CASCADE_BUDGET_MS: b.cascadeBudgetMs = Long.parseLong(v); break;
+                    case KEY_MARKOV_TOP_M: b.markovTopM = Integer.parseInt(v); break;
+                    case KEY_MARKOV_DECAY: b.markovDecay = Float.parseFloat(v); break;
+                    case KEY_PATH_BRANCH: b.pathBranch = Integer.parseInt(v); break;
+                    case KEY_PREWARM_MIN_JOINT: b.prewarmMinJoint = Float.parseFloat(v); break;
+                    case KEY_CONTEXT_WEIGHT: b.contextWeight = Float.parseFloat(v); break;
+                    case KEY_OPTIMIZER: b.optimizer = Integer.parseInt(v); break;
+                    case KEY_LR: b.lr = Float.parseFloat(v); break;
+                    case KEY_L2: b.l2 = Float.parseFloat(v); break;
+                    case KEY_TRAMPOLINES: b.trampolines = parseList(v); break;
+                    default: Slog.w(TAG, "unknown key ignored: " + key);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad value for " + key + ": " + v);
+            }
+        }
+        return b.build();
+    }
+
+    /** "a:b:c" with blanks dropped; "" is the empty list. */
+    private static String[] parseList(String v) {
+        ArraySet<String> out = new ArraySet<>();
+        for (String item : v.split(LIST_SEP)) {
+            item = item.trim();
+            if (!item.isEmpty()) out.add(item);
+        }
+        return out.toArray(new String[0]);
+    }
+
+    private static boolean parseBoolean(String v) {
+        if ("true".equalsIgnoreCase(v) || "1".equals(v)) return true;
+        if ("false".equalsIgnoreCase(v) || "0".equals(v)) return false;
+        throw new NumberFormatException(v);
+    }
+
+    @Override
+    public String toString() {
+        return KEY_ENABLE + "=" + enable
+                + "," + KEY_THRESHOLD + "=" + threshold
+                + "," + KEY_ADAPTIVE_THRESHOLD + "=" + adaptiveThreshold
+                + "," + KEY_THRESHOLD_MIN + "=" + thresholdMin
+                + "," + KEY_THRESHOLD_MAX + "=" + thresholdMax
+                + "," + KEY_TARGET_PRECISION + "=" + targetPrecision
+                + "," + KEY_TOP_K + "=" + topK
+                + "," + KEY_WINDOW_MS + "=" + windowMs
+                + "," + KEY_SETTLE_MS + "=" + settleMs
+                + "," + KEY_COOLDOWN_MS + "=" + cooldownMs
+                + "," + KEY_ANTI_LOOP_MS + "=" + antiLoopMs
+                + "," + KEY_USER_BURST + "=" + userBurst
+                + "," + KEY_USER_PER_HOUR + "=" + userPerHour
+                + "," + KEY_TARGET_BURST + "=" + targetBurst
+                + "," + KEY_TARGET_PER_HOUR + "=" + targetPerHour
+                + "," + KEY_LOW_BATTERY_PCT + "=" + lowBatteryPct
+                + "," + KEY_CANDIDATE_TOP_N + "=" + candidateTopN
+                + "," + KEY_CASCADE_BUDGET_MS + "=" + cascadeBudgetMs
+                + "," + KEY_MARKOV_TOP_M + "=" + markovTopM
+                + "," + KEY_MARKOV_DECAY + "=" + markovDecay
+                + "," + KEY_PATH_BRANCH + "=" + pathBranch
+                + "," + KEY_PREWARM_MIN_JOINT + "=" + prewarmMinJoint
+                + "," + KEY_CONTEXT_WEIGHT + "=" + contextWeight
+                + "," + KEY_OPTIMIZER + "=" + optimizer
+                + "," + KEY_LR + "=" + lr
+                + "," + KEY_L2 + "=" + l2
+                + "," + KEY_TRAMPOLINES + "=" + String.join(LIST_SEP, mTrampolines);
+    }
+
+    public static final class Builder {
+        private boolean enable = true;
+        private float threshold = 0.80f;
+        private boolean adaptiveThreshold = true;
+        private float thresholdMin = 0.60f;
+        private float thresholdMax = 0.95f;
+        private float targetPrecision = 0.70f;
+        private int topK = 1;
+        private long windowMs = 15_000;
+        private long settleMs = 500;
+        private long cooldownMs = 15_000;
+        private long antiLoopMs = 30_000;
+        private int userBurst = 4;
+        private float userPerHour = 12f;
+        private int targetBurst = 2;
+        private float targetPerHour = 4f;
+        private int lowBatteryPct = 15;
+        private int candidateTopN = 20;
+        private long cascadeBudgetMs = 3;
+        private int markovTopM = 50;
+        private float markovDecay = 0.9995f;
+        private int pathBranch = 3;
+        private float prewarmMinJoint = 0.30f;
+        private float contextWeight = 0.30f;
+        private int optimizer = Optimizer.TYPE_SGD;
+        private float lr = 0.05f;
+        private float l2 = 1e-5f;
+        private String[] trampolines = {
+                "android", // ResolverActivity / ChooserActivity
+                "com.google.android.permissioncontroller",
+                "com.android.permissioncontroller",
+        };
+
+        public Builder setEnable(boolean v) { enable = v; return this; }
+        public Builder setThreshold(float v) { threshold = v; return this; }
+        public Builder setAdaptiveThreshold(boolean v) { adaptiveThreshold = v; return this; }
+        public Builder setThresholdMin(float v) { thresholdMin = v; return this; }
+        public Builder setThresholdMax(float v) { thresholdMax = v; return this; }
+        public Builder setTargetPrecision(float v) { targetPrecision = v; return this; }
+        public Builder setTopK(int v) { topK = v; return this; }
+        public Builder setWindowMs(long v) { windowMs = v; return this; }
+        public Builder setSettleMs(long v) { settleMs = v; return this; }
+        public Builder setCooldownMs(long v) { cooldownMs = v; return this; }
+        public Builder setAntiLoopMs(long v) { antiLoopMs = v; return this; }
+        public Builder setUserBurst(int v) { userBurst = v; return this; }
+        public Builder setUserPerHour(float v) { userPerHour = v; return this; }
+        public Builder setTargetBurst(int v) { targetBurst = v; return this; }
+        public Builder setTargetPerHour(float v) { targetPerHour = v; return this; }
+        public Builder setLowBatteryPct(int v) { lowBatteryPct = v; return this; }
+        public Builder setCandidateTopN(int v) { candidateTopN = v; return this; }
+        public Builder setCascadeBudgetMs(long v) { cascadeBudgetMs = v; return this; }
+        public Builder setMarkovTopM(int v) { markovTopM = v; return this; }
+        public Builder setMarkovDecay(float v) { markovDecay = v; return this; }
+        public Builder setPathBranch(int v) { pathBranch = v; return this; }
+        public Builder setPrewarmMinJoint(float v) { prewarmMinJoint = v; return this; }
+        public Builder setContextWeight(float v) { contextWeight = v; return this; }
+        public Builder setOptimizer(int v) { optimizer = v; return this; }
+        public Builder setLr(float v) { lr = v; return this; }
+        public Builder setL2(float v) { l2 = v; return this; }
+        public Builder setTrampolines(String... v) { trampolines = v.clone(); return this; }
+
+        /** Throws IllegalArgumentException naming the first invalid field. */
+        public ChainConfig build() {
+            check(threshold > 0f && threshold <= 1f, KEY_THRESHOLD);
+            check(thresholdMin > 0f && thresholdMin <= threshold, KEY_THRESHOLD_MIN);
+            check(thresholdMax >= threshold && thresholdMax <= 1f, KEY_THRESHOLD_MAX);
+            check(targetPrecision > 0f && targetPrecision < 1f, KEY_TARGET_PRECISION);
+            check(topK >= 1 && topK <= 5, KEY_TOP_K);
+            check(windowMs >= 1_000 && windowMs <= 120_000, KEY_WINDOW_MS);
+            check(settleMs >= 0 && settleMs <= 5_000, KEY_SETTLE_MS);
+            check(cooldownMs >= 0 && cooldownMs <= 3_600_000, KEY_COOLDOWN_MS);
+            check(antiLoopMs >= 0 && antiLoopMs <= 3_600_000, KEY_ANTI_LOOP_MS);
+            check(userBurst >= 1 && userBurst <= 100, KEY_USER_BURST);
+            check(userPerHour >= 0f && userPerHour <= 3_600f, KEY_USER_PER_HOUR);
+            check(targetBurst >= 1 && targetBurst <= userBurst, KEY_TARGET_BURST);
+            check(targetPerHour >= 0f && targetPerHour <= userPerHour, KEY_TARGET_PER_HOUR);
+            check(lowBatteryPct >= 0 && lowBatteryPct <= 100, KEY_LOW_BATTERY_PCT);
+            check(candidateTopN >= 1 && candidateTopN <= 100, KEY_CANDIDATE_TOP_N);
+            check(cascadeBudgetMs >= 1 && cascadeBudgetMs <= 100, KEY_CASCADE_BUDGET_MS);
+            check(markovTopM >= 1 && markovTopM <= 200, KEY_MARKOV_TOP_M);
+            check(markovDecay > 0.9f && markovDecay <= 1f, KEY_MARKOV_DECAY);
+            check(pathBranch >= 1 && pathBranch <= candidateTopN, KEY_PATH_BRANCH);
+            check(prewarmMinJoint >= 0f && prewarmMinJoint <= 1f, KEY_PREWARM_MIN_JOINT);
+            check(contextWeight >= 0f && contextWeight <= 1f, KEY_CONTEXT_WEIGHT);
+            check(optimizer == Optimizer.TYPE_SGD || optimizer == Optimizer.TYPE_ADAGRAD
+                    || optimizer == Optimizer.TYPE_FTRL, KEY_OPTIMIZER);
+            check(lr > 0f && lr <= 1f, KEY_LR);
+            check(l2 >= 0f && l2 < 1f, KEY_L2);
+            for (String pkg : trampolines) {
+                check(pkg != null && pkg.matches("[A-Za-z0-9_.]+"), KEY_TRAMPOLINES);
+            }
+            return new ChainConfig(this);
+        }
+
+        private static void check(boolean ok, String key) {
+            if (!ok) throw new IllegalArgumentException("out of range: " + key);
+        }
+    }
+}
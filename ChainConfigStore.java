@@ -0,0 +1,128 @@
+package com.android.server.maxpower.chain;
+
+import android.content.ContentResolver;
+import android.provider.Settings;
+import android.util.Slog;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+
+/**
+ * Holds the current ChainConfig behind one volatile reference.
+ *
+ * Readers call get() without locking and keep the returned snapshot for the whole event.
+ * reload() parses a Source off the hot path, publishes the new snapshot if it is valid and
+ * then notifies listeners on the reloading thread, so dependents can resize (caps, budgets,
+ * optimizer) in place. An invalid source keeps the current snapshot.
+ *
+ * On device the owning service observes the SETTING string in Settings.Global and reloads
+ * from it (or from a local fileSource() while it is unset) on a background handler.
+ */
+public final class ChainConfigStore {
+    private static final String TAG = "ChainConfigStore";
+
+    /** Settings.Global key holding the textual config (ChainConfig.parse() format). */
+    public static final String SETTING = "maxpower_chain_config";
+
+    /** Where the textual config comes from, e.g. a Settings.Global string or a local file. */
+    public interface Source {
+        /** null = nothing configured (defaults). */
+        String read() throws IOException;
+    }
+
+    public interface Listener {
+        /** Called after now is published; old is the snapshot it replaced. */
+        void onConfigChanged(ChainConfig old, ChainConfig now);
+    }
+
+    private volatile ChainConfig mConfig;
+
+    private final Object mLock = new Object();
+    private final ArrayList<Listener> mListeners = new ArrayList<>();
+    private long mReloads;
+    private long mRejected;
+    private String mLastError;
+
+    public ChainConfigStore() {
+        this(ChainConfig.DEFAULT);
+    }
+
+    public ChainConfigStore(ChainConfig initial) {
+        mConfig = initial;
+    }
+
+    /** Lock-free; never null. */
+    public ChainConfig get() {
+        return mConfig;
+    }
+
+    public void addListener(Listener l) {
+        synchronized (mLock) { mListeners.add(l); }
+    }
+
+    public void removeListener(Listener l) {
+        synchronized (mLock) { mListeners.remove(l); }
+    }
+
+    /** Publishes cfg and notifies listeners if it differs from the current snapshot. */
+    public void set(ChainConfig cfg) {
+        final ChainConfig old;
+        final Listener[] listeners;
+        synchronized (mLock) {
+            old = mConfig;
+            if (cfg == null || cfg.toString().equals(old.toString())) return;
+            mConfig = cfg;
+            mReloads++;
+            listeners = mListeners.toArray(new Listener[0]);
+        }
+        Slog.i(TAG, "config: " + cfg);
+        for (Listener l : listeners) l.onConfigChanged(old, cfg);
+    }
+
+    /** Re-reads src. Returns false (current snapshot kept) if it can't be read or parsed. */
+    public boolean reload(Source src) {
+        final ChainConfig cfg;
+        try {
+            cfg = ChainConfig.parse(src.read());
+        } catch (IOException | IllegalArgumentException e) {
+            synchronized (mLock) {
+                mRejected++;
+                mLastError = e.getMessage();
+            }
+            Slog.w(TAG, "config rejected; keeping current: " + e.getMessage());
+            return false;
+        }
+        set(cfg);
+        return true;
+    }
+
+    /** Settings.Global string name; unset means defaults. */
+    public static Source settingsSource(ContentResolver resolver, String name) {
+        return () -> Settings.Global.getString(resolver, name);
+    }
+
+    /** File stand-in for the settings source; a missing file means defaults. */
+    public static Source fileSource(File file) {
+        return () -> {
+            try {
+                return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            } catch (FileNotFoundException | NoSuchFileException e) {
+                return null;
+            }
+        };
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.println(prefix + "ChainConfig: reloads=" + mReloads + " rejected=" + mRejected
+                    + (mLastError != null ? " lastError=" + mLastError : ""));
+        }
+        pw.println(prefix + "  " + mConfig);
+    }
+}
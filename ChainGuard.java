@@ -1,32 +1,67 @@
 package com.android.server.maxpower.chain;
 
-public final class ChainGuard {
-    private static final long COOLDOWN_MS = 15_000;
-    private static final long ANTI_LOOP_MS = 30_000;
+import android.os.UserHandle;
+
+import java.io.PrintWriter;
 
+public final class ChainGuard {
     private final Object mLock = new Object();
+    // ChainConfig.antiLoopMs; cooldown and budgets live in the governor
+    private volatile long mAntiLoopMs = ChainConfig.DEFAULT.antiLoopMs;
+    private final LaunchGovernor mGovernor;
     private String mLastFrom;
     private String mLastTo;
     private long mLastAt;
 
+    /** Budgets only; no power constraints. */
+    public ChainGuard() {
+        this(new LaunchGovernor(LaunchGovernor.UNCONSTRAINED));
+    }
+
+    public ChainGuard(LaunchGovernor governor) {
+        mGovernor = governor;
+    }
+
     public boolean allowChain(String pkgA, String pkgB, long nowUptime) {
-        if (pkgA == null || pkgB == null) return false;
-        if (pkgA.equals(pkgB)) return false;
+        return check(pkgA, pkgB, UserHandle.USER_SYSTEM, nowUptime)
+                == DecisionTrace.VERDICT_ALLOWED;
+    }
+
+    /** Same as allowChain() but says why (DecisionTrace.VERDICT_*). */
+    public byte check(String pkgA, String pkgB, int userId, long nowUptime) {
+        if (pkgA == null || pkgB == null) return DecisionTrace.VERDICT_INVALID;
+        if (pkgA.equals(pkgB)) return DecisionTrace.VERDICT_INVALID;
 
         synchronized (mLock) {
-            if (nowUptime - mLastAt < COOLDOWN_MS) return false;
-            if (nowUptime - mLastAt < ANTI_LOOP_MS) {
-                if (pkgA.equals(mLastTo) && pkgB.equals(mLastFrom)) return false;
+            if (nowUptime - mLastAt < mAntiLoopMs) {
+                if (pkgA.equals(mLastTo) && pkgB.equals(mLastFrom)) {
+                    return DecisionTrace.VERDICT_ANTI_LOOP;
+                }
             }
         }
-        return true;
+        return mGovernor.check(userId, pkgB, nowUptime);
+    }
+
+    /** Anti-loop window and the governor's cooldown / budgets. */
+    public void setConfig(ChainConfig cfg) {
+        mAntiLoopMs = cfg.antiLoopMs;
+        mGovernor.setConfig(cfg);
     }
 
-    public void onChained(String pkgA, String pkgB, long nowUptime) {
+    public LaunchGovernor getGovernor() {
+        return mGovernor;
+    }
+
+    public void onChained(String pkgA, String pkgB, int userId, long nowUptime) {
         synchronized (mLock) {
             mLastFrom = pkgA;
             mLastTo = pkgB;
             mLastAt = nowUptime;
         }
+        mGovernor.onLaunched(userId, pkgB, nowUptime);
+    }
+
+    public void dump(PrintWriter pw, String prefix, long nowUptime) {
+        mGovernor.dump(pw, prefix, nowUptime);
     }
 }
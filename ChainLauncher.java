@@ -0,0 +1,12 @@
+package com.android.server.maxpower.chain;
+
+/**
+ * Starts chained apps. AppLauncher is the framework implementation (startActivityAsUser);
+ * host-side tools supply their own.
+ */
+public interface ChainLauncher {
+    void launch(String pkg, int userId);
+
+    /** Low-priority preparation of a likely next launch; must not block the caller. */
+    void prewarm(String pkg, int userId);
+}
@@ -0,0 +1,263 @@
+package com.android.server.maxpower.chain;
+
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+
+/**
+ * Joins each chain launch A -> B with the foreground transitions that follow it.
+ *
+ * Outcome of one launch:
+ *  - hit:     B reached foreground and stayed at least QUICK_ABANDON_MS
+ *  - abandon: B reached foreground but the user left it within QUICK_ABANDON_MS
+ *  - miss:    B never reached foreground within WINDOW_MS (or another chain replaced it first)
+ *
+ * Counters are kept per (A, B) in parallel int arrays, bounded at MAX_PAIRS; when full the
+ * pair with the fewest outcomes is recycled. One launch is outstanding per user (the
+ * governor's cooldown is per user); a new launch settles that user's previous one.
+ */
+public final class ChainOutcomeTracker implements PackagePurger.Purgeable {
+    public static final long WINDOW_MS = 15_000;
+    public static final long QUICK_ABANDON_MS = 3_000;
+    private static final int MAX_PAIRS = 256;
+
+    public static final int OUTCOME_HIT = 0;
+    public static final int OUTCOME_MISS = 1;
+    public static final int OUTCOME_ABANDON = 2;
+
+    /** Outcome sink, e.g. PairThresholdController. */
+    public interface Listener {
+        /** Called under the tracker lock: must be cheap and must not call back in. */
+        void onOutcome(String pkgA, String pkgB, int outcome, long nowUptime);
+    }
+
+    private final Object mLock = new Object();
+    private Listener mListener;
+
+    // pair "A\0B" -> slot in the counter arrays
+    private final ArrayMap<String, Integer> mIndex = new ArrayMap<>();
+    private final String[] mKeys = new String[MAX_PAIRS];
+    private final int[] mHits = new int[MAX_PAIRS];
+    private final int[] mMisses = new int[MAX_PAIRS];
+    private final int[] mAbandons = new int[MAX_PAIRS];
+    private int mPairs;
+
+    private long mTotalHits;
+    private long mTotalMisses;
+    private long mTotalAbandons;
+
+    /** Outstanding launch of one user. */
+    private static final class Pending {
+        String pkgA;
+        String pkgB;
+        long launchedAt;
+        long arrivedAt; // 0 = B not seen in foreground yet
+    }
+
+    // userId -> outstanding launch; records are reused, pkgB == null means none
+    private final SparseArray<Pending> mPending = new SparseArray<>();
+
+    public void setListener(Listener listener) {
+        synchronized (mLock) { mListener = listener; }
+    }
+
+    /** A chain launch of B (from A) was just issued. */
+    public void onChainLaunched(String pkgA, String pkgB, int userId, long nowUptime) {
+        synchronized (mLock) {
+            Pending p = mPending.get(userId);
+            if (p == null) {
+                p = new Pending();
+                mPending.put(userId, p);
+            } else if (p.pkgB != null) {
+                resolvePendingLocked(p, nowUptime);
+            }
+            p.pkgA = pkgA;
+            p.pkgB = pkgB;
+            p.launchedAt = nowUptime;
+            p.arrivedAt = 0;
+        }
+    }
+
+    /** Foreground moved from -> to. */
+    public void onTransition(String fromPkg, String toPkg, int userId, long nowUptime) {
+        synchronized (mLock) {
+            final Pending p = mPending.get(userId);
+            if (p == null || p.pkgB == null) return;
+            if (p.arrivedAt == 0) {
+                if (nowUptime - p.launchedAt > WINDOW_MS) {
+                    finishLocked(p, OUTCOME_MISS, nowUptime);
+                } else if (p.pkgB.equals(toPkg)) {
+                    p.arrivedAt = nowUptime;
+                }
+                return;
+            }
+            if (p.pkgB.equals(fromPkg)) {
+                finishLocked(p, nowUptime - p.arrivedAt < QUICK_ABANDON_MS
+                        ? OUTCOME_ABANDON : OUTCOME_HIT, nowUptime);
+            }
+        }
+    }
+
+    /** Settles outstanding launches whose window already elapsed (e.g. before dump). */
+    public void expire(long nowUptime) {
+        synchronized (mLock) {
+            for (int i = 0; i < mPending.size(); i++) {
+                final Pending p = mPending.valueAt(i);
+                if (p.pkgB == null) continue;
+                long ref = p.arrivedAt != 0
+                        ? p.arrivedAt + QUICK_ABANDON_MS : p.launchedAt + WINDOW_MS;
+                if (nowUptime >= ref) resolvePendingLocked(p, nowUptime);
+            }
+        }
+    }
+
+    private void resolvePendingLocked(Pending p, long nowUptime) {
+        if (p.arrivedAt == 0) {
+            finishLocked(p, OUTCOME_MISS, nowUptime);
+        } else {
+            finishLocked(p, nowUptime - p.arrivedAt < QUICK_ABANDON_MS
+                    ? OUTCOME_ABANDON : OUTCOME_HIT, nowUptime);
+        }
+    }
+
+    private void finishLocked(Pending p, int outcome, long nowUptime) {
+        int slot = slotLocked(p.pkgA, p.pkgB);
+        switch (outcome) {
+            case OUTCOME_HIT:
+                mHits[slot]++;
+                mTotalHits++;
+                break;
+            case OUTCOME_ABANDON:
+                mAbandons[slot]++;
+                mTotalAbandons++;
+                break;
+            default:
+                mMisses[slot]++;
+                mTotalMisses++;
+                break;
+        }
+        if (mListener != null) mListener.onOutcome(p.pkgA, p.pkgB, outcome, nowUptime);
+        p.pkgA = null;
+        p.pkgB = null;
+        p.arrivedAt = 0;
+    }
+
+    private int slotLocked(String pkgA, String pkgB) {
+        String key = pkgA + '\0' + pkgB;
+        Integer idx = mIndex.get(key);
+        if (idx != null) return idx;
+        int slot;
+        if (mPairs < MAX_PAIRS) {
+            slot = mPairs++;
+        } else {
+            slot = 0;
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < MAX_PAIRS; i++) {
+                int n = mHits[i] + mMisses[i] + mAbandons[i];
+                if (n < min) {
+                    min = n;
+                    slot = i;
+                }
+            }
+            mIndex.remove(mKeys[slot]);
+        }
+        mKeys[slot] = key;
+        mHits[slot] = 0;
+        mMisses[slot] = 0;
+        mAbandons[slot] = 0;
+        mIndex.put(key, slot);
+        return slot;
+    }
+
+    @Override
+    public int purgeSlice(ArraySet<String> pkgs, int from, int maxScan,
+            PackagePurger.PairSink out) {
+        synchronized (mLock) {
+            int i = Math.min(from, mPairs - 1);
+            for (int scanned = 0; i >= 0 && scanned < maxScan; i--, scanned++) {
+                if (!PackagePurger.keyMentions(mKeys[i], pkgs)) continue;
+                PackagePurger.reportPair(mKeys[i], out);
+                removeSlotLocked(i);
+            }
+            return i < 0 ? PackagePurger.DONE : i;
+        }
+    }
+
+    /** Moves the last pair into slot (already visited when walking down). */
+    private void removeSlotLocked(int slot) {
+        mIndex.remove(mKeys[slot]);
+        final int last = --mPairs;
+        if (slot != last) {
+            mKeys[slot] = mKeys[last];
+            mHits[slot] = mHits[last];
+            mMisses[slot] = mMisses[last];
+            mAbandons[slot] = mAbandons[last];
+            mIndex.put(mKeys[slot], slot);
+        }
+        mKeys[last] = null;
+    }
+
+    // -------- stats for gating --------
+
+    /**
+     * Copies {hits, misses, abandons} for (A, B) into out[0..2].
+     * Returns false (out zeroed) if the pair has no recorded outcome.
+     */
+    public boolean getPairCounts(String pkgA, String pkgB, int[] out) {
+        synchronized (mLock) {
+            Integer idx = mIndex.get(pkgA + '\0' + pkgB);
+            if (idx == null) {
+                out[0] = out[1] = out[2] = 0;
+                return false;
+            }
+            out[0] = mHits[idx];
+            out[1] = mMisses[idx];
+            out[2] = mAbandons[idx];
+            return true;
+        }
+    }
+
+    /** hits / outcomes for (A, B), or -1 if there are none yet. */
+    public float getPairPrecision(String pkgA, String pkgB) {
+        synchronized (mLock) {
+            Integer idx = mIndex.get(pkgA + '\0' + pkgB);
+            if (idx == null) return -1f;
+            int n = mHits[idx] + mMisses[idx] + mAbandons[idx];
+            return n == 0 ? -1f : (float) mHits[idx] / n;
+        }
+    }
+
+    /** Global hit rate over all launches, or -1 if none. */
+    public float getHitRate() {
+        synchronized (mLock) {
+            long n = mTotalHits + mTotalMisses + mTotalAbandons;
+            return n == 0 ? -1f : (float) mTotalHits / n;
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            long n = mTotalHits + mTotalMisses + mTotalAbandons;
+            pw.println(prefix + "ChainOutcomeTracker: launches=" + n
+                    + " hits=" + mTotalHits
+                    + " misses=" + mTotalMisses
+                    + " abandons=" + mTotalAbandons
+                    + (n > 0 ? " hitRate=" + (100 * mTotalHits / n) + "%" : ""));
+            for (int i = 0; i < mPending.size(); i++) {
+                final Pending p = mPending.valueAt(i);
+                if (p.pkgB == null) continue;
+                pw.println(prefix + "  pending u" + mPending.keyAt(i) + " " + p.pkgA + " -> "
+                        + p.pkgB + " arrived=" + (p.arrivedAt != 0));
+            }
+            for (int i = 0; i < mPairs; i++) {
+                String key = mKeys[i];
+                int sep = key.indexOf('\0');
+                pw.println(prefix + "  " + key.substring(0, sep) + " -> " + key.substring(sep + 1)
+                        + " hit=" + mHits[i] + " miss=" + mMisses[i]
+                        + " abandon=" + mAbandons[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.android.server.maxpower.chain;
+
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStatsManagerInternal;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Slog;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Seeds a fresh (or reset) model and Markov store from historical foreground events so
+ * predictions are useful on day one instead of after weeks of live transitions.
+ *
+ * Events are streamed in time order and reduced with the live rules: a foreground app
+ * counts once it stayed cfg.settleMs (shorter visits are trampolines and skipped), and
+ * settled A -> B is a training pair when B followed within cfg.windowMs of A coming up,
+ * A != B and both are launcher-eligible. The most recent MAX_PAIRS pairs are kept.
+ * The model (positive plus the live path's negative samples) and the Markov table then
+ * train in parallel, oldest pair first, until done or the time budget runs out. Reading
+ * stops at half the budget so training always gets the rest.
+ */
+public final class ColdStartBootstrap {
+    private static final String TAG = "ColdStartBootstrap";
+    private static final int MAX_PAIRS = 20_000;
+    // same negative sampling as AppChainManager.onTransition()
+    private static final int NEGATIVES = 3;
+
+    /** A foreground event; sources reuse one instance. */
+    public static final class Event {
+        public long timeMs;
+        public String pkg;
+    }
+
+    /** Foreground (activity resumed) events of one user in time order. */
+    public interface EventSource {
+        /** Fills out with the next event; false at the end. */
+        boolean next(Event out);
+    }
+
+    /** ACTIVITY_RESUMED events of userId in [beginMs, endMs). */
+    public static EventSource fromUsageStats(UsageStatsManagerInternal usm, int userId,
+            long beginMs, long endMs) {
+        final UsageEvents events = usm.queryEventsForUser(userId, beginMs, endMs, 0);
+        final UsageEvents.Event e = new UsageEvents.Event();
+        return out -> {
+            while (events != null && events.hasNextEvent()) {
+                if (!events.getNextEvent(e)) return false;
+                if (e.getEventType() != UsageEvents.Event.ACTIVITY_RESUMED) continue;
+                out.timeMs = e.getTimeStamp();
+                out.pkg = e.getPackageName();
+                return true;
+            }
+            return false;
+        };
+    }
+
+    /** Synthetic source (tools, tests): timesMs ascending, parallel to pkgs. */
+    public static EventSource fromArrays(long[] timesMs, String[] pkgs) {
+        final int[] pos = new int[1];
+        return out -> {
+            if (pos[0] >= pkgs.length) return false;
+            out.timeMs = timesMs[pos[0]];
+            out.pkg = pkgs[pos[0]++];
+            return true;
+        };
+    }
+
+    public static final class Result {
+        public int events;
+        public int pairs;
+        public int modelTrained;
+        public int markovTrained;
+        public boolean budgetExceeded;
+        public long elapsedMs;
+
+        @Override
+        public String toString() {
+            return "events=" + events + " pairs=" + pairs + " modelTrained=" + modelTrained
+                    + " markovTrained=" + markovTrained + " budgetExceeded=" + budgetExceeded
+                    + " elapsedMs=" + elapsedMs;
+        }
+    }
+
+    private final TinyNextAppPredictorLite mPredictor;
+    private final MarkovTable mMarkov;
+    private final CandidateProvider mCandidates;
+
+    public ColdStartBootstrap(TinyNextAppPredictorLite predictor, MarkovTable markov,
+            CandidateProvider candidates) {
+        mPredictor = predictor;
+        mMarkov = markov;
+        mCandidates = candidates;
+    }
+
+    /** Blocking; call off the main thread. budgetMs covers reading and training. */
+    public Result run(EventSource source, int userId, ChainConfig cfg, long budgetMs) {
+        final long start = SystemClock.uptimeMillis();
+        final long deadline = start + budgetMs;
+        final long readDeadline = start + budgetMs / 2;
+        final Result r = new Result();
+
+        // -------- extract: ring of the newest pairs --------
+        final String[] pairA = new String[MAX_PAIRS];
+        final String[] pairB = new String[MAX_PAIRS];
+        int head = 0;
+        final Event e = new Event();
+        String cur = null;       // current foreground, maybe not settled yet
+        long curSince = 0;
+        String settled = null;   // last settled foreground
+        long settledSince = 0;
+        while (source.next(e)) {
+            r.events++;
+            if (e.pkg == null || e.pkg.equals(cur)) continue;
+            if (cur != null && e.timeMs - curSince >= cfg.settleMs) {
+                if (isPair(settled, settledSince, cur, curSince, userId, cfg)) {
+                    pairA[head % MAX_PAIRS] = settled;
+                    pairB[head % MAX_PAIRS] = cur;
+                    head++;
+                }
+                settled = cur;
+                settledSince = curSince;
+            }
+            cur = e.pkg;
+            curSince = e.timeMs;
+            if ((r.events & 0xff) == 0 && SystemClock.uptimeMillis() > readDeadline) {
+                r.budgetExceeded = true;
+                break;
+            }
+        }
+        // the last app is still in the foreground: settled by definition
+        if (!r.budgetExceeded && isPair(settled, settledSince, cur, curSince, userId, cfg)) {
+            pairA[head % MAX_PAIRS] = settled;
+            pairB[head % MAX_PAIRS] = cur;
+            head++;
+        }
+        final int last = head;
+        final int n = Math.min(last, MAX_PAIRS);
+        final int first = last - n;
+        r.pairs = n;
+
+        // -------- train: model on a helper thread, Markov here --------
+        final AtomicBoolean stop = new AtomicBoolean();
+        final int[] modelTrained = new int[1];
+        final Thread modelThread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            for (int i = first; i < last && !stop.get(); i++) {
+                String a = pairA[i % MAX_PAIRS];
+                String b = pairB[i % MAX_PAIRS];
+                mPredictor.train(a, b, 1);
+                List<String> negs = mCandidates.sampleNegatives(userId, a, b, NEGATIVES);
+                for (int j = 0; j < negs.size(); j++) mPredictor.train(a, negs.get(j), 0);
+                modelTrained[0]++;
+                if ((i & 0x3f) == 0 && SystemClock.uptimeMillis() > deadline) stop.set(true);
+            }
+        }, "maxpower-bootstrap");
+        modelThread.start();
+        for (int i = first; i < last && !stop.get(); i++) {
+            mMarkov.onTransition(pairA[i % MAX_PAIRS], pairB[i % MAX_PAIRS]);
+            r.markovTrained++;
+            if ((i & 0x3f) == 0 && SystemClock.uptimeMillis() > deadline) stop.set(true);
+        }
+        try {
+            modelThread.join(Math.max(1, deadline - SystemClock.uptimeMillis()));
+            stop.set(true);
+            modelThread.join();
+        } catch (InterruptedException ex) {
+            stop.set(true);
+            Thread.currentThread().interrupt();
+        }
+        r.modelTrained = modelTrained[0];
+        r.budgetExceeded |= r.modelTrained < n || r.markovTrained < n;
+        mPredictor.maybeSave();
+        r.elapsedMs = SystemClock.uptimeMillis() - start;
+        Slog.i(TAG, "Bootstrap user " + userId + ": " + r);
+        return r;
+    }
+
+    private boolean isPair(String a, long aSince, String b, long bSince, int userId,
+            ChainConfig cfg) {
+        if (a == null || b == null || a.equals(b)) return false;
+        if (bSince - aSince > cfg.windowMs) return false;
+        return mCandidates.isEligibleApp(a, userId) && mCandidates.isEligibleApp(b, userId);
+    }
+}
@@ -0,0 +1,27 @@
+package com.android.server.maxpower.chain;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** ChainLauncher for host-side tools: counts calls, starts nothing. */
+final class CountingLauncher implements ChainLauncher {
+    private final AtomicLong mLaunches = new AtomicLong();
+    private final AtomicLong mPrewarms = new AtomicLong();
+
+    @Override
+    public void launch(String pkg, int userId) {
+        mLaunches.incrementAndGet();
+    }
+
+    @Override
+    public void prewarm(String pkg, int userId) {
+        mPrewarms.incrementAndGet();
+    }
+
+    long getLaunchCount() {
+        return mLaunches.get();
+    }
+
+    long getPrewarmCount() {
+        return mPrewarms.get();
+    }
+}
@@ -0,0 +1,252 @@
+package com.android.server.maxpower.chain;
+
+import android.util.ArraySet;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.invoke.VarHandle;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size binary ring of chain decisions, for "why did this app open by itself".
+ *
+ * All storage is preallocated in parallel primitive arrays; record() allocates nothing and
+ * takes no lock (package ids of known names come from the PackageDictionary's lock-free
+ * snapshot; only a first-seen name takes its lock). Writers
+ * claim a sequence number with one atomic increment; each slot carries a seqlock stamp so
+ * readers skip slots that are mid-write or were overwritten while being read.
+ */
+public final class DecisionTrace {
+    private static final String TAG = "DecisionTrace";
+    private static final int EXPORT_MAGIC = 0x44545243; // "DTRC"
+    private static final int EXPORT_VERSION = 1;
+
+    // guard/gate verdict for the candidate
+    public static final byte VERDICT_ALLOWED = 0;
+    public static final byte VERDICT_BELOW_THRESHOLD = 1;
+    public static final byte VERDICT_COOLDOWN = 2;
+    public static final byte VERDICT_ANTI_LOOP = 3;
+    public static final byte VERDICT_ALREADY_TOP = 4;
+    public static final byte VERDICT_DISABLED = 5;
+    public static final byte VERDICT_INVALID = 6;
+    public static final byte VERDICT_BACKOFF = 7;
+    public static final byte VERDICT_LOW_BATTERY = 8;
+    public static final byte VERDICT_USER_BUDGET = 9;
+    public static final byte VERDICT_TARGET_BUDGET = 10;
+    // stage-1 Markov order served: not a calibrated probability, never launched
+    public static final byte VERDICT_UNCALIBRATED = 11;
+
+    // what the engine did
+    public static final byte ACTION_NONE = 0;
+    public static final byte ACTION_LAUNCH = 1;
+    public static final byte ACTION_PREWARM = 2;
+
+    private static final int NO_PKG = -1;
+    private static final long WRITING = -1;
+
+    private final PackageDictionary mDict;
+    private final int mMask;
+
+    private final AtomicLong mNext = new AtomicLong();
+    // stamp per slot: sequence of the record it holds, WRITING while being filled
+    private final AtomicLongArray mStamp;
+    private final long[] mWallMs;
+    private final int[] mUserId;
+    private final int[] mPkgA;
+    private final int[] mPkgB;
+    private final float[] mScore;
+    private final float[] mThreshold;
+    private final byte[] mVerdict;
+    private final byte[] mAction;
+
+    /** capacity is rounded up to a power of two. */
+    public DecisionTrace(int capacity, PackageDictionary dict) {
+        int cap = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mDict = dict;
+        mMask = cap - 1;
+        mStamp = new AtomicLongArray(cap);
+        for (int i = 0; i < cap; i++) mStamp.set(i, WRITING);
+        mWallMs = new long[cap];
+        mUserId = new int[cap];
+        mPkgA = new int[cap];
+        mPkgB = new int[cap];
+        mScore = new float[cap];
+        mThreshold = new float[cap];
+        mVerdict = new byte[cap];
+        mAction = new byte[cap];
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /** Total records ever written (older ones are overwritten). */
+    public long count() {
+        return mNext.get();
+    }
+
+    public void record(int userId, String pkgA, String pkgB, float score, float threshold,
+            byte verdict, byte action) {
+        final int a = pkgA == null ? NO_PKG : mDict.idOf(pkgA);
+        final int b = pkgB == null ? NO_PKG : mDict.idOf(pkgB);
+        final long seq = mNext.getAndIncrement();
+        final int slot = (int) (seq & mMask);
+        mStamp.set(slot, WRITING);
+        // field stores below must not become visible before the WRITING mark
+        VarHandle.storeStoreFence();
+        mWallMs[slot] = System.currentTimeMillis();
+        mUserId[slot] = userId;
+        mPkgA[slot] = a;
+        mPkgB[slot] = b;
+        mScore[slot] = score;
+        mThreshold[slot] = threshold;
+        mVerdict[slot] = verdict;
+        mAction[slot] = action;
+        mStamp.set(slot, seq); // volatile write publishes the fields above
+    }
+
+    // -------- readers --------
+
+    /** One decoded record; reused by the caller across read() calls. */
+    public static final class Record {
+        public long seq;
+        public long wallMs;
+        public int userId;
+        public int pkgA;
+        public int pkgB;
+        public float score;
+        public float threshold;
+        public byte verdict;
+        public byte action;
+    }
+
+    /** Copies record seq into out; false if it was overwritten or is still being written. */
+    public boolean read(long seq, Record out) {
+        final int slot = (int) (seq & mMask);
+        if (mStamp.get(slot) != seq) return false;
+        out.seq = seq;
+        out.wallMs = mWallMs[slot];
+        out.userId = mUserId[slot];
+        out.pkgA = mPkgA[slot];
+        out.pkgB = mPkgB[slot];
+        out.score = mScore[slot];
+        out.threshold = mThreshold[slot];
+        out.verdict = mVerdict[slot];
+        out.action = mAction[slot];
+        // field loads above must complete before the stamp is re-checked
+        VarHandle.loadLoadFence();
+        return mStamp.get(slot) == seq;
+    }
+
+    /** Newest up to max records, oldest first, decoded with the dictionary. */
+    public void dump(PrintWriter pw, String prefix, int max) {
+        final long end = mNext.get();
+        final long start = Math.max(0, end - Math.min(max, capacity()));
+        pw.println(prefix + "DecisionTrace: records=" + end + " capacity=" + capacity()
+                + " showing=" + (end - start));
+        final SimpleDateFormat fmt = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
+        final Record r = new Record();
+        for (long seq = start; seq < end; seq++) {
+            if (!read(seq, r)) continue;
+            pw.println(prefix + "  " + fmt.format(new Date(r.wallMs))
+                    + " u" + r.userId
+                    + " " + nameOf(r.pkgA) + " -> " + nameOf(r.pkgB)
+                    + " p=" + r.score + " thr=" + r.threshold
+                    + " " + verdictToString(r.verdict) + " " + actionToString(r.action));
+        }
+    }
+
+    /**
+     * Writes the current records plus the names they reference, for offline replay:
+     * magic, version, n, n x (wallMs, userId, a, b, score, threshold, verdict, action),
+     * then names as (varint count, count x (varint id, UTF name)).
+     */
+    public boolean exportTo(AtomicFile file) {
+        final long end = mNext.get();
+        final long start = Math.max(0, end - capacity());
+        final ArraySet<Integer> ids = new ArraySet<>();
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(EXPORT_MAGIC);
+            out.writeInt(EXPORT_VERSION);
+            // copy first so the count is exact; slots overwritten meanwhile are skipped
+            int n = 0;
+            Record[] recs = new Record[(int) (end - start)];
+            for (long seq = start; seq < end; seq++) {
+                Record rec = new Record();
+                if (read(seq, rec)) recs[n++] = rec;
+            }
+            out.writeInt(n);
+            for (int i = 0; i < n; i++) {
+                Record rec = recs[i];
+                out.writeLong(rec.wallMs);
+                out.writeInt(rec.userId);
+                out.writeInt(rec.pkgA);
+                out.writeInt(rec.pkgB);
+                out.writeFloat(rec.score);
+                out.writeFloat(rec.threshold);
+                out.writeByte(rec.verdict);
+                out.writeByte(rec.action);
+                if (rec.pkgA != NO_PKG) ids.add(rec.pkgA);
+                if (rec.pkgB != NO_PKG) ids.add(rec.pkgB);
+            }
+            VarInt.write(out, ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                int id = ids.valueAt(i);
+                String name = mDict.nameOf(id);
+                VarInt.write(out, id);
+                out.writeUTF(name != null ? name : "#" + id);
+            }
+            out.flush();
+            file.finishWrite(fos);
+            return true;
+        } catch (IOException e) {
+            Slog.w(TAG, "export failed", e);
+            if (fos != null) file.failWrite(fos);
+            return false;
+        }
+    }
+
+    private String nameOf(int id) {
+        if (id == NO_PKG) return "-";
+        String name = mDict.nameOf(id);
+        return name != null ? name : "#" + id;
+    }
+
+    public static String verdictToString(byte v) {
+        switch (v) {
+            case VERDICT_ALLOWED: return "allowed";
+            case VERDICT_BELOW_THRESHOLD: return "below_threshold";
+            case VERDICT_COOLDOWN: return "cooldown";
+            case VERDICT_ANTI_LOOP: return "anti_loop";
+            case VERDICT_ALREADY_TOP: return "already_top";
+            case VERDICT_DISABLED: return "disabled";
+            case VERDICT_INVALID: return "invalid";
+            case VERDICT_BACKOFF: return "backoff";
+            case VERDICT_LOW_BATTERY: return "low_battery";
+            case VERDICT_USER_BUDGET: return "user_budget";
+            case VERDICT_TARGET_BUDGET: return "target_budget";
+            case VERDICT_UNCALIBRATED: return "uncalibrated";
+            default: return "verdict" + v;
+        }
+    }
+
+    public static String actionToString(byte a) {
+        switch (a) {
+            case ACTION_NONE: return "none";
+            case ACTION_LAUNCH: return "launch";
+            case ACTION_PREWARM: return "prewarm";
+            default: return "action" + a;
+        }
+    }
+}
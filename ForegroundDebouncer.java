@@ -0,0 +1,151 @@
+package com.android.server.maxpower.chain;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.ArraySet;
+
+import java.io.PrintWriter;
+
+/**
+ * Collapses bursts of foreground changes into settled A -> B transitions.
+ *
+ * A raw foreground change becomes the candidate; it is forwarded only if nothing else came to
+ * the foreground within the settle window. So splash/trampoline hops, permission dialogs and
+ * quick back-and-forth (A -> B -> A) never reach prediction or training. Self-to-self and
+ * known trampoline packages are dropped outright.
+ *
+ * Listener is called on the debouncer's looper with the payload of the settled raw event.
+ */
+public final class ForegroundDebouncer<T> {
+    private static final String TAG = "ForegroundDebouncer";
+
+    public interface Listener<T> {
+        /** from is the previous settled app (null for the first one). */
+        void onSettled(String from, String to, int userId, T payload);
+    }
+
+    private final Handler mHandler;
+    private final Listener<T> mListener;
+    private final Runnable mSettleRunnable = this::settle;
+
+    private final Object mLock = new Object();
+    private long mSettleMs;
+    private ArraySet<String> mTrampolines = new ArraySet<>();
+
+    // last forwarded foreground
+    private String mSettledPkg;
+    private int mSettledUserId;
+
+    // pending candidate (null = none)
+    private String mCandPkg;
+    private int mCandUserId;
+    private T mCandPayload;
+
+    // metrics (guarded by mLock)
+    private long mRaw;
+    private long mDroppedSelf;
+    private long mDroppedTrampoline;
+    private long mCollapsed;
+    private long mForwarded;
+
+    public ForegroundDebouncer(long settleMs, Listener<T> listener) {
+        this(settleMs, listener, startThread().getLooper());
+    }
+
+    public ForegroundDebouncer(long settleMs, Listener<T> listener, Looper looper) {
+        mSettleMs = settleMs;
+        mListener = listener;
+        mHandler = new Handler(looper);
+    }
+
+    private static HandlerThread startThread() {
+        HandlerThread t = new HandlerThread(TAG, Process.THREAD_PRIORITY_FOREGROUND);
+        t.start();
+        return t;
+    }
+
+    public void setSettleMs(long settleMs) {
+        synchronized (mLock) { mSettleMs = settleMs; }
+    }
+
+    /** Packages that only bounce to another activity (splash, share sheets, resolvers). */
+    public void setTrampolinePackages(ArraySet<String> pkgs) {
+        synchronized (mLock) { mTrampolines = new ArraySet<>(pkgs); }
+    }
+
+    public boolean isTrampoline(String pkg) {
+        synchronized (mLock) { return mTrampolines.contains(pkg); }
+    }
+
+    /** Raw foreground change; cheap, called from any thread. */
+    public void onForegroundChanged(String topPkg, int userId, T payload) {
+        if (topPkg == null) return;
+        synchronized (mLock) {
+            mRaw++;
+            if (mTrampolines.contains(topPkg)) {
+                mDroppedTrampoline++;
+                return;
+            }
+            if (mCandPkg != null) {
+                if (topPkg.equals(mCandPkg) && userId == mCandUserId) {
+                    mDroppedSelf++;
+                    return;
+                }
+                // candidate replaced before it settled
+                mCollapsed++;
+            }
+            mHandler.removeCallbacks(mSettleRunnable);
+            if (topPkg.equals(mSettledPkg) && userId == mSettledUserId) {
+                // back where we were: nothing to forward
+                if (mCandPkg == null) mDroppedSelf++;
+                clearCandidateLocked();
+                return;
+            }
+            mCandPkg = topPkg;
+            mCandUserId = userId;
+            mCandPayload = payload;
+            mHandler.postAtTime(mSettleRunnable, SystemClock.uptimeMillis() + mSettleMs);
+        }
+    }
+
+    private void settle() {
+        final String from;
+        final String to;
+        final int userId;
+        final T payload;
+        synchronized (mLock) {
+            if (mCandPkg == null) return;
+            from = mCandUserId == mSettledUserId ? mSettledPkg : null;
+            to = mCandPkg;
+            userId = mCandUserId;
+            payload = mCandPayload;
+            mSettledPkg = to;
+            mSettledUserId = userId;
+            clearCandidateLocked();
+            mForwarded++;
+        }
+        mListener.onSettled(from, to, userId, payload);
+    }
+
+    private void clearCandidateLocked() {
+        mCandPkg = null;
+        mCandPayload = null;
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.println(prefix + "ForegroundDebouncer: settleMs=" + mSettleMs
+                    + " trampolines=" + mTrampolines.size());
+            pw.println(prefix + "  raw=" + mRaw
+                    + " forwarded=" + mForwarded
+                    + " collapsed=" + mCollapsed
+                    + " droppedSelf=" + mDroppedSelf
+                    + " droppedTrampoline=" + mDroppedTrampoline
+                    + " settled=" + mSettledPkg
+                    + (mCandPkg != null ? " candidate=" + mCandPkg : ""));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.android.server.maxpower.chain;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * FTRL-Proximal (McMahan et al.): per-coordinate AdaGrad-style rates plus L1, which keeps
+ * weights of rarely useful features at exactly 0 (sparse model, compact storage).
+ *
+ * The weight is a closed form of (z, n); the passed-in weight only enters z. Lazy decay of
+ * the model therefore fades FTRL weights between updates but not the accumulators.
+ */
+public final class FtrlOptimizer implements Optimizer {
+    private static final float ALPHA = 0.3f;
+    private static final float BETA = 1f;
+    private static final float L1 = 0.05f;
+    private static final float L2 = 1e-3f;
+
+    // sparse: only touched coordinates carry state
+    private final HashedWeights mZ;
+    private final HashedWeights mN;
+
+    public FtrlOptimizer(int dim) {
+        mZ = new HashedWeights(dim);
+        mN = new HashedWeights(dim);
+    }
+
+    @Override
+    public int type() { return TYPE_FTRL; }
+
+    @Override
+    public float step(int k, float w, float g) {
+        float n = mN.get(k);
+        float nNew = n + g * g;
+        float sigma = ((float) Math.sqrt(nNew) - (float) Math.sqrt(n)) / ALPHA;
+        float z = mZ.get(k) + g - sigma * w;
+        mZ.set(k, z);
+        mN.set(k, nNew);
+
+        if (Math.abs(z) <= L1) return 0f;
+        float sign = z < 0 ? -1f : 1f;
+        return -(z - sign * L1) / ((BETA + (float) Math.sqrt(nNew)) / ALPHA + L2);
+    }
+
+    @Override
+    public void reset(int k) {
+        // the weight is a function of (z, n): both must go or it comes back on the next step
+        mZ.set(k, 0f);
+        mN.set(k, 0f);
+    }
+
+    @Override
+    public void writeState(DataOutputStream out) throws IOException {
+        mZ.writeTo(out);
+        mN.writeTo(out);
+    }
+
+    @Override
+    public void readState(DataInputStream in) throws IOException {
+        mZ.readFrom(in);
+        mN.readFrom(in);
+    }
+}
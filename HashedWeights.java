@@ -0,0 +1,206 @@
+package com.android.server.maxpower.chain;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Weight vector over a hashed feature space [0, dim).
+ *
+ * Sparse while few features are active: open-addressing int -> float map with linear probing
+ * and backward-shift deletion (no tombstones). Setting a weight to 0 removes it. Once more than
+ * DENSE_ABOVE of the space is non-zero, switches to a plain float[] (cheaper at that density).
+ * Heap and file size follow the number of learned features, not 2^pow2.
+ *
+ * Not thread-safe: guard with the owner's lock.
+ */
+public final class HashedWeights {
+    // sparse slot = key + value = 8 bytes at <= 50% load => ~16 bytes/entry vs 4 bytes dense
+    private static final float DENSE_ABOVE = 0.25f;
+    private static final int MIN_CAPACITY = 16;
+
+    private final int mDim;
+
+    // sparse mode: mKeys[i] = key + 1, 0 = empty slot
+    private int[] mKeys;
+    private float[] mVals;
+    private int mSize;
+
+    // dense mode (non-null once switched)
+    private float[] mDense;
+    private int mDenseNonZero;
+
+    public HashedWeights(int dim) {
+        mDim = dim;
+        mKeys = new int[MIN_CAPACITY];
+        mVals = new float[MIN_CAPACITY];
+    }
+
+    public int dimension() {
+        return mDim;
+    }
+
+    public boolean isDense() {
+        return mDense != null;
+    }
+
+    public int nonZeroCount() {
+        return mDense != null ? mDenseNonZero : mSize;
+    }
+
+    public float get(int k) {
+        if (mDense != null) return mDense[k];
+        int slot = findSlot(k);
+        return slot < 0 ? 0f : mVals[slot];
+    }
+
+    public void set(int k, float v) {
+        if (mDense != null) {
+            float old = mDense[k];
+            if (old == 0f && v != 0f) mDenseNonZero++;
+            else if (old != 0f && v == 0f) mDenseNonZero--;
+            mDense[k] = v;
+            return;
+        }
+        if (v == 0f) {
+            int slot = findSlot(k);
+            if (slot >= 0) removeSlot(slot);
+            return;
+        }
+        put(k, v);
+        if (mSize > mDim * DENSE_ABOVE) toDense();
+    }
+
+    public void clear() {
+        mDense = null;
+        mDenseNonZero = 0;
+        mKeys = new int[MIN_CAPACITY];
+        mVals = new float[MIN_CAPACITY];
+        mSize = 0;
+    }
+
+    /** Approximate heap used by the weights. */
+    public long memoryBytes() {
+        return mDense != null ? 4L * mDense.length : 8L * mKeys.length;
+    }
+
+    // -------- serialization: only non-zero entries --------
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(mDim);
+        out.writeInt(nonZeroCount());
+        if (mDense != null) {
+            for (int k = 0; k < mDense.length; k++) {
+                if (mDense[k] == 0f) continue;
+                out.writeInt(k);
+                out.writeFloat(mDense[k]);
+            }
+        } else {
+            for (int i = 0; i < mKeys.length; i++) {
+                if (mKeys[i] == 0) continue;
+                out.writeInt(mKeys[i] - 1);
+                out.writeFloat(mVals[i]);
+            }
+        }
+    }
+
+    /** Returns false (and stays empty) if the file was written for another dimension. */
+    public boolean readFrom(DataInputStream in) throws IOException {
+        clear();
+        int dim = in.readInt();
+        int n = in.readInt();
+        if (dim != mDim) {
+            // hashed indices mean nothing in another space; skip payload
+            for (int i = 0; i < n; i++) {
+                in.readInt();
+                in.readFloat();
+            }
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            int k = in.readInt();
+            float v = in.readFloat();
+            if (k >= 0 && k < mDim) set(k, v);
+        }
+        return true;
+    }
+
+    // -------- open addressing --------
+
+    private int home(int k, int mask) {
+        return (k * 0x9E3779B9) >>> 7 & mask;
+    }
+
+    private int findSlot(int k) {
+        final int mask = mKeys.length - 1;
+        final int stored = k + 1;
+        int i = home(k, mask);
+        while (true) {
+            int key = mKeys[i];
+            if (key == 0) return -1;
+            if (key == stored) return i;
+            i = (i + 1) & mask;
+        }
+    }
+
+    private void put(int k, float v) {
+        if ((mSize + 1) * 2 > mKeys.length) resize(mKeys.length * 2);
+        final int mask = mKeys.length - 1;
+        final int stored = k + 1;
+        int i = home(k, mask);
+        while (mKeys[i] != 0) {
+            if (mKeys[i] == stored) {
+                mVals[i] = v;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        mKeys[i] = stored;
+        mVals[i] = v;
+        mSize++;
+    }
+
+    /** Backward-shift deletion: pull later cluster members into the hole. */
+    private void removeSlot(int hole) {
+        final int mask = mKeys.length - 1;
+        int j = hole;
+        while (true) {
+            j = (j + 1) & mask;
+            int key = mKeys[j];
+            if (key == 0) break;
+            int h = home(key - 1, mask);
+            // entry at j may move to hole only if its home is not cyclically in (hole, j]
+            boolean inRange = hole <= j ? (h > hole && h <= j) : (h > hole || h <= j);
+            if (inRange) continue;
+            mKeys[hole] = key;
+            mVals[hole] = mVals[j];
+            hole = j;
+        }
+        mKeys[hole] = 0;
+        mVals[hole] = 0f;
+        mSize--;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = mKeys;
+        float[] oldVals = mVals;
+        mKeys = new int[capacity];
+        mVals = new float[capacity];
+        mSize = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) put(oldKeys[i] - 1, oldVals[i]);
+        }
+    }
+
+    private void toDense() {
+        float[] dense = new float[mDim];
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mKeys[i] != 0) dense[mKeys[i] - 1] = mVals[i];
+        }
+        mDenseNonZero = mSize;
+        mDense = dense;
+        mKeys = null;
+        mVals = null;
+        mSize = 0;
+    }
+}
@@ -0,0 +1,252 @@
+package com.android.server.maxpower.chain;
+
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Idle training in resumable slices.
+ *
+ * The transition buffer is drained once into a batch file; each slice trains from the persisted
+ * cursor in chunks until the CPU budget is used or the job is stopped, then saves the model and
+ * the cursor. The next slice resumes there, so a large backlog is spread over several idle
+ * windows and a stopped job loses at most one chunk.
+ *
+ * Order on drain: batch file first, then the buffer is persisted empty. A crash in between
+ * trains those pairs twice once; never loses them.
+ *
+ * One slice at a time (runSlice is serialized); the model must not be trained elsewhere.
+ */
+public final class IncrementalTrainer {
+    private static final String TAG = "IncrementalTrainer";
+
+    private static final int BATCH_MAGIC = 0x54524E42; // "TRNB"
+    private static final int VERSION = 1;
+    private static final int CHUNK_PAIRS = 16;
+
+    public static final int RESULT_NOTHING = 0; // buffer was empty
+    public static final int RESULT_DONE = 1;    // batch finished
+    public static final int RESULT_MORE = 2;    // budget/stop hit; resume next slice
+
+    private final TransitionBufferStore mBuffer;
+    private final BatchTrainer mTrainer;
+    private final TinyNextAppModel mModel;
+    private final ModelStoreProto mModelStore;
+    private final CandidateProvider mCandidates;
+    private final int mUserId;
+
+    private final AtomicFile mBatchFile;
+    private final AtomicFile mCursorFile;
+
+    private final Object mRunLock = new Object();
+
+    // loaded batch (null = none / not read yet)
+    private long mBatchId;
+    private String[] mA;
+    private String[] mB;
+    private int[] mCount;
+    private int mCursor;
+
+    // stats
+    private long mSlices;
+    private long mPairsTrained;
+    private long mBatchesDone;
+    private long mLastSliceCpuMs;
+
+    public IncrementalTrainer(TransitionBufferStore buffer, BatchTrainer trainer,
+            TinyNextAppModel model, ModelStoreProto modelStore, CandidateProvider candidates,
+            int userId, AtomicFile batchFile) {
+        mBuffer = buffer;
+        mTrainer = trainer;
+        mModel = model;
+        mModelStore = modelStore;
+        mCandidates = candidates;
+        mUserId = userId;
+        mBatchFile = batchFile;
+        mCursorFile = new AtomicFile(new File(batchFile.getBaseFile().getPath() + ".cursor"));
+    }
+
+    /**
+     * Trains until cpuBudgetMs of this thread's CPU time is used or stop is set.
+     * Returns RESULT_*.
+     */
+    public int runSlice(long cpuBudgetMs, AtomicBoolean stop) {
+        synchronized (mRunLock) {
+            final long cpuStart = SystemClock.currentThreadTimeMillis();
+            if (mA == null && !readBatch() && !drainToBatch()) return RESULT_NOTHING;
+
+            List<String> cand = mCandidates.getCandidates(mUserId);
+            final int startCursor = mCursor;
+            while (mCursor < mA.length) {
+                if (stop.get()) break;
+                if (SystemClock.currentThreadTimeMillis() - cpuStart >= cpuBudgetMs) break;
+                int end = Math.min(mA.length, mCursor + CHUNK_PAIRS);
+                for (int i = mCursor; i < end; i++) {
+                    mTrainer.trainPair(mA[i], mB[i], mCount[i], cand);
+                }
+                mCursor = end;
+            }
+
+            mSlices++;
+            mPairsTrained += mCursor - startCursor;
+            mLastSliceCpuMs = SystemClock.currentThreadTimeMillis() - cpuStart;
+
+            // model before cursor: a crash in between retrains a chunk, never skips one
+            if (mCursor > startCursor) mModelStore.saveFrom(mModel);
+            if (mCursor >= mA.length) {
+                mBatchFile.delete();
+                mCursorFile.delete();
+                mA = null;
+                mB = null;
+                mCount = null;
+                mBatchesDone++;
+                return RESULT_DONE;
+            }
+            writeCursor();
+            return RESULT_MORE;
+        }
+    }
+
+    // -------- batch / cursor files --------
+
+    private boolean drainToBatch() {
+        ArrayMap<String, Integer> counts = mBuffer.drainAndClear();
+        int n = 0;
+        for (int i = 0; i < counts.size(); i++) if (counts.valueAt(i) > 0) n++;
+        if (n == 0) return false;
+
+        String[] a = new String[n];
+        String[] b = new String[n];
+        int[] c = new int[n];
+        int j = 0;
+        for (int i = 0; i < counts.size(); i++) {
+            int v = counts.valueAt(i);
+            if (v <= 0) continue;
+            String[] ab = TransitionBufferStore.splitKey(counts.keyAt(i));
+            a[j] = ab[0];
+            b[j] = ab[1];
+            c[j] = v;
+            j++;
+        }
+        mA = a;
+        mB = b;
+        mCount = c;
+        mCursor = 0;
+        mBatchId = SystemClock.elapsedRealtime() ^ ((long) n << 32);
+        if (writeBatch()) {
+            mBuffer.persistEmpty();
+        } else {
+            // still trainable from memory; a crash before it finishes loses this batch
+            Slog.w(TAG, "batch not persisted; training from memory");
+        }
+        return true;
+    }
+
+    private boolean writeBatch() {
+        FileOutputStream fos = null;
+        try {
+            fos = mBatchFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(BATCH_MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mBatchId);
+            out.writeInt(mA.length);
+            for (int i = 0; i < mA.length; i++) {
+                out.writeUTF(mA[i]);
+                out.writeUTF(mB[i]);
+                out.writeInt(mCount[i]);
+            }
+            out.flush();
+            mBatchFile.finishWrite(fos);
+            return true;
+        } catch (IOException e) {
+            Slog.w(TAG, "batch write failed", e);
+            if (fos != null) mBatchFile.failWrite(fos);
+            return false;
+        }
+    }
+
+    private boolean readBatch() {
+        try (FileInputStream fis = mBatchFile.openRead();
+             DataInputStream in = new DataInputStream(new BufferedInputStream(fis))) {
+            if (in.readInt() != BATCH_MAGIC || in.readInt() != VERSION) {
+                mBatchFile.delete();
+                return false;
+            }
+            long id = in.readLong();
+            int n = in.readInt();
+            String[] a = new String[n];
+            String[] b = new String[n];
+            int[] c = new int[n];
+            for (int i = 0; i < n; i++) {
+                a[i] = in.readUTF();
+                b[i] = in.readUTF();
+                c[i] = in.readInt();
+            }
+            mBatchId = id;
+            mA = a;
+            mB = b;
+            mCount = c;
+            mCursor = readCursor(id, n);
+            Slog.i(TAG, "resume batch pairs=" + n + " cursor=" + mCursor);
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            Slog.w(TAG, "batch read failed; dropping", e);
+            mBatchFile.delete();
+            mCursorFile.delete();
+            return false;
+        }
+    }
+
+    private int readCursor(long batchId, int n) {
+        try (FileInputStream fis = mCursorFile.openRead();
+             DataInputStream in = new DataInputStream(fis)) {
+            if (in.readLong() != batchId) return 0; // cursor of an older batch
+            int cursor = in.readInt();
+            return cursor < 0 || cursor > n ? 0 : cursor;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void writeCursor() {
+        FileOutputStream fos = null;
+        try {
+            fos = mCursorFile.startWrite();
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeLong(mBatchId);
+            out.writeInt(mCursor);
+            out.flush();
+            mCursorFile.finishWrite(fos);
+        } catch (IOException e) {
+            Slog.w(TAG, "cursor write failed", e);
+            if (fos != null) mCursorFile.failWrite(fos);
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mRunLock) {
+            pw.println(prefix + "IncrementalTrainer: slices=" + mSlices
+                    + " pairsTrained=" + mPairsTrained
+                    + " batchesDone=" + mBatchesDone
+                    + " lastSliceCpuMs=" + mLastSliceCpuMs
+                    + (mA != null ? " batch=" + mCursor + "/" + mA.length : " batch=none"));
+        }
+    }
+}
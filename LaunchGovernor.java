@@ -0,0 +1,257 @@
+package com.android.server.maxpower.chain;
+
+import android.content.Context;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+
+/**
+ * Energy budget for auto-launches: token buckets per user and per (user, target package).
+ *
+ * Every launch costs one token from both buckets. Buckets refill continuously at
+ * cfg.userPerHour / cfg.targetPerHour, scaled by the current power state: twice as fast while
+ * charging, half as fast when the battery is within twice cfg.lowBatteryPct, not at all with
+ * the screen off. Below cfg.lowBatteryPct (not charging) nothing launches. cfg.cooldownMs
+ * stays as the minimum gap between two launches of the same user.
+ *
+ * Refill is lazy (computed on access), but every bucket is settled with the old factor
+ * before the factor changes, so each interval is credited at the rate that applied during
+ * it. Hosts call onPowerStateChanged() on screen and charger broadcasts; check() also settles
+ * when it sees a different factor (e.g. the battery crossed the low threshold). Target
+ * buckets are bounded at MAX_TARGETS; a full bucket is evicted first since it is the same as
+ * a new one.
+ */
+public final class LaunchGovernor {
+    private static final int MAX_TARGETS = 128;
+    private static final float CHARGING_FACTOR = 2f;
+    private static final float LOW_BATTERY_FACTOR = 0.5f;
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    /** Injectable power source; see systemPowerState(). */
+    public interface PowerState {
+        int batteryPercent();
+        boolean isCharging();
+        boolean isInteractive();
+    }
+
+    /** Always full, charging, screen on: the budget alone limits launches. */
+    public static final PowerState UNCONSTRAINED = new PowerState() {
+        @Override
+        public int batteryPercent() { return 100; }
+
+        @Override
+        public boolean isCharging() { return true; }
+
+        @Override
+        public boolean isInteractive() { return true; }
+    };
+
+    public static PowerState systemPowerState(Context context) {
+        final BatteryManager battery = context.getSystemService(BatteryManager.class);
+        final PowerManager power = context.getSystemService(PowerManager.class);
+        return new PowerState() {
+            @Override
+            public int batteryPercent() {
+                return battery.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
+            }
+
+            @Override
+            public boolean isCharging() { return battery.isCharging(); }
+
+            @Override
+            public boolean isInteractive() { return power.isInteractive(); }
+        };
+    }
+
+    private static final class Bucket {
+        float tokens;
+        long refilledAt;
+        long lastLaunchAt = Long.MIN_VALUE / 2;
+
+        Bucket(float tokens, long now) {
+            this.tokens = tokens;
+            this.refilledAt = now;
+        }
+
+        void refill(int burst, float perHour, float factor, long now) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) * perHour * factor / HOUR_MS);
+            refilledAt = now;
+        }
+    }
+
+    private volatile PowerState mPower;
+    private volatile ChainConfig mConfig = ChainConfig.DEFAULT;
+
+    private final Object mLock = new Object();
+    private final SparseArray<Bucket> mUsers = new SparseArray<>();
+    private final ArrayMap<String, Bucket> mTargets = new ArrayMap<>();
+    // decisions per DecisionTrace verdict
+    private final long[] mReasons = new long[DecisionTrace.VERDICT_TARGET_BUDGET + 1];
+    // refill factor in effect since the last settle (guarded by mLock)
+    private float mFactor;
+    private long mSettles;
+
+    public LaunchGovernor(PowerState power) {
+        mPower = power;
+        mFactor = factorOf(ChainConfig.DEFAULT, power);
+    }
+
+    /** Replaces the power source; buckets are settled at the old rate first. */
+    public void setPowerState(PowerState power, long nowUptime) {
+        mPower = power;
+        onPowerStateChanged(nowUptime);
+    }
+
+    /** Screen or charger changed: settle every bucket at the old rate, then switch. */
+    public void onPowerStateChanged(long nowUptime) {
+        final ChainConfig cfg = mConfig;
+        final float factor = factorOf(cfg, mPower);
+        synchronized (mLock) {
+            settleLocked(cfg, factor, nowUptime);
+        }
+    }
+
+    /** Budget, refill and cooldown fields of cfg; called on every config change. */
+    public void setConfig(ChainConfig cfg) {
+        mConfig = cfg;
+    }
+
+    /** VERDICT_ALLOWED, or the first budget that is exhausted. */
+    public byte check(int userId, String pkgB, long nowUptime) {
+        final ChainConfig cfg = mConfig;
+        final PowerState power = mPower;
+        final boolean charging = power.isCharging();
+        final int battery = power.batteryPercent();
+        final float factor = refillFactor(cfg, charging, battery, power.isInteractive());
+        synchronized (mLock) {
+            // missed broadcast or battery level: credit the time so far at the old rate
+            if (factor != mFactor) settleLocked(cfg, factor, nowUptime);
+            final byte verdict;
+            if (!charging && battery < cfg.lowBatteryPct) {
+                verdict = DecisionTrace.VERDICT_LOW_BATTERY;
+            } else {
+                Bucket user = userLocked(userId, cfg, nowUptime);
+                user.refill(cfg.userBurst, cfg.userPerHour, mFactor, nowUptime);
+                Bucket target = targetLocked(userId, pkgB, cfg, nowUptime);
+                target.refill(cfg.targetBurst, cfg.targetPerHour, mFactor, nowUptime);
+                if (nowUptime - user.lastLaunchAt < cfg.cooldownMs) {
+                    verdict = DecisionTrace.VERDICT_COOLDOWN;
+                } else if (user.tokens < 1f) {
+                    verdict = DecisionTrace.VERDICT_USER_BUDGET;
+                } else if (target.tokens < 1f) {
+                    verdict = DecisionTrace.VERDICT_TARGET_BUDGET;
+                } else {
+                    verdict = DecisionTrace.VERDICT_ALLOWED;
+                }
+            }
+            mReasons[verdict]++;
+            return verdict;
+        }
+    }
+
+    /** Charges both buckets; call right after a launch check() allowed. */
+    public void onLaunched(int userId, String pkgB, long nowUptime) {
+        final ChainConfig cfg = mConfig;
+        synchronized (mLock) {
+            Bucket user = userLocked(userId, cfg, nowUptime);
+            user.tokens = Math.max(0f, user.tokens - 1f);
+            user.lastLaunchAt = nowUptime;
+            Bucket target = targetLocked(userId, pkgB, cfg, nowUptime);
+            target.tokens = Math.max(0f, target.tokens - 1f);
+            target.lastLaunchAt = nowUptime;
+        }
+    }
+
+    private void settleLocked(ChainConfig cfg, float factor, long now) {
+        if (factor == mFactor) return;
+        for (int i = 0; i < mUsers.size(); i++) {
+            mUsers.valueAt(i).refill(cfg.userBurst, cfg.userPerHour, mFactor, now);
+        }
+        for (int i = 0; i < mTargets.size(); i++) {
+            mTargets.valueAt(i).refill(cfg.targetBurst, cfg.targetPerHour, mFactor, now);
+        }
+        mFactor = factor;
+        mSettles++;
+    }
+
+    private static float factorOf(ChainConfig cfg, PowerState power) {
+        return refillFactor(cfg, power.isCharging(), power.batteryPercent(),
+                power.isInteractive());
+    }
+
+    static float refillFactor(ChainConfig cfg, boolean charging, int battery,
+            boolean interactive) {
+        if (!interactive) return 0f;
+        if (charging) return CHARGING_FACTOR;
+        if (battery < 2 * cfg.lowBatteryPct) return LOW_BATTERY_FACTOR;
+        return 1f;
+    }
+
+    private Bucket userLocked(int userId, ChainConfig cfg, long now) {
+        Bucket b = mUsers.get(userId);
+        if (b == null) {
+            b = new Bucket(cfg.userBurst, now);
+            mUsers.put(userId, b);
+        }
+        return b;
+    }
+
+    private Bucket targetLocked(int userId, String pkgB, ChainConfig cfg, long now) {
+        final String key = pkgB + '\0' + userId;
+        Bucket b = mTargets.get(key);
+        if (b != null) return b;
+        if (mTargets.size() >= MAX_TARGETS) {
+            // evict the fullest bucket: forgetting it costs the least budget accuracy
+            int victim = 0;
+            float most = -1f;
+            for (int i = 0; i < mTargets.size(); i++) {
+                Bucket t = mTargets.valueAt(i);
+                t.refill(cfg.targetBurst, cfg.targetPerHour, mFactor, now);
+                if (t.tokens > most) {
+                    most = t.tokens;
+                    victim = i;
+                }
+            }
+            mTargets.removeAt(victim);
+        }
+        b = new Bucket(cfg.targetBurst, now);
+        mTargets.put(key, b);
+        return b;
+    }
+
+    public void dump(PrintWriter pw, String prefix, long nowUptime) {
+        final ChainConfig cfg = mConfig;
+        final PowerState power = mPower;
+        synchronized (mLock) {
+            pw.println(prefix + "LaunchGovernor: battery=" + power.batteryPercent()
+                    + " charging=" + power.isCharging()
+                    + " interactive=" + power.isInteractive()
+                    + " refillFactor=" + mFactor + " settles=" + mSettles);
+            StringBuilder reasons = new StringBuilder();
+            for (byte v = 0; v < mReasons.length; v++) {
+                if (mReasons[v] == 0) continue;
+                reasons.append(' ').append(DecisionTrace.verdictToString(v))
+                        .append('=').append(mReasons[v]);
+            }
+            pw.println(prefix + "  decisions:" + reasons);
+            for (int i = 0; i < mUsers.size(); i++) {
+                Bucket b = mUsers.valueAt(i);
+                pw.println(prefix + "  user " + mUsers.keyAt(i) + " tokens="
+                        + String.format("%.2f/%d", b.tokens, cfg.userBurst)
+                        + (b.lastLaunchAt > 0
+                                ? " lastLaunchAgoMs=" + (nowUptime - b.lastLaunchAt) : ""));
+            }
+            for (int i = 0; i < mTargets.size(); i++) {
+                String key = mTargets.keyAt(i);
+                int sep = key.indexOf('\0');
+                Bucket b = mTargets.valueAt(i);
+                pw.println(prefix + "  target " + key.substring(0, sep)
+                        + " u" + key.substring(sep + 1) + " tokens="
+                        + String.format("%.2f/%d", b.tokens, cfg.targetBurst));
+            }
+        }
+    }
+}
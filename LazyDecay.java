@@ -0,0 +1,93 @@
+package com.android.server.maxpower.chain;
+
+/**
+ * O(1) global exponential decay for weight tables.
+ *
+ * effective = stored * scale, where scale shrinks on every decay step. Each entry remembers
+ * the generation it was last written in; decay is only materialized when the entry is read
+ * or written. When scale gets small it is renormalized in O(1) by starting a new generation:
+ * entries one generation behind are still readable, older ones read as zero (= evicted on
+ * next touch). That drop is policy, not a bound: after two renormalizations they have decayed
+ * by at least RENORM_BELOW, but a large stored weight can still be above mEvictBelow.
+ *
+ * Not thread-safe: guard with the owner's lock.
+ */
+public final class LazyDecay {
+    // keep stored values within float precision: fold scale before it gets smaller than this
+    private static final double RENORM_BELOW = 1e-4;
+
+    private final long mHalfLifeMs; // 0 = only explicit decay(factor)
+    private final float mEvictBelow;
+
+    private double mScale = 1.0;
+    private double mPrevGenScale = 0.0; // final scale of the previous generation
+    private int mGen = 1;               // 0 is reserved for "never written"
+    private long mLastAdvanceMs = -1;
+
+    /**
+     * @param halfLifeMs time-based half life for advanceTo(); 0 disables it.
+     * @param evictBelow |effective| under this reads as 0.
+     */
+    public LazyDecay(long halfLifeMs, float evictBelow) {
+        mHalfLifeMs = halfLifeMs;
+        mEvictBelow = evictBelow;
+    }
+
+    /** Multiply every entry by factor (0 < factor <= 1). O(1). */
+    public void decay(double factor) {
+        if (!(factor > 0.0) || factor >= 1.0) return;
+        mScale *= factor;
+        if (mScale < RENORM_BELOW) {
+            mPrevGenScale = mScale;
+            mScale = 1.0;
+            mGen++;
+        }
+    }
+
+    /** Time-based decay up to nowMs (monotonic clock). Cheap when called often. */
+    public void advanceTo(long nowMs) {
+        if (mHalfLifeMs <= 0) return;
+        if (mLastAdvanceMs < 0) {
+            mLastAdvanceMs = nowMs;
+            return;
+        }
+        long dt = nowMs - mLastAdvanceMs;
+        // below ~1/1000 of a half life the factor is ~1; wait and decay in one step
+        if (dt < mHalfLifeMs / 1000) return;
+        mLastAdvanceMs = nowMs;
+        decay(Math.pow(0.5, (double) dt / mHalfLifeMs));
+    }
+
+    /** Current generation; store it next to the value on every write. */
+    public int generation() {
+        return mGen;
+    }
+
+    public float effective(float stored, int gen) {
+        final double v;
+        if (gen == mGen) {
+            v = stored * mScale;
+        } else if (gen == mGen - 1) {
+            v = stored * mPrevGenScale * mScale;
+        } else {
+            return 0f;
+        }
+        return Math.abs(v) < mEvictBelow ? 0f : (float) v;
+    }
+
+    /** Value to store so that effective() returns value in the current generation. */
+    public float toStored(float value) {
+        return (float) (value / mScale);
+    }
+
+    /** Start over at scale 1; entries written before read as 0 until rewritten. */
+    public void reset() {
+        mScale = 1.0;
+        mPrevGenScale = 0.0;
+        mGen++;
+    }
+
+    public double getScale() {
+        return mScale;
+    }
+}
@@ -0,0 +1,390 @@
+package com.android.server.maxpower.chain;
+
+import android.util.AtomicFile;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MonitorInfo;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Macro load test: many threads drive a fully wired AppChainManager (plus the transition
+ * buffer and the checkpoint worker) with a realistic event mix, to judge concurrency changes
+ * end to end rather than per method.
+ *
+ * Mix per event (weights in MIX): raw foreground changes, settled transitions (manager and
+ * buffer, as the service feeds both), launcher launches, package removals / changes, save
+ * requests and the occasional blocking checkpoint. Users and apps are drawn per thread; each
+ * thread walks its own app sequence so transitions repeat and the model learns.
+ *
+ * Stand-ins: fixed candidates instead of PackageManager, a CountingLauncher, a constant top
+ * app, files in a temp directory. The clock is SystemClock as provided by the host stubs.
+ *
+ * Reports sustained events/s, latency percentiles per entry point, time threads spent
+ * blocked on monitors (ThreadMXBean contention monitoring), sampled monitor hold / wait
+ * share per locking method, and GC pauses (GC notifications).
+ *
+ *   java -cp <stubs>:<classes> com.android.server.maxpower.chain.LoadGenerator \
+ *       [threads] [seconds] [apps] [users]
+ */
+public final class LoadGenerator {
+    private static final int OP_FOREGROUND = 0;
+    private static final int OP_TRANSITION = 1;
+    private static final int OP_LAUNCHER = 2;
+    private static final int OP_PACKAGE = 3;
+    private static final int OP_SAVE_REQUEST = 4;
+    private static final int OP_SAVE_NOW = 5;
+    private static final String[] OP_NAMES = {
+            "onForegroundChanged", "onTransition", "onLauncherLaunched", "packageChange",
+            "requestSave", "saveNow",
+    };
+    // relative frequency of each op, in per-mille
+    private static final int[] MIX = {400, 300, 250, 20, 29, 1};
+
+    private static final long SAMPLE_INTERVAL_MS = 10;
+
+    /** Log-linear latency histogram: 16 sub-buckets per power of two of nanoseconds. */
+    private static final class Histogram {
+        private static final int SUB = 16;
+        final long[] counts = new long[64 * SUB];
+        long max;
+        long n;
+
+        void record(long ns) {
+            counts[index(Math.max(1, ns))]++;
+            if (ns > max) max = ns;
+            n++;
+        }
+
+        private static int index(long v) {
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            if (exp < 4) return (int) v;
+            int sub = (int) (v >>> (exp - 4)) & (SUB - 1);
+            return exp * SUB + sub;
+        }
+
+        private static long lowerBound(int idx) {
+            int exp = idx / SUB;
+            if (exp < 4) return idx;
+            return (long) (SUB + idx % SUB) << (exp - 4);
+        }
+
+        void add(Histogram h) {
+            for (int i = 0; i < counts.length; i++) counts[i] += h.counts[i];
+            max = Math.max(max, h.max);
+            n += h.n;
+        }
+
+        long percentile(double p) {
+            long rank = (long) Math.ceil(p * n);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) return lowerBound(i);
+            }
+            return max;
+        }
+    }
+
+    /** One load thread; its histograms and count are read only after join(). */
+    private static final class Worker extends Thread {
+        final Histogram[] latency = new Histogram[OP_NAMES.length];
+        long events;
+        private final Env mEnv;
+        private final Random mRand;
+        private final AtomicBoolean mStop;
+        private final CountDownLatch mStart;
+
+        Worker(int idx, Env env, AtomicBoolean stop, CountDownLatch start) {
+            super("loadgen-" + idx);
+            for (int i = 0; i < latency.length; i++) latency[i] = new Histogram();
+            mEnv = env;
+            mRand = new Random(idx);
+            mStop = stop;
+            mStart = start;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mStart.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            final String[] apps = mEnv.apps;
+            String fg = apps[mRand.nextInt(apps.length)];
+            while (!mStop.get()) {
+                final int op = pick(mRand.nextInt(1000));
+                final int user = mRand.nextInt(mEnv.users);
+                // skewed walk: a few favourite successors per app, sometimes anything
+                final int next = mRand.nextInt(10) < 7
+                        ? (fg.hashCode() & 0x7fffffff) % 5 + mRand.nextInt(2)
+                        : mRand.nextInt(apps.length);
+                final String to = apps[next % apps.length];
+                final long t0 = System.nanoTime();
+                switch (op) {
+                    case OP_FOREGROUND:
+                        mEnv.manager.onForegroundChanged(to, user);
+                        break;
+                    case OP_TRANSITION:
+                        mEnv.manager.onTransition(fg, to, user);
+                        mEnv.buffer.onTransition(fg, to);
+                        fg = to;
+                        break;
+                    case OP_LAUNCHER:
+                        mEnv.manager.onLauncherLaunched(fg, user);
+                        break;
+                    case OP_PACKAGE:
+                        if (mRand.nextBoolean()) {
+                            mEnv.purger.onPackageRemoved(to, user, true);
+                        } else {
+                            mEnv.purger.onPackageChanged(to, user);
+                        }
+                        break;
+                    case OP_SAVE_REQUEST:
+                        mEnv.predictor.maybeSave();
+                        mEnv.worker.requestSave();
+                        break;
+                    case OP_SAVE_NOW:
+                        mEnv.worker.saveNow();
+                        break;
+                }
+                latency[op].record(System.nanoTime() - t0);
+                events++;
+            }
+        }
+
+        private static int pick(int r) {
+            for (int i = 0; i < MIX.length; i++) {
+                if (r < MIX[i]) return i;
+                r -= MIX[i];
+            }
+            return OP_FOREGROUND;
+        }
+    }
+
+    private static final class Env {
+        String[] apps;
+        int users;
+        AppChainManager manager;
+        TinyNextAppPredictorLite predictor;
+        TransitionBufferStore buffer;
+        PersistenceWorker worker;
+        PackagePurger purger;
+        CountingLauncher launcher;
+    }
+
+    /**
+     * Samples which monitors worker threads hold or are blocked on. Most locks are plain
+     * Objects, so a sample is keyed by the method that took (or is entering) the monitor.
+     */
+    private static final class LockSampler extends Thread {
+        final Map<String, long[]> samples = new HashMap<>(); // site -> {held, blocked}
+        long rounds;
+        private final ThreadMXBean mThreads;
+        private final AtomicBoolean mStop;
+
+        LockSampler(ThreadMXBean threads, AtomicBoolean stop) {
+            super("loadgen-sampler");
+            setDaemon(true);
+            mThreads = threads;
+            mStop = stop;
+        }
+
+        @Override
+        public void run() {
+            while (!mStop.get()) {
+                for (ThreadInfo ti : mThreads.dumpAllThreads(true, false)) {
+                    if (ti == null || !ti.getThreadName().startsWith("loadgen-")) continue;
+                    if (ti.getThreadName().equals(getName())) continue;
+                    for (MonitorInfo m : ti.getLockedMonitors()) {
+                        samples.computeIfAbsent(site(m.getLockedStackFrame()),
+                                k -> new long[2])[0]++;
+                    }
+                    StackTraceElement[] stack = ti.getStackTrace();
+                    if (ti.getThreadState() == Thread.State.BLOCKED && stack.length > 0) {
+                        samples.computeIfAbsent(site(stack[0]), k -> new long[2])[1]++;
+                    }
+                }
+                rounds++;
+                try {
+                    Thread.sleep(SAMPLE_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private static String site(StackTraceElement f) {
+            if (f == null) return "?";
+            String cls = f.getClassName();
+            return cls.substring(cls.lastIndexOf('.') + 1) + "." + f.getMethodName();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        final int appCount = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+        final int users = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+
+        final Env env = wire(appCount, users);
+        final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (mx.isThreadContentionMonitoringSupported()) mx.setThreadContentionMonitoringEnabled(true);
+
+        final AtomicLong gcPauses = new AtomicLong();
+        final AtomicLong gcPauseMs = new AtomicLong();
+        final AtomicLong gcMaxPauseMs = new AtomicLong();
+        final NotificationListener gcListener = (notification, handback) -> {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+                    .equals(notification.getType())) return;
+            GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from(
+                    (CompositeData) notification.getUserData());
+            // concurrent cycles don't stop the application
+            if (info.getGcAction().contains("concurrent") || info.getGcName().contains("Cycles")) {
+                return;
+            }
+            long ms = info.getGcInfo().getDuration();
+            gcPauses.incrementAndGet();
+            gcPauseMs.addAndGet(ms);
+            gcMaxPauseMs.accumulateAndGet(ms, Math::max);
+        };
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                ((NotificationEmitter) gc).addNotificationListener(gcListener, null, null);
+            }
+        }
+
+        // warm-up: same load, results discarded
+        run(env, threads, Math.max(1, seconds / 5), mx, null);
+        gcPauses.set(0);
+        gcPauseMs.set(0);
+        gcMaxPauseMs.set(0);
+
+        final StringBuilder out = new StringBuilder();
+        run(env, threads, seconds, mx, out);
+        out.append(String.format("gc: pauses=%d total=%dms max=%dms%n",
+                gcPauses.get(), gcPauseMs.get(), gcMaxPauseMs.get()));
+        out.append("launches=").append(env.launcher.getLaunchCount())
+                .append(" prewarms=").append(env.launcher.getPrewarmCount())
+                .append(" markovRows=").append(env.manager.getMarkovTable().size())
+                .append(" modelUpdates=").append(env.predictor.getUpdateCount()).append('\n');
+        System.out.print(out);
+        System.exit(0);
+    }
+
+    private static Env wire(int appCount, int users) throws IOException {
+        final File dir = Files.createTempDirectory("maxpower-load").toFile();
+        final Env env = new Env();
+        env.users = users;
+        env.apps = new String[appCount];
+        final List<String> apps = new ArrayList<>(appCount);
+        for (int i = 0; i < appCount; i++) {
+            env.apps[i] = "com.example.app" + i;
+            apps.add(env.apps[i]);
+        }
+        final CandidateProvider candidates = new CandidateProvider(userId -> apps);
+        env.predictor = new TinyNextAppPredictorLite(new AtomicFile(new File(dir, "model.bin")));
+        env.launcher = new CountingLauncher();
+        env.manager = new AppChainManager(candidates, env.predictor, new ChainGuard(),
+                env.launcher, userId -> "com.example.launcher", new ChainConfigStore());
+        env.buffer = new TransitionBufferStore(new AtomicFile(new File(dir, "transitions.bin")),
+                500, 200, 1000, TransitionBufferStore.MODE_SPACE_SAVING);
+        env.worker = new PersistenceWorker(new AtomicFile(new File(dir, "checkpoint.bin")));
+        env.predictor.attachTo(env.worker);
+        env.manager.getMarkovTable().attachTo(env.worker);
+        env.manager.getSecondOrderMarkovTable().attachTo(env.worker, "markov2");
+        env.buffer.attachTo(env.worker);
+        env.purger = env.manager.getPackagePurger();
+        env.purger.addStore("transitions", env.buffer, true);
+        return env;
+    }
+
+    /** One timed phase; appends its report to out (null = warm-up). */
+    private static void run(Env env, int threads, int seconds, ThreadMXBean mx,
+            StringBuilder out) throws InterruptedException {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Worker[] workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i, env, stop, start);
+            workers[i].start();
+        }
+        final LockSampler sampler = new LockSampler(mx, stop);
+        final long[] blockedMs0 = new long[threads];
+        final long[] blockedN0 = new long[threads];
+        for (int i = 0; i < threads; i++) {
+            ThreadInfo ti = mx.getThreadInfo(workers[i].getId());
+            blockedMs0[i] = ti.getBlockedTime();
+            blockedN0[i] = ti.getBlockedCount();
+        }
+        final long t0 = System.nanoTime();
+        start.countDown();
+        if (out != null) sampler.start();
+        Thread.sleep(seconds * 1000L);
+        long blockedMs = 0;
+        long blockedN = 0;
+        for (int i = 0; i < threads; i++) {
+            ThreadInfo ti = mx.getThreadInfo(workers[i].getId());
+            if (ti == null) continue;
+            blockedMs += ti.getBlockedTime() - blockedMs0[i];
+            blockedN += ti.getBlockedCount() - blockedN0[i];
+        }
+        stop.set(true);
+        for (Worker w : workers) w.join();
+        sampler.join();
+        final double elapsedS = (System.nanoTime() - t0) / 1e9;
+        if (out == null) return;
+
+        long events = 0;
+        final Histogram[] merged = new Histogram[OP_NAMES.length];
+        for (int op = 0; op < merged.length; op++) merged[op] = new Histogram();
+        for (Worker w : workers) {
+            events += w.events;
+            for (int op = 0; op < merged.length; op++) merged[op].add(w.latency[op]);
+        }
+        out.append(String.format("threads=%d seconds=%.1f events=%d rate=%.0f events/s%n",
+                threads, elapsedS, events, events / elapsedS));
+        out.append(String.format("%-22s %10s %9s %9s %9s %9s%n",
+                "latency (us)", "count", "p50", "p99", "p99.9", "max"));
+        for (int op = 0; op < merged.length; op++) {
+            Histogram h = merged[op];
+            if (h.n == 0) continue;
+            out.append(String.format("%-22s %10d %9.1f %9.1f %9.1f %9.1f%n", OP_NAMES[op], h.n,
+                    h.percentile(0.50) / 1e3, h.percentile(0.99) / 1e3,
+                    h.percentile(0.999) / 1e3, h.max / 1e3));
+        }
+        out.append(String.format("monitor blocked: %d times, %d ms total (%.1f%% of thread time)%n",
+                blockedN, blockedMs, 100.0 * blockedMs / (threads * elapsedS * 1000)));
+        if (sampler.rounds > 0) {
+            out.append("sampled per locking method (share of worker time, ~")
+                    .append(SAMPLE_INTERVAL_MS).append("ms samples):\n");
+            final double slots = (double) sampler.rounds * threads;
+            final List<Map.Entry<String, long[]>> rows = new ArrayList<>(sampler.samples.entrySet());
+            rows.sort((a, b) -> Long.compare(b.getValue()[0] + b.getValue()[1],
+                    a.getValue()[0] + a.getValue()[1]));
+            for (Map.Entry<String, long[]> e : rows) {
+                out.append(String.format("  %-50s held %5.1f%%  waiting %5.1f%%%n", e.getKey(),
+                        100.0 * e.getValue()[0] / slots, 100.0 * e.getValue()[1] / slots));
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.android.server.maxpower.chain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Depth-2 lookahead A -> B -> C.
+ *
+ * Second-order Markov rows are keyed by context (X, A) and learn from consecutive foreground
+ * transitions X -> A -> B, so the hop after an auto-launched B is no longer cold.
+ * P(B | last, A) comes from the second-order row when it exists, else from the first-hop score;
+ * P(C | A, B) from row (A, B), falling back to the first-order row of B.
+ * withContext() feeds P(B | last, A) into the launch decision itself.
+ */
+public final class LookaheadPredictor {
+    // context rows are narrower than first-order rows
+    private static final int SECOND_ORDER_TOP_M = 10;
+
+    private final MarkovTable mFirst;
+    private final MarkovTable mSecond;
+
+    // scratch for topN(); guarded by this
+    private final String[] mPkgs = new String[SECOND_ORDER_TOP_M];
+    private final float[] mProbs = new float[SECOND_ORDER_TOP_M];
+
+    /** One ranked path. joint = pB * pCGivenB; c is null if no second hop is known. */
+    public static final class Path {
+        public final String b;
+        public final float pB;
+        public final String c;
+        public final float pCGivenB;
+        public final float joint;
+
+        Path(String b, float pB, String c, float pCGivenB) {
+            this.b = b;
+            this.pB = pB;
+            this.c = c;
+            this.pCGivenB = pCGivenB;
+            this.joint = c == null ? 0f : pB * pCGivenB;
+        }
+
+        @Override
+        public String toString() {
+            return b + "(" + pB + ") -> " + c + "(" + pCGivenB + ") joint=" + joint;
+        }
+    }
+
+    public LookaheadPredictor(MarkovTable firstOrder, float decayPerUpdate) {
+        mFirst = firstOrder;
+        mSecond = new MarkovTable(SECOND_ORDER_TOP_M, decayPerUpdate);
+    }
+
+    /** Config reload; second-order rows keep their fixed width. */
+    public void setDecayPerUpdate(float decayPerUpdate) {
+        mSecond.setDecayPerUpdate(decayPerUpdate);
+    }
+
+    static String contextKey(String prev, String a) {
+        return prev + '\0' + a;
+    }
+
+    /** Learns X -> A -> B. */
+    public void onTransition(String prev, String a, String b) {
+        if (prev == null || a == null || b == null) return;
+        if (prev.equals(a) || a.equals(b)) return;
+        mSecond.onTransition(contextKey(prev, a), b);
+    }
+
+    /**
+     * Expands first-hop candidates of A into depth-2 paths, best joint first.
+     * lastPkg (the app before A) may be null.
+     */
+    public List<Path> predictPaths(String lastPkg, String a,
+            List<AppChainManager.Prediction> firstHop, int k) {
+        ArrayList<Path> out = new ArrayList<>(firstHop.size());
+        for (int i = 0; i < firstHop.size(); i++) {
+            AppChainManager.Prediction hop = firstHop.get(i);
+            float pB = lastPkg == null ? hop.score
+                    : secondOrderProb(lastPkg, a, hop.pkg, hop.score);
+            out.add(nextHop(a, hop.pkg, pB));
+        }
+        Collections.sort(out, (o1, o2) -> Float.compare(o2.joint, o1.joint));
+        if (out.size() <= k) return out;
+        return out.subList(0, k);
+    }
+
+    /** Most likely C after A -> B (C not in {A, B}). */
+    public Path nextHop(String a, String b, float pB) {
+        synchronized (this) {
+            int n = mSecond.topN(contextKey(a, b), SECOND_ORDER_TOP_M, mPkgs, mProbs);
+            if (n == 0) n = mFirst.topN(b, SECOND_ORDER_TOP_M, mPkgs, mProbs);
+            for (int i = 0; i < n; i++) {
+                if (mPkgs[i].equals(a) || mPkgs[i].equals(b)) continue;
+                return new Path(b, pB, mPkgs[i], mProbs[i]);
+            }
+        }
+        return new Path(b, pB, null, 0f);
+    }
+
+    /**
+     * LR first-hop predictions with P(B | last, A) blended in at weight w, re-sorted.
+     * Returned unchanged when there is no (last, A) row or they are not calibrated; a B
+     * missing from an existing row counts as 0 (rows keep the top entries only).
+     */
+    public List<AppChainManager.Prediction> withContext(String lastPkg, String a,
+            List<AppChainManager.Prediction> firstHop, float w) {
+        if (lastPkg == null || w <= 0f || firstHop.isEmpty()) return firstHop;
+        if (!firstHop.get(0).calibrated) return firstHop;
+        ArrayList<AppChainManager.Prediction> out;
+        synchronized (this) {
+            int n = mSecond.topN(contextKey(lastPkg, a), SECOND_ORDER_TOP_M, mPkgs, mProbs);
+            if (n == 0) return firstHop;
+            out = new ArrayList<>(firstHop.size());
+            for (int i = 0; i < firstHop.size(); i++) {
+                AppChainManager.Prediction hop = firstHop.get(i);
+                float p2 = 0f;
+                for (int j = 0; j < n; j++) {
+                    if (mPkgs[j].equals(hop.pkg)) {
+                        p2 = mProbs[j];
+                        break;
+                    }
+                }
+                out.add(new AppChainManager.Prediction(hop.pkg,
+                        (1f - w) * hop.score + w * p2));
+            }
+        }
+        Collections.sort(out, (o1, o2) -> Float.compare(o2.score, o1.score));
+        return out;
+    }
+
+    private float secondOrderProb(String prev, String a, String b, float fallback) {
+        synchronized (this) {
+            int n = mSecond.topN(contextKey(prev, a), SECOND_ORDER_TOP_M, mPkgs, mProbs);
+            for (int i = 0; i < n; i++) {
+                if (mPkgs[i].equals(b)) return mProbs[i];
+            }
+        }
+        return fallback;
+    }
+
+    /** For persistence wiring (section "markov2"). */
+    public MarkovTable getSecondOrderTable() {
+        return mSecond;
+    }
+}
@@ -3,6 +3,10 @@ package android.server.power.nextapp;
 import android.util.AtomicFile;
 import android.util.Slog;
 
+import com.android.server.maxpower.chain.TinyNextAppModel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -13,6 +17,8 @@ public final class LrAtomicStore {
     private static final String TAG = "NextAppLrStore";
     private static final int MAGIC = 0x4E41504C; // "NAPL"
     private static final int VERSION = 1;
+    // non-zero weights only: file size follows learned features, not 2^pow2
+    private static final int VERSION_SPARSE = 2;
 
     private final AtomicFile mFile;
 
@@ -46,6 +52,65 @@ public final class LrAtomicStore {
         }
     }
 
+    /** Whether writeSparse() takes a model of this dimension (a power of two). */
+    public static boolean isSparseDim(int dim) {
+        return dim > 0 && (dim & (dim - 1)) == 0;
+    }
+
+    /**
+     * Non-zero weights of model; the file records log2(model.dim()). Returns false if the
+     * write failed (previous file kept).
+     */
+    public boolean writeSparse(TinyNextAppModel model) {
+        if (model == null) return false;
+        final int dim = model.dim();
+        if (!isSparseDim(dim)) {
+            throw new IllegalArgumentException("dimension not a power of two: " + dim);
+        }
+        final int hashDimPow2 = Integer.numberOfTrailingZeros(dim);
+
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION_SPARSE);
+            out.writeInt(hashDimPow2);
+            out.writeLong(model.getUpdates());
+            model.writeWeights(out);
+
+            out.flush();
+            fos.getFD().sync();
+            mFile.finishWrite(fos);
+            return true;
+        } catch (Throwable t) {
+            Slog.e(TAG, "LR sparse save failed: " + mFile.getBaseFile(), t);
+            if (fos != null) mFile.failWrite(fos);
+            return false;
+        }
+    }
+
+    /** Returns false if missing/corrupt/mismatched (model left empty). */
+    public boolean readSparseInto(TinyNextAppModel model) {
+        try (FileInputStream fis = mFile.openRead();
+             DataInputStream in = new DataInputStream(new BufferedInputStream(fis))) {
+
+            if (in.readInt() != MAGIC) return false;
+            if (in.readInt() != VERSION_SPARSE) return false;
+            int pow2 = in.readInt();
+            if (pow2 < 0 || pow2 > 30 || (1 << pow2) != model.dim()) return false;
+
+            long updates = in.readLong();
+            if (!model.readWeights(in)) return false;
+            model.setUpdates(updates);
+            return true;
+
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
     /** Returns null if missing/corrupt/mismatched. */
     public LoadedLr readOrNull() {
         try (FileInputStream fis = mFile.openRead();
@@ -0,0 +1,329 @@
+package com.android.server.maxpower.chain;
+
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Markov transition weights A -> B, top-M successors per A.
+ *
+ * On every update all weights decay by markovDecay ("weight = weight * decay + 1"), done in
+ * O(1) through LazyDecay: only the touched entry is materialized. Entries that decayed below
+ * EVICT_BELOW read as 0 and are dropped when their row is touched.
+ */
+public final class MarkovTable implements PackagePurger.Purgeable {
+    private static final float EVICT_BELOW = 0.05f;
+
+    // reloadable; rows are resized to mTopMPerA lazily when next updated
+    private volatile int mTopMPerA;
+    private volatile double mDecayPerUpdate;
+
+    private final Object mLock = new Object();
+    private final LazyDecay mDecay = new LazyDecay(0, EVICT_BELOW);
+    private final ArrayMap<String, Row> mRows = new ArrayMap<>();
+    private long mUpdates;
+    private long mPersistedUpdates;
+    // shared checkpoint; null = in memory only
+    private PersistenceWorker mWorker;
+    private Participant mParticipant;
+
+    static final class Row {
+        String[] pkgs;
+        float[] stored;
+        int[] gen;
+        int size;
+
+        Row(int cap) {
+            pkgs = new String[cap];
+            stored = new float[cap];
+            gen = new int[cap];
+        }
+
+        int indexOf(String pkg) {
+            for (int i = 0; i < size; i++) if (pkgs[i].equals(pkg)) return i;
+            return -1;
+        }
+
+        void removeAt(int i) {
+            size--;
+            pkgs[i] = pkgs[size];
+            stored[i] = stored[size];
+            gen[i] = gen[size];
+            pkgs[size] = null;
+        }
+    }
+
+    public MarkovTable(int topMPerA, float decayPerUpdate) {
+        mTopMPerA = topMPerA;
+        mDecayPerUpdate = decayPerUpdate;
+    }
+
+    /** Config reload. A smaller M trims each row (weakest first) on its next update. */
+    public void setTopMPerA(int topMPerA) {
+        mTopMPerA = topMPerA;
+    }
+
+    public void setDecayPerUpdate(float decayPerUpdate) {
+        mDecayPerUpdate = decayPerUpdate;
+    }
+
+    public void onTransition(String pkgA, String pkgB) {
+        if (pkgA == null || pkgB == null || pkgA.equals(pkgB)) return;
+        synchronized (mLock) {
+            mDecay.decay(mDecayPerUpdate);
+            mUpdates++;
+
+            final int topM = mTopMPerA;
+            Row row = mRows.get(pkgA);
+            if (row == null) {
+                row = new Row(topM);
+                mRows.put(pkgA, row);
+            } else if (row.pkgs.length != topM) {
+                row = resizedLocked(row, topM);
+                mRows.put(pkgA, row);
+            }
+            int i = row.indexOf(pkgB);
+            float w;
+            if (i >= 0) {
+                w = mDecay.effective(row.stored[i], row.gen[i]) + 1f;
+            } else {
+                i = slotForNewLocked(row);
+                row.pkgs[i] = pkgB;
+                w = 1f;
+            }
+            row.stored[i] = mDecay.toStored(w);
+            row.gen[i] = mDecay.generation();
+        }
+    }
+
+    /** Free slot in row: append, else reuse a dead entry, else replace the weakest. */
+    private int slotForNewLocked(Row row) {
+        if (row.size < row.pkgs.length) return row.size++;
+        int minIdx = 0;
+        float minW = Float.MAX_VALUE;
+        for (int i = 0; i < row.size; i++) {
+            float w = mDecay.effective(row.stored[i], row.gen[i]);
+            if (w < minW) {
+                minW = w;
+                minIdx = i;
+            }
+        }
+        return minIdx;
+    }
+
+    /** Copy of row with capacity cap, keeping its strongest entries. */
+    private Row resizedLocked(Row row, int cap) {
+        while (row.size > cap) {
+            int minIdx = 0;
+            float minW = Float.MAX_VALUE;
+            for (int i = 0; i < row.size; i++) {
+                float w = mDecay.effective(row.stored[i], row.gen[i]);
+                if (w < minW) {
+                    minW = w;
+                    minIdx = i;
+                }
+            }
+            row.removeAt(minIdx);
+        }
+        Row out = new Row(cap);
+        System.arraycopy(row.pkgs, 0, out.pkgs, 0, row.size);
+        System.arraycopy(row.stored, 0, out.stored, 0, row.size);
+        System.arraycopy(row.gen, 0, out.gen, 0, row.size);
+        out.size = row.size;
+        return out;
+    }
+
+    public float weight(String pkgA, String pkgB) {
+        synchronized (mLock) {
+            Row row = mRows.get(pkgA);
+            if (row == null) return 0f;
+            int i = row.indexOf(pkgB);
+            return i < 0 ? 0f : mDecay.effective(row.stored[i], row.gen[i]);
+        }
+    }
+
+    /**
+     * Fills outPkgs/outProb with up to n successors of pkgA by descending weight.
+     * outProb is weight / row total. Returns the count written.
+     */
+    public int topN(String pkgA, int n, String[] outPkgs, float[] outProb) {
+        synchronized (mLock) {
+            Row row = mRows.get(pkgA);
+            if (row == null) return 0;
+            float total = 0f;
+            for (int i = row.size - 1; i >= 0; i--) {
+                float w = mDecay.effective(row.stored[i], row.gen[i]);
+                if (w <= 0f) {
+                    row.removeAt(i); // evict lazily
+                    continue;
+                }
+                total += w;
+            }
+            if (row.size == 0) {
+                mRows.remove(pkgA);
+                return 0;
+            }
+            int count = 0;
+            int limit = Math.min(n, Math.min(outPkgs.length, outProb.length));
+            if (limit <= 0) return 0;
+            // bounded insertion sort: n and M are small
+            for (int i = 0; i < row.size; i++) {
+                String pkg = row.pkgs[i];
+                float p = mDecay.effective(row.stored[i], row.gen[i]) / total;
+                int pos;
+                if (count < limit) {
+                    pos = count++;
+                } else if (p > outProb[limit - 1]) {
+                    pos = limit - 1;
+                } else {
+                    continue;
+                }
+                while (pos > 0 && outProb[pos - 1] < p) {
+                    outPkgs[pos] = outPkgs[pos - 1];
+                    outProb[pos] = outProb[pos - 1];
+                    pos--;
+                }
+                outPkgs[pos] = pkg;
+                outProb[pos] = p;
+            }
+            return count;
+        }
+    }
+
+    public int size() {
+        synchronized (mLock) { return mRows.size(); }
+    }
+
+    /**
+     * Drops rows keyed by (or, for context keys "X\0A", mentioning) a removed package and its
+     * entries in other rows; maxScan rows per call.
+     */
+    @Override
+    public int purgeSlice(ArraySet<String> pkgs, int from, int maxScan,
+            PackagePurger.PairSink out) {
+        synchronized (mLock) {
+            int r = Math.min(from, mRows.size() - 1);
+            boolean removed = false;
+            for (int scanned = 0; r >= 0 && scanned < maxScan; r--, scanned++) {
+                String a = mRows.keyAt(r);
+                Row row = mRows.valueAt(r);
+                boolean dropRow = PackagePurger.keyMentions(a, pkgs);
+                for (int i = row.size - 1; i >= 0; i--) {
+                    if (!dropRow && !pkgs.contains(row.pkgs[i])) continue;
+                    if (out != null) out.onPairRemoved(a, row.pkgs[i]);
+                    row.removeAt(i);
+                    removed = true;
+                }
+                if (row.size == 0) mRows.removeAt(r);
+            }
+            if (removed) mUpdates++; // dirty for the next checkpoint
+            return r < 0 ? PackagePurger.DONE : r;
+        }
+    }
+
+    /** Persist in the shared checkpoint (section "markov"). */
+    public void attachTo(PersistenceWorker worker) {
+        attachTo(worker, "markov");
+    }
+
+    /** Persist in the shared checkpoint under the given section name; then load(). */
+    public void attachTo(PersistenceWorker worker, String section) {
+        final Participant p = new Participant(section);
+        mWorker = worker;
+        mParticipant = p;
+        worker.register(p);
+    }
+
+    /** Restores from the attached checkpoint; no-op when detached or nothing was saved. */
+    public void load() {
+        if (mWorker != null) mWorker.restore(mParticipant);
+    }
+
+    private final class Participant implements PersistenceWorker.Participant {
+        private final String mSection;
+
+        Participant(String section) {
+            mSection = section;
+        }
+
+        @Override
+        public String getName() { return mSection; }
+
+        @Override
+        public boolean isDirty() {
+            synchronized (mLock) { return mUpdates != mPersistedUpdates; }
+        }
+
+        @Override
+        public PersistenceWorker.Snapshot snapshot() {
+            // materialized copy: rows, then (pkg, weight) per live entry
+            final ArrayMap<String, Row> copy = new ArrayMap<>();
+            final long upd;
+            synchronized (mLock) {
+                upd = mUpdates;
+                for (int r = 0; r < mRows.size(); r++) {
+                    Row src = mRows.valueAt(r);
+                    Row dst = new Row(src.size);
+                    for (int i = 0; i < src.size; i++) {
+                        float w = mDecay.effective(src.stored[i], src.gen[i]);
+                        if (w <= 0f) continue;
+                        dst.pkgs[dst.size] = src.pkgs[i];
+                        dst.stored[dst.size] = w;
+                        dst.size++;
+                    }
+                    if (dst.size > 0) copy.put(mRows.keyAt(r), dst);
+                }
+            }
+            return new PersistenceWorker.Snapshot() {
+                @Override
+                public void writeTo(DataOutputStream out) throws IOException {
+                    out.writeInt(copy.size());
+                    for (int r = 0; r < copy.size(); r++) {
+                        Row row = copy.valueAt(r);
+                        out.writeUTF(copy.keyAt(r));
+                        out.writeInt(row.size);
+                        for (int i = 0; i < row.size; i++) {
+                            out.writeUTF(row.pkgs[i]);
+                            out.writeFloat(row.stored[i]);
+                        }
+                    }
+                }
+
+                @Override
+                public void onPersisted() {
+                    synchronized (mLock) { mPersistedUpdates = upd; }
+                }
+            };
+        }
+
+        @Override
+        public void restore(DataInputStream in) throws IOException {
+            int rows = in.readInt();
+            synchronized (mLock) {
+                mRows.clear();
+                mDecay.reset();
+                final int gen = mDecay.generation();
+                for (int r = 0; r < rows; r++) {
+                    String a = in.readUTF();
+                    int n = in.readInt();
+                    final int topM = mTopMPerA;
+                    Row row = new Row(topM);
+                    for (int i = 0; i < n; i++) {
+                        String b = in.readUTF();
+                        float w = in.readFloat();
+                        if (row.size >= topM) continue;
+                        row.pkgs[row.size] = b;
+                        row.stored[row.size] = w;
+                        row.gen[row.size] = gen;
+                        row.size++;
+                    }
+                    if (row.size > 0) mRows.put(a, row);
+                }
+                mPersistedUpdates = mUpdates;
+            }
+        }
+    }
+}
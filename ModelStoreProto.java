@@ -3,66 +3,136 @@ package com.android.server.maxpower.chain;
 import android.util.AtomicFile;
 import android.util.Slog;
 
+import android.server.power.nextapp.LrAtomicStore;
+
 import com.android.server.maxpower.chain.proto.NextAppModelProto;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 
+/**
+ * Model weights plus optimizer sidecar. Power-of-two models are saved in LrAtomicStore's sparse
+ * format (file size follows learned features); other dimensions, and files written before,
+ * use the dense proto, which is still read.
+ */
 public final class ModelStoreProto {
     private static final String TAG = "ModelStoreProto";
     private static final int VERSION = 1;
+    // sidecar header; files without it (type first) fail the check and are ignored
+    private static final int OPT_MAGIC = 0x4F505432; // "OPT2"
 
     private final AtomicFile mFile;
+    // optimizer per-coordinate state; the proto has no field for it. Stamped with the
+    // model's update count: the two files are not written atomically together, so state
+    // from a different checkpoint than the weights is dropped rather than applied.
+    private final AtomicFile mOptFile;
+    // same base file as mFile; the two formats are told apart by the sparse magic
+    private final LrAtomicStore mSparse;
 
     public ModelStoreProto(AtomicFile file) {
         mFile = file;
+        mSparse = new LrAtomicStore(file.getBaseFile());
+        mOptFile = new AtomicFile(new File(file.getBaseFile().getPath() + ".opt"));
     }
 
     public void loadInto(TinyNextAppModel model) {
+        if (mSparse.readSparseInto(model)) {
+            loadOptimizerInto(model);
+            return;
+        }
+        // dense proto: other dimensions, or saved before the sparse format
         try (FileInputStream fis = mFile.openRead()) {
             NextAppModelProto.NextAppModel proto =
                     NextAppModelProto.NextAppModel.parseFrom(new BufferedInputStream(fis));
 
-            if (!proto.hasDimension() || proto.getDimension() != TinyNextAppModel.D) {
+            if (!proto.hasDimension() || proto.getDimension() != model.dim()) {
                 Slog.w(TAG, "dimension mismatch/reset");
                 return;
             }
 
             int n = proto.getWeightsCount();
-            float[] w = model.weights();
-            int copy = Math.min(w.length, n);
-            for (int i = 0; i < copy; i++) w[i] = proto.getWeights(i);
+            int copy = Math.min(model.dim(), n);
+            for (int i = 0; i < copy; i++) model.setWeight(i, proto.getWeights(i));
 
             if (proto.hasUpdateCount()) model.setUpdates(proto.getUpdateCount());
         } catch (FileNotFoundException e) {
             // first run
+            return;
         } catch (IOException e) {
             Slog.w(TAG, "load failed", e);
+            return;
+        }
+        loadOptimizerInto(model);
+    }
+
+    private void loadOptimizerInto(TinyNextAppModel model) {
+        try (FileInputStream fis = mOptFile.openRead();
+             DataInputStream in = new DataInputStream(new BufferedInputStream(fis))) {
+            if (in.readInt() != OPT_MAGIC) return;
+            // state of another update rule is useless for the configured one
+            if (in.readInt() != model.optimizer().type()) return;
+            final long updates = in.readLong();
+            if (updates != model.getUpdates()) {
+                Slog.w(TAG, "optimizer state from update " + updates + ", model at "
+                        + model.getUpdates() + "; starting fresh");
+                return;
+            }
+            model.optimizer().readState(in);
+        } catch (FileNotFoundException e) {
+            // no state yet (SGD or first run)
+        } catch (IOException e) {
+            Slog.w(TAG, "optimizer state load failed", e);
         }
     }
 
     public void saveFrom(TinyNextAppModel model) {
+        if (LrAtomicStore.isSparseDim(model.dim())) {
+            if (mSparse.writeSparse(model)) saveOptimizerFrom(model);
+            return;
+        }
         FileOutputStream fos = null;
         try {
             fos = mFile.startWrite();
             NextAppModelProto.NextAppModel.Builder b =
                     NextAppModelProto.NextAppModel.newBuilder()
                             .setVersion(VERSION)
-                            .setDimension(TinyNextAppModel.D)
+                            .setDimension(model.dim())
                             .setUpdateCount(model.getUpdates());
 
-            float[] w = model.weights();
-            for (float v : w) b.addWeights(v);
+            // proto is dense by schema
+            for (int i = 0; i < model.dim(); i++) b.addWeights(model.weight(i));
 
             b.build().writeTo(new BufferedOutputStream(fos));
             mFile.finishWrite(fos);
         } catch (IOException e) {
             Slog.w(TAG, "save failed", e);
             if (fos != null) mFile.failWrite(fos);
+            return;
+        }
+        saveOptimizerFrom(model);
+    }
+
+    private void saveOptimizerFrom(TinyNextAppModel model) {
+        FileOutputStream fos = null;
+        try {
+            fos = mOptFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(OPT_MAGIC);
+            out.writeInt(model.optimizer().type());
+            out.writeLong(model.getUpdates());
+            model.optimizer().writeState(out);
+            out.flush();
+            mOptFile.finishWrite(fos);
+        } catch (IOException e) {
+            Slog.w(TAG, "optimizer state save failed", e);
+            if (fos != null) mOptFile.failWrite(fos);
         }
     }
 }
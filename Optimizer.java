@@ -0,0 +1,41 @@
+package com.android.server.maxpower.chain;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Per-coordinate update rule for the hashed LR models.
+ *
+ * Models call begin() once per example, then step() for each active feature with the
+ * log-loss gradient g = (p - y) * exampleWeight. Per-coordinate state is persisted with
+ * the model via writeState()/readState().
+ */
+public interface Optimizer {
+    int TYPE_SGD = 0;
+    int TYPE_ADAGRAD = 1;
+    int TYPE_FTRL = 2;
+
+    int type();
+
+    /** updates = examples already trained (for global schedules). */
+    default void begin(long updates) {}
+
+    /** Returns the new weight of coordinate k. */
+    float step(int k, float w, float g);
+
+    /** Drops coordinate k's state (its weight was zeroed); the next step() starts fresh. */
+    default void reset(int k) {}
+
+    default void writeState(DataOutputStream out) throws IOException {}
+
+    default void readState(DataInputStream in) throws IOException {}
+
+    static Optimizer create(int type, int dim) {
+        switch (type) {
+            case TYPE_ADAGRAD: return new AdaGradOptimizer(dim);
+            case TYPE_FTRL: return new FtrlOptimizer(dim);
+            default: return new SgdOptimizer();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.android.server.maxpower.chain;
+
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Persisted package name <-> int id table, so on-disk records carry varint ids instead of
+ * package strings.
+ *
+ * Append-only: ids are never reassigned, so a file written against an older dictionary stays
+ * readable with any newer one. A file that may reference ids not yet in the dictionary file
+ * either carries them itself (persistedCount() / namesFrom(), as TransitionBufferStore
+ * snapshots do) or calls saveIfDirty() before it is committed. Loading allocates one String
+ * per package; callers get the same instance back from nameOf().
+ *
+ * Lookups of known names read a copy-on-write snapshot without locking; only assigning a new
+ * id (rare: one per package ever seen) takes the lock and republishes the snapshot. No id is
+ * assigned before the file is loaded: the first assignment loads it if ensureLoaded() has not
+ * run yet, or waits for a load in progress, so every id handed out is final.
+ */
+public final class PackageDictionary {
+    private static final String TAG = "PackageDictionary";
+    private static final int MAGIC = 0x50444943; // "PDIC"
+    private static final int VERSION = 1;
+
+    private final AtomicFile mFile;
+
+    private final Object mLock = new Object();
+    // held for the whole file read; idOf() waits on it before assigning the first id
+    private final Object mLoadLock = new Object();
+    // serializes file writes so an older list never lands after a newer one
+    private final Object mSaveLock = new Object();
+    private final ArrayMap<String, Integer> mIds = new ArrayMap<>();
+    // immutable copy of mIds, replaced after every change
+    private volatile ArrayMap<String, Integer> mIdsSnapshot = new ArrayMap<>();
+    private final ArrayList<String> mNames = new ArrayList<>();
+    private int mPersistedCount;
+    private volatile boolean mLoaded;
+
+    /** file null = in-memory only (ids valid for this process). */
+    public PackageDictionary(AtomicFile file) {
+        mFile = file;
+        mLoaded = file == null;
+    }
+
+    /**
+     * Id of pkg, assigning the next one if unseen. Lock-free for known names; an unseen name
+     * before ensureLoaded() finished loads the file first.
+     */
+    public int idOf(String pkg) {
+        Integer id = mIdsSnapshot.get(pkg);
+        if (id != null) return id;
+        if (!mLoaded) ensureLoaded();
+        synchronized (mLock) {
+            id = mIds.get(pkg);
+            if (id != null) return id;
+            int next = mNames.size();
+            mNames.add(pkg);
+            mIds.put(pkg, next);
+            mIdsSnapshot = new ArrayMap<>(mIds);
+            return next;
+        }
+    }
+
+    /** Id of pkg or -1; never assigns. */
+    public int peekId(String pkg) {
+        Integer id = mIdsSnapshot.get(pkg);
+        return id == null ? -1 : id;
+    }
+
+    /** Name for id, or null if unknown (e.g. dictionary file lost). */
+    public String nameOf(int id) {
+        synchronized (mLock) {
+            return id >= 0 && id < mNames.size() ? mNames.get(id) : null;
+        }
+    }
+
+    public int size() {
+        synchronized (mLock) { return mNames.size(); }
+    }
+
+    /** Ids below this are in the dictionary file (after ensureLoaded()). */
+    public int persistedCount() {
+        synchronized (mLock) { return mPersistedCount; }
+    }
+
+    /** Names of ids from .. size() - 1, in id order; the delta a file must carry itself. */
+    public String[] namesFrom(int from) {
+        synchronized (mLock) {
+            final int n = Math.max(0, mNames.size() - from);
+            final String[] out = new String[n];
+            for (int i = 0; i < n; i++) out[i] = mNames.get(from + i);
+            return out;
+        }
+    }
+
+    /**
+     * Loads once; later calls are no-ops. Concurrent callers (and idOf()) return once the
+     * load is done. A missing or unreadable file leaves the dictionary empty.
+     */
+    public void ensureLoaded() {
+        if (mLoaded) return;
+        synchronized (mLoadLock) {
+            if (mLoaded) return;
+            try {
+                loadLocked();
+            } finally {
+                mLoaded = true;
+            }
+        }
+    }
+
+    /** Holds mLoadLock; no ids exist yet, so the file's become the only ones. */
+    private void loadLocked() {
+        ArrayList<String> names = new ArrayList<>();
+        try (FileInputStream fis = mFile.openRead();
+             DataInputStream in = new DataInputStream(new BufferedInputStream(fis))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Slog.w(TAG, "unknown dictionary format; starting empty");
+                return;
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) names.add(in.readUTF());
+        } catch (FileNotFoundException e) {
+            return; // first run
+        } catch (IOException e) {
+            Slog.w(TAG, "load failed", e);
+            return;
+        }
+        synchronized (mLock) {
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                mIds.put(name, i);
+                mNames.add(name);
+            }
+            mPersistedCount = mNames.size();
+            mIdsSnapshot = new ArrayMap<>(mIds);
+        }
+        Slog.i(TAG, "Loaded packages=" + names.size());
+    }
+
+    /** Persists if ids were added since the last save. Returns false if that write failed. */
+    public boolean saveIfDirty() {
+        synchronized (mSaveLock) {
+            return saveIfDirtyLocked();
+        }
+    }
+
+    private boolean saveIfDirtyLocked() {
+        final String[] names;
+        synchronized (mLock) {
+            if (mFile == null || mNames.size() == mPersistedCount) return true;
+            names = mNames.toArray(new String[0]);
+        }
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(names.length);
+            for (String name : names) out.writeUTF(name);
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Slog.w(TAG, "save failed", e);
+            if (fos != null) mFile.failWrite(fos);
+            return false;
+        }
+        synchronized (mLock) {
+            // ids appended meanwhile stay dirty
+            mPersistedCount = Math.max(mPersistedCount, names.length);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,292 @@
+package com.android.server.maxpower.chain;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.UserHandle;
+import android.util.ArraySet;
+import android.util.Slog;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Removes every trace of uninstalled or launcher-disabled packages from the chain state.
+ *
+ * Package events only queue the package; the purge itself runs on a background handler in
+ * slices of SLICE_SCAN entries per store, each under the store's own lock, so one removal
+ * never scans a whole table while holding it. Removed A -> B pairs are collected along the
+ * way and their hashed LR features are zeroed at the end of the batch; packages without
+ * removed pairs leave the model alone (their A=/B= slots are shared through hash collisions).
+ * Component changes only purge a package that was a candidate before the change.
+ *
+ * Inserts between two slices can shift entries past a store's cursor, so a store is walked
+ * again from the top while its previous pass still removed something (at most MAX_PASSES).
+ * The handler thread is started on the first package event, not at construction.
+ *
+ * Stores are user-agnostic, so they are purged only when the package is gone for all users
+ * or its launcher entry is disabled; a single-user removal only updates that user's
+ * candidate cache.
+ */
+public final class PackagePurger {
+    private static final String TAG = "PackagePurger";
+
+    /** Cursor protocol of Purgeable.purgeSlice(). */
+    public static final int START = Integer.MAX_VALUE;
+    public static final int DONE = -1;
+
+    // entries examined per store per handler message
+    private static final int SLICE_SCAN = 256;
+    // passes per store per batch; the last one normally finds nothing
+    private static final int MAX_PASSES = 3;
+
+    /** Receives each A -> B pair a store dropped. */
+    public interface PairSink {
+        void onPairRemoved(String pkgA, String pkgB);
+    }
+
+    /** A store whose entries can be purged incrementally. */
+    public interface Purgeable {
+        /**
+         * Removes entries mentioning any of pkgs among at most maxScan entries, walking down
+         * from cursor from (START on the first call). Reports every removed entry to out as
+         * its (A, B) key parts. Returns the next cursor, or DONE.
+         */
+        int purgeSlice(ArraySet<String> pkgs, int from, int maxScan, PairSink out);
+
+        /** Batch finished on every store; e.g. schedule a save. */
+        default void onPurgeDone() {}
+    }
+
+    private static final class Store {
+        final String name;
+        final Purgeable store;
+        final boolean reportsPairs; // keys are real (A, B) pairs, not contexts
+
+        Store(String name, Purgeable store, boolean reportsPairs) {
+            this.name = name;
+            this.store = store;
+            this.reportsPairs = reportsPairs;
+        }
+    }
+
+    private final CandidateProvider mCandidates;
+    // null until first needed when no looper was given (guarded by mLock)
+    private Looper mLooper;
+    private Handler mHandler;
+
+    private final Object mLock = new Object();
+    private final ArrayList<Store> mStores = new ArrayList<>();
+    private TinyNextAppPredictorLite mPredictor;
+    private final ArraySet<String> mQueued = new ArraySet<>();
+    private long mPackagesPurged;
+    private long mPairsRemoved;
+
+    // current batch, handler thread only
+    private ArraySet<String> mBatch;
+    private int mStoreIdx;
+    private int mCursor;
+    private int mPass;
+    private int mPassRemoved;
+    private final ArraySet<String> mRemovedPairs = new ArraySet<>();
+    private int mBatchRemoved;
+    // a step is posted or in progress (guarded by mLock)
+    private boolean mRunning;
+
+    private final PairSink mSink = (a, b) -> {
+        mRemovedPairs.add(a + '\0' + b);
+        mBatchRemoved++;
+        mPassRemoved++;
+    };
+    // stores whose keys are not A -> B pairs: only count for the pass check
+    private final PairSink mCountSink = (a, b) -> mPassRemoved++;
+
+    private final Runnable mStep = this::step;
+
+    /** looper null = own background thread, started on first use. */
+    public PackagePurger(CandidateProvider candidates, Looper looper) {
+        mCandidates = candidates;
+        mLooper = looper;
+    }
+
+    private Handler handler() {
+        synchronized (mLock) {
+            if (mHandler == null) {
+                if (mLooper == null) {
+                    HandlerThread t = new HandlerThread("maxpower-purge",
+                            Process.THREAD_PRIORITY_BACKGROUND);
+                    t.start();
+                    mLooper = t.getLooper();
+                }
+                mHandler = new Handler(mLooper);
+            }
+            return mHandler;
+        }
+    }
+
+    /** reportsPairs: the store's keys are A -> B pairs whose LR features should be zeroed. */
+    public void addStore(String name, Purgeable store, boolean reportsPairs) {
+        synchronized (mLock) { mStores.add(new Store(name, store, reportsPairs)); }
+    }
+
+    public void setPredictor(TinyNextAppPredictorLite predictor) {
+        synchronized (mLock) { mPredictor = predictor; }
+    }
+
+    /** Listens for removals and component changes of all users. */
+    public void register(Context context) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiverAsUser(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context c, Intent intent) {
+                Uri data = intent.getData();
+                String pkg = data != null ? data.getSchemeSpecificPart() : null;
+                if (pkg == null) return;
+                int userId = UserHandle.getUserId(intent.getIntExtra(Intent.EXTRA_UID, 0));
+                if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())) {
+                    if (intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) return;
+                    onPackageRemoved(pkg, userId,
+                            intent.getBooleanExtra(Intent.EXTRA_REMOVED_FOR_ALL_USERS, false));
+                } else {
+                    onPackageChanged(pkg, userId);
+                }
+            }
+        }, UserHandle.ALL, filter, null, handler());
+    }
+
+    public void onPackageRemoved(String pkg, int userId, boolean allUsers) {
+        mCandidates.onPackageRemoved(pkg, userId);
+        if (allUsers) enqueue(pkg);
+    }
+
+    /** Component enable state changed: purge if its launcher entry just went away. */
+    public void onPackageChanged(String pkg, int userId) {
+        // system packages change constantly and never had chain state
+        final boolean wasEligible = mCandidates.mayBeEligible(pkg, userId);
+        mCandidates.invalidate(userId);
+        if (wasEligible && !mCandidates.isEligibleApp(pkg, userId)) enqueue(pkg);
+    }
+
+    public void enqueue(String pkg) {
+        synchronized (mLock) {
+            if (!mQueued.add(pkg) || mRunning) return;
+            mRunning = true;
+        }
+        handler().post(mStep);
+    }
+
+    /** One slice of work; reposts itself until the queue is empty. */
+    private void step() {
+        final Store store;
+        synchronized (mLock) {
+            if (mBatch == null) {
+                if (mQueued.isEmpty()) {
+                    mRunning = false;
+                    return;
+                }
+                // packages queued from now on wait for the next batch
+                mBatch = new ArraySet<>(mQueued);
+                mQueued.clear();
+                mStoreIdx = 0;
+                mCursor = START;
+                mPass = 0;
+                mPassRemoved = 0;
+                mBatchRemoved = 0;
+                mRemovedPairs.clear();
+            }
+            store = mStoreIdx < mStores.size() ? mStores.get(mStoreIdx) : null;
+        }
+        if (store != null) {
+            mCursor = store.store.purgeSlice(mBatch, mCursor, SLICE_SCAN,
+                    store.reportsPairs ? mSink : mCountSink);
+            if (mCursor == DONE) {
+                // entries shifted past the cursor by concurrent inserts: walk again
+                if (mPassRemoved == 0 || ++mPass >= MAX_PASSES) {
+                    mStoreIdx++;
+                    mPass = 0;
+                }
+                mPassRemoved = 0;
+                mCursor = START;
+            }
+            mHandler.post(mStep);
+            return;
+        }
+        finishBatch();
+        mHandler.post(mStep);
+    }
+
+    private void finishBatch() {
+        final TinyNextAppPredictorLite predictor;
+        final Store[] stores;
+        synchronized (mLock) {
+            predictor = mPredictor;
+            stores = mStores.toArray(new Store[0]);
+        }
+        for (Store s : stores) s.store.onPurgeDone();
+        if (predictor != null && !mRemovedPairs.isEmpty()) {
+            predictor.forgetPackages(pairPackages(), mRemovedPairs);
+        }
+        synchronized (mLock) {
+            mPackagesPurged += mBatch.size();
+            mPairsRemoved += mBatchRemoved;
+        }
+        Slog.i(TAG, "Purged " + mBatch + " pairs=" + mRemovedPairs.size());
+        mBatch = null;
+        mRemovedPairs.clear();
+    }
+
+    /** Batch packages that appear in a removed pair. */
+    private ArraySet<String> pairPackages() {
+        ArraySet<String> out = new ArraySet<>();
+        for (int i = 0; i < mRemovedPairs.size(); i++) {
+            String key = mRemovedPairs.valueAt(i);
+            int sep = key.indexOf('\0');
+            String a = key.substring(0, sep);
+            String b = key.substring(sep + 1);
+            if (mBatch.contains(a)) out.add(a);
+            if (mBatch.contains(b)) out.add(b);
+        }
+        return out;
+    }
+
+    /** True if any '\0'-separated part of key is in pkgs. */
+    public static boolean keyMentions(String key, ArraySet<String> pkgs) {
+        int start = 0;
+        while (true) {
+            int end = key.indexOf('\0', start);
+            String part = end < 0 ? key.substring(start) : key.substring(start, end);
+            if (pkgs.contains(part)) return true;
+            if (end < 0) return false;
+            start = end + 1;
+        }
+    }
+
+    /** Reports key "A\0B" to out, if both parts exist. */
+    static void reportPair(String key, PairSink out) {
+        if (out == null) return;
+        int sep = key.indexOf('\0');
+        if (sep > 0) out.onPairRemoved(key.substring(0, sep), key.substring(sep + 1));
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            StringBuilder names = new StringBuilder();
+            for (int i = 0; i < mStores.size(); i++) {
+                names.append(i == 0 ? "" : ",").append(mStores.get(i).name);
+            }
+            pw.println(prefix + "PackagePurger: stores=[" + names + "]"
+                    + " queued=" + mQueued.size() + " running=" + mRunning
+                    + " packagesPurged=" + mPackagesPurged
+                    + " pairsRemoved=" + mPairsRemoved);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.android.server.maxpower.chain;
+
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.io.PrintWriter;
+
+/**
+ * Per-pair launch thresholds learned from what happened after past auto-launches.
+ *
+ * Each (A, B) keeps a Beta posterior on its precision: prior mean cfg.targetPrecision with
+ * weight PRIOR_STRENGTH, plus decayed hits and failures (miss or quick abandon) reported by
+ * ChainOutcomeTracker. The threshold moves away from cfg.threshold only once the credible
+ * bound clears the target: a reliable pair is lowered, an unreliable one raised, always
+ * within [thresholdMin, thresholdMax]. Consecutive failures also back the pair off
+ * exponentially (no launch at all until the backoff elapses); one hit resets it.
+ *
+ * Bounded at MAX_PAIRS in parallel arrays; when full the pair with the least evidence is
+ * recycled.
+ */
+public final class PairThresholdController
+        implements ChainOutcomeTracker.Listener, PackagePurger.Purgeable {
+    private static final int MAX_PAIRS = 256;
+    // prior pseudo-observations; evidence must outweigh this before thresholds move
+    private static final float PRIOR_STRENGTH = 4f;
+    // per-outcome forgetting of older evidence (~30 outcomes of memory)
+    private static final float EVIDENCE_DECAY = 0.97f;
+    // width of the credible bound, in posterior standard deviations
+    private static final float BOUND_Z = 1f;
+    // threshold shift per unit of precision above/below target
+    private static final float GAIN = 1f;
+    // backoff after the 2nd consecutive failure, doubling per further failure
+    private static final int BACKOFF_AFTER = 2;
+    private static final long BACKOFF_BASE_MS = 60_000;
+    private static final long BACKOFF_MAX_MS = 6 * 60 * 60 * 1000;
+
+    /** Returned while a pair is backed off; above any score. */
+    public static final float BLOCKED = Float.POSITIVE_INFINITY;
+
+    private final Object mLock = new Object();
+    private final ArrayMap<String, Integer> mIndex = new ArrayMap<>();
+    private final String[] mKeys = new String[MAX_PAIRS];
+    private final float[] mHits = new float[MAX_PAIRS];
+    private final float[] mFails = new float[MAX_PAIRS];
+    private final int[] mStreak = new int[MAX_PAIRS];
+    private final long[] mBackoffUntil = new long[MAX_PAIRS];
+    private int mPairs;
+
+    // thresholdFor() calls per outcome, not distinct pairs
+    private long mBlockedQueries;
+    private long mLoweredQueries;
+    private long mRaisedQueries;
+
+    /** Effective threshold for A -> B, or BLOCKED during backoff. */
+    public float thresholdFor(String pkgA, String pkgB, ChainConfig cfg, long nowUptime) {
+        if (!cfg.adaptiveThreshold) return cfg.threshold;
+        synchronized (mLock) {
+            Integer idx = mIndex.get(pkgA + '\0' + pkgB);
+            if (idx == null) return cfg.threshold;
+            final int i = idx;
+            if (nowUptime < mBackoffUntil[i]) {
+                mBlockedQueries++;
+                return BLOCKED;
+            }
+            final float a = PRIOR_STRENGTH * cfg.targetPrecision + mHits[i];
+            final float b = PRIOR_STRENGTH * (1f - cfg.targetPrecision) + mFails[i];
+            final float n = a + b;
+            final float mean = a / n;
+            final float sd = (float) Math.sqrt(a * b / (n * n * (n + 1f)));
+            float shift = 0f;
+            if (mean - BOUND_Z * sd > cfg.targetPrecision) {
+                shift = -GAIN * (mean - BOUND_Z * sd - cfg.targetPrecision);
+                mLoweredQueries++;
+            } else if (mean + BOUND_Z * sd < cfg.targetPrecision) {
+                shift = GAIN * (cfg.targetPrecision - mean - BOUND_Z * sd);
+                mRaisedQueries++;
+            }
+            return Math.max(cfg.thresholdMin, Math.min(cfg.thresholdMax, cfg.threshold + shift));
+        }
+    }
+
+    /** Called by ChainOutcomeTracker under its lock; only touches our own state. */
+    @Override
+    public void onOutcome(String pkgA, String pkgB, int outcome, long nowUptime) {
+        synchronized (mLock) {
+            final int i = slotLocked(pkgA + '\0' + pkgB);
+            mHits[i] *= EVIDENCE_DECAY;
+            mFails[i] *= EVIDENCE_DECAY;
+            if (outcome == ChainOutcomeTracker.OUTCOME_HIT) {
+                mHits[i] += 1f;
+                mStreak[i] = 0;
+                mBackoffUntil[i] = 0;
+                return;
+            }
+            mFails[i] += 1f;
+            mStreak[i]++;
+            if (mStreak[i] >= BACKOFF_AFTER) {
+                int doublings = Math.min(mStreak[i] - BACKOFF_AFTER, 20);
+                long backoff = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << doublings);
+                mBackoffUntil[i] = nowUptime + backoff;
+            }
+        }
+    }
+
+    private int slotLocked(String key) {
+        Integer idx = mIndex.get(key);
+        if (idx != null) return idx;
+        int slot;
+        if (mPairs < MAX_PAIRS) {
+            slot = mPairs++;
+        } else {
+            slot = 0;
+            float min = Float.MAX_VALUE;
+            for (int i = 0; i < MAX_PAIRS; i++) {
+                float n = mHits[i] + mFails[i];
+                if (n < min) {
+                    min = n;
+                    slot = i;
+                }
+            }
+            mIndex.remove(mKeys[slot]);
+        }
+        mKeys[slot] = key;
+        mHits[slot] = 0f;
+        mFails[slot] = 0f;
+        mStreak[slot] = 0;
+        mBackoffUntil[slot] = 0;
+        mIndex.put(key, slot);
+        return slot;
+    }
+
+    @Override
+    public int purgeSlice(ArraySet<String> pkgs, int from, int maxScan,
+            PackagePurger.PairSink out) {
+        synchronized (mLock) {
+            int i = Math.min(from, mPairs - 1);
+            for (int scanned = 0; i >= 0 && scanned < maxScan; i--, scanned++) {
+                if (!PackagePurger.keyMentions(mKeys[i], pkgs)) continue;
+                PackagePurger.reportPair(mKeys[i], out);
+                removeSlotLocked(i);
+            }
+            return i < 0 ? PackagePurger.DONE : i;
+        }
+    }
+
+    /** Moves the last pair into slot (already visited when walking down). */
+    private void removeSlotLocked(int slot) {
+        mIndex.remove(mKeys[slot]);
+        final int last = --mPairs;
+        if (slot != last) {
+            mKeys[slot] = mKeys[last];
+            mHits[slot] = mHits[last];
+            mFails[slot] = mFails[last];
+            mStreak[slot] = mStreak[last];
+            mBackoffUntil[slot] = mBackoffUntil[last];
+            mIndex.put(mKeys[slot], slot);
+        }
+        mKeys[last] = null;
+    }
+
+    public void dump(PrintWriter pw, String prefix, long nowUptime) {
+        synchronized (mLock) {
+            pw.println(prefix + "PairThresholdController: pairs=" + mPairs
+                    + " loweredQueries=" + mLoweredQueries + " raisedQueries=" + mRaisedQueries
+                    + " blockedQueries=" + mBlockedQueries);
+            for (int i = 0; i < mPairs; i++) {
+                String key = mKeys[i];
+                int sep = key.indexOf('\0');
+                long backoff = Math.max(0, mBackoffUntil[i] - nowUptime);
+                pw.println(prefix + "  " + key.substring(0, sep) + " -> " + key.substring(sep + 1)
+                        + " hits=" + mHits[i] + " fails=" + mFails[i]
+                        + " streak=" + mStreak[i]
+                        + (backoff > 0 ? " backoffMs=" + backoff : ""));
+            }
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.android.server.maxpower.chain;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind persistence for model + transition buffer.
+ *
+ * - Event threads only call requestSave(): never touches disk, never blocks.
+ * - Worker snapshots dirty participants (cheap copy under their own lock), serializes
+ *   off-lock and writes ALL sections into one AtomicFile => one fsync per checkpoint.
+ * - Checkpoints prefer screen-off / idle / charging; otherwise deferred up to MAX_DEFER_MS.
+ * - saveNow() is the explicit barrier (shutdown).
+ * - Attached stores restore their section with restore(Participant) from their load(); the
+ *   file is read once, before the first checkpoint, so sections not restored yet survive it.
+ */
+public final class PersistenceWorker {
+    private static final String TAG = "ChainPersistence";
+    private static final int MAGIC = 0x43484B50; // "CHKP"
+    private static final int VERSION = 1;
+
+    // coalesce requests inside a good window
+    private static final long COALESCE_MS = 10_000;
+    // never defer longer than this, even if the device never becomes idle
+    private static final long MAX_DEFER_MS = 30 * 60 * 1000;
+    private static final long BARRIER_TIMEOUT_MS = 5_000;
+
+    /** A store persisted as one section of the checkpoint file. */
+    public interface Participant {
+        /** Stable section name. */
+        String getName();
+        boolean isDirty();
+        /** Cheap copy of current state; called on the worker thread. */
+        Snapshot snapshot();
+        /** Restore from this participant's section. */
+        void restore(DataInputStream in) throws IOException;
+        /** Cheap incremental write (e.g. journal append) done before the checkpoint. */
+        default void flushJournal() {}
+    }
+
+    public interface Snapshot {
+        void writeTo(DataOutputStream out) throws IOException;
+        /** The checkpoint containing this snapshot is durable. */
+        void onPersisted();
+    }
+
+    private final AtomicFile mFile;
+    private final Handler mHandler;
+    private final Runnable mFlushRunnable = this::flushOnWorker;
+
+    private final Object mLock = new Object();
+    private final ArrayList<Participant> mParticipants = new ArrayList<>();
+    // last serialized bytes per section; clean sections are written from here
+    private final ArrayMap<String, byte[]> mSections = new ArrayMap<>();
+    // serializes the one read of mFile into mSections
+    private final Object mReadLock = new Object();
+    private volatile boolean mFileRead;
+
+    // guarded by mLock
+    private boolean mScreenOn = true;
+    private boolean mIdle;
+    private boolean mCharging;
+    private long mFirstRequestUptime; // 0 = no pending request
+    private long mScheduledUptime;    // 0 = nothing scheduled
+
+    // stats (worker thread writes, dump reads)
+    private volatile long mCheckpoints;
+    private volatile long mFailures;
+    private volatile long mLastBytes;
+    private volatile long mLastDurationMs;
+    private volatile long mRequests;
+
+    public PersistenceWorker(AtomicFile file) {
+        this(file, startThread().getLooper());
+    }
+
+    public PersistenceWorker(AtomicFile file, Looper looper) {
+        mFile = file;
+        mHandler = new Handler(looper);
+    }
+
+    private static HandlerThread startThread() {
+        HandlerThread t = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        t.start();
+        return t;
+    }
+
+    public void register(Participant p) {
+        synchronized (mLock) {
+            mParticipants.add(p);
+        }
+    }
+
+    // -------- window signals --------
+
+    public void setScreenOn(boolean on) {
+        synchronized (mLock) { mScreenOn = on; rescheduleLocked(); }
+    }
+
+    public void setDeviceIdle(boolean idle) {
+        synchronized (mLock) { mIdle = idle; rescheduleLocked(); }
+    }
+
+    public void setCharging(boolean charging) {
+        synchronized (mLock) { mCharging = charging; rescheduleLocked(); }
+    }
+
+    // -------- requests --------
+
+    /** Non-blocking: a checkpoint will happen in the next good window. */
+    public void requestSave() {
+        synchronized (mLock) {
+            mRequests++;
+            if (mFirstRequestUptime == 0) mFirstRequestUptime = SystemClock.uptimeMillis();
+            rescheduleLocked();
+        }
+    }
+
+    /** Barrier: checkpoint everything now and wait for it (bounded). */
+    public void saveNow() {
+        if (Looper.myLooper() == mHandler.getLooper()) {
+            flushOnWorker();
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        mHandler.postAtFrontOfQueue(() -> {
+            flushOnWorker();
+            done.countDown();
+        });
+        try {
+            if (!done.await(BARRIER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Slog.w(TAG, "saveNow timed out");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Restores p from its section of the checkpoint file. Returns false if the file has no
+     * such section (first run, or state still in a store's legacy file).
+     */
+    public boolean restore(Participant p) {
+        readFileOnce();
+        final byte[] bytes;
+        synchronized (mLock) { bytes = mSections.get(p.getName()); }
+        if (bytes == null) return false;
+        try {
+            p.restore(new DataInputStream(new ByteArrayInputStream(bytes)));
+            return true;
+        } catch (IOException e) {
+            Slog.w(TAG, "restore failed: " + p.getName(), e);
+            return false;
+        }
+    }
+
+    /** Loads the file's sections into mSections; anything checkpointed since wins. */
+    private void readFileOnce() {
+        if (mFileRead) return;
+        synchronized (mReadLock) {
+            if (mFileRead) return;
+            final ArrayMap<String, byte[]> sections = new ArrayMap<>();
+            try (FileInputStream fis = mFile.openRead();
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(fis))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    Slog.w(TAG, "checkpoint header mismatch, ignored");
+                } else {
+                    int n = in.readInt();
+                    for (int i = 0; i < n; i++) {
+                        String name = in.readUTF();
+                        byte[] bytes = new byte[in.readInt()];
+                        in.readFully(bytes);
+                        sections.put(name, bytes);
+                    }
+                }
+            } catch (FileNotFoundException e) {
+                // first run
+            } catch (IOException e) {
+                Slog.w(TAG, "checkpoint load failed", e);
+                sections.clear();
+            }
+            synchronized (mLock) {
+                for (int i = 0; i < sections.size(); i++) {
+                    if (!mSections.containsKey(sections.keyAt(i))) {
+                        mSections.put(sections.keyAt(i), sections.valueAt(i));
+                    }
+                }
+            }
+            mFileRead = true;
+        }
+    }
+
+    // -------- internals --------
+
+    private boolean isGoodWindowLocked() {
+        return !mScreenOn || mIdle || mCharging;
+    }
+
+    private void rescheduleLocked() {
+        if (mFirstRequestUptime == 0) return;
+        final long now = SystemClock.uptimeMillis();
+        long due = isGoodWindowLocked()
+                ? now + COALESCE_MS
+                : mFirstRequestUptime + MAX_DEFER_MS;
+        // only move earlier; an already-scheduled earlier flush coalesces this request
+        if (mScheduledUptime != 0 && mScheduledUptime <= due) return;
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.postAtTime(mFlushRunnable, due);
+        mScheduledUptime = due;
+    }
+
+    private void flushOnWorker() {
+        // a checkpoint rewrites the whole file: keep sections nobody has restored yet
+        readFileOnce();
+        final ArrayList<Participant> parts;
+        synchronized (mLock) {
+            mFirstRequestUptime = 0;
+            mScheduledUptime = 0;
+            mHandler.removeCallbacks(mFlushRunnable);
+            parts = new ArrayList<>(mParticipants);
+        }
+
+        final long start = SystemClock.uptimeMillis();
+        ArrayList<Snapshot> taken = new ArrayList<>(parts.size());
+        ArrayMap<String, byte[]> sections;
+        synchronized (mLock) { sections = new ArrayMap<>(mSections); }
+
+        // incremental appends first; they may mark a participant dirty (compaction due)
+        for (int i = 0; i < parts.size(); i++) parts.get(i).flushJournal();
+
+        for (int i = 0; i < parts.size(); i++) {
+            Participant p = parts.get(i);
+            if (!p.isDirty() && sections.containsKey(p.getName())) continue;
+            Snapshot s = p.snapshot();
+            if (s == null) continue;
+            try {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bos);
+                s.writeTo(out);
+                out.flush();
+                sections.put(p.getName(), bos.toByteArray());
+                taken.add(s);
+            } catch (IOException e) {
+                Slog.w(TAG, "serialize failed: " + p.getName(), e);
+            }
+        }
+        if (taken.isEmpty()) return;
+
+        if (!writeCheckpoint(sections)) {
+            mFailures++;
+            return; // stays dirty; retried on next request
+        }
+
+        synchronized (mLock) {
+            for (int i = 0; i < sections.size(); i++) {
+                mSections.put(sections.keyAt(i), sections.valueAt(i));
+            }
+        }
+        for (int i = 0; i < taken.size(); i++) taken.get(i).onPersisted();
+        mCheckpoints++;
+        mLastDurationMs = SystemClock.uptimeMillis() - start;
+    }
+
+    private boolean writeCheckpoint(ArrayMap<String, byte[]> sections) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sections.size());
+            long bytes = 0;
+            for (int i = 0; i < sections.size(); i++) {
+                byte[] b = sections.valueAt(i);
+                out.writeUTF(sections.keyAt(i));
+                out.writeInt(b.length);
+                out.write(b);
+                bytes += b.length;
+            }
+            out.flush();
+            // single fsync for every section of this checkpoint
+            mFile.finishWrite(fos);
+            mLastBytes = bytes;
+            return true;
+        } catch (IOException e) {
+            Slog.w(TAG, "checkpoint failed: " + mFile.getBaseFile(), e);
+            if (fos != null) mFile.failWrite(fos);
+            return false;
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        final boolean screenOn, idle, charging;
+        final long pendingSince;
+        synchronized (mLock) {
+            screenOn = mScreenOn;
+            idle = mIdle;
+            charging = mCharging;
+            pendingSince = mFirstRequestUptime;
+        }
+        pw.println(prefix + "PersistenceWorker:");
+        pw.println(prefix + "  requests=" + mRequests
+                + " checkpoints=" + mCheckpoints
+                + " failures=" + mFailures
+                + " lastBytes=" + mLastBytes
+                + " lastMs=" + mLastDurationMs);
+        pw.println(prefix + "  screenOn=" + screenOn + " idle=" + idle + " charging=" + charging
+                + " pendingSince=" + pendingSince);
+    }
+}
@@ -0,0 +1,231 @@
+package com.android.server.maxpower.chain;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.ArrayMap;
+import android.util.Slog;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Pushes "the prediction for A is now B with score s" to subscribed system services, so they
+ * can warm caches or adjust suspend state without polling.
+ *
+ * publish() never blocks on a subscriber: each subscription has its own bounded queue,
+ * conflated by (userId, A) so a queued event is updated in place with the newest
+ * prediction, and the oldest event is dropped when the queue is full. Delivery runs on the
+ * subscriber's executor (default: one shared background thread), one drain at a time per
+ * subscription and at most DRAIN_BATCH events before yielding the executor. Subscribers
+ * that may block should pass their own executor so they only delay themselves.
+ */
+public final class PredictionFeed {
+    private static final String TAG = "PredictionFeed";
+
+    public static final int DEFAULT_QUEUE = 16;
+    private static final int DRAIN_BATCH = 8;
+
+    public interface Listener {
+        /** pkgB null: nothing is predicted for pkgA any more. */
+        void onPrediction(int userId, String pkgA, String pkgB, float score);
+    }
+
+    private static final class Event {
+        final String key;
+        final int userId;
+        final String pkgA;
+        String pkgB;
+        float score;
+
+        Event(String key, int userId, String pkgA, String pkgB, float score) {
+            this.key = key;
+            this.userId = userId;
+            this.pkgA = pkgA;
+            this.pkgB = pkgB;
+            this.score = score;
+        }
+    }
+
+    private static final class Subscription implements Runnable {
+        final Listener listener;
+        final Executor executor;
+        final int capacity;
+
+        // guarded by this
+        final ArrayDeque<Event> queue = new ArrayDeque<>();
+        final ArrayMap<String, Event> byKey = new ArrayMap<>();
+        boolean scheduled;
+        boolean closed;
+        long delivered;
+        long conflated;
+        long dropped;
+        long failed;
+
+        Subscription(Listener listener, Executor executor, int capacity) {
+            this.listener = listener;
+            this.executor = executor;
+            this.capacity = capacity;
+        }
+
+        void offer(String key, int userId, String pkgA, String pkgB, float score) {
+            synchronized (this) {
+                if (closed) return;
+                Event e = byKey.get(key);
+                if (e != null) {
+                    e.pkgB = pkgB;
+                    e.score = score;
+                    conflated++;
+                    return;
+                }
+                if (queue.size() >= capacity) {
+                    byKey.remove(queue.pollFirst().key);
+                    dropped++;
+                }
+                e = new Event(key, userId, pkgA, pkgB, score);
+                queue.addLast(e);
+                byKey.put(key, e);
+                if (scheduled) return;
+                scheduled = true;
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                Slog.w(TAG, "executor rejected " + listener, e);
+                synchronized (this) {
+                    scheduled = false;
+                    dropped += queue.size();
+                    queue.clear();
+                    byKey.clear();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < DRAIN_BATCH; i++) {
+                final int userId;
+                final String pkgA;
+                final String pkgB;
+                final float score;
+                synchronized (this) {
+                    Event e = closed ? null : queue.pollFirst();
+                    if (e == null) {
+                        scheduled = false;
+                        return;
+                    }
+                    byKey.remove(e.key);
+                    userId = e.userId;
+                    pkgA = e.pkgA;
+                    pkgB = e.pkgB;
+                    score = e.score;
+                }
+                try {
+                    listener.onPrediction(userId, pkgA, pkgB, score);
+                    synchronized (this) { delivered++; }
+                } catch (RuntimeException ex) {
+                    Slog.w(TAG, "subscriber failed: " + listener, ex);
+                    synchronized (this) { failed++; }
+                }
+            }
+            synchronized (this) {
+                if (closed || queue.isEmpty()) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            schedule(); // yield the executor to other work, then continue
+        }
+
+        void close() {
+            synchronized (this) {
+                closed = true;
+                queue.clear();
+                byKey.clear();
+            }
+        }
+    }
+
+    private final Object mLock = new Object();
+    // copy-on-write; publish() reads it without locking
+    private volatile Subscription[] mSubs = new Subscription[0];
+    private Executor mDefaultExecutor; // guarded by mLock, created on first use
+    private long mPublished;
+
+    /** executor null = the feed's shared background thread. capacity: queued A's, >= 1. */
+    public void subscribe(Listener listener, Executor executor, int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity " + capacity);
+        synchronized (mLock) {
+            if (executor == null) executor = defaultExecutorLocked();
+            final Subscription[] old = mSubs;
+            final Subscription[] subs = new Subscription[old.length + 1];
+            System.arraycopy(old, 0, subs, 0, old.length);
+            subs[old.length] = new Subscription(listener, executor, capacity);
+            mSubs = subs;
+        }
+    }
+
+    public void unsubscribe(Listener listener) {
+        synchronized (mLock) {
+            final Subscription[] old = mSubs;
+            for (int i = 0; i < old.length; i++) {
+                if (old[i].listener != listener) continue;
+                old[i].close();
+                final Subscription[] subs = new Subscription[old.length - 1];
+                System.arraycopy(old, 0, subs, 0, i);
+                System.arraycopy(old, i + 1, subs, i, old.length - i - 1);
+                mSubs = subs;
+                return;
+            }
+        }
+    }
+
+    /** Cheap check so callers can skip computing a prediction nobody listens for. */
+    public boolean hasSubscribers() {
+        return mSubs.length > 0;
+    }
+
+    /** Hot path: enqueues to every subscriber and returns; never runs listener code. */
+    public void publish(int userId, String pkgA, String pkgB, float score) {
+        final Subscription[] subs = mSubs;
+        if (subs.length == 0) return;
+        final String key = pkgA + '\0' + userId;
+        for (Subscription s : subs) s.offer(key, userId, pkgA, pkgB, score);
+        synchronized (mLock) { mPublished++; }
+    }
+
+    private Executor defaultExecutorLocked() {
+        if (mDefaultExecutor == null) {
+            HandlerThread t = new HandlerThread("maxpower-predict-feed",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            t.start();
+            final Handler h = new Handler(t.getLooper());
+            mDefaultExecutor = r -> {
+                if (!h.post(r)) throw new RejectedExecutionException("feed thread gone");
+            };
+        }
+        return mDefaultExecutor;
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        final Subscription[] subs = mSubs;
+        synchronized (mLock) {
+            pw.println(prefix + "PredictionFeed: subscribers=" + subs.length
+                    + " published=" + mPublished);
+        }
+        for (Subscription s : subs) {
+            synchronized (s) {
+                pw.println(prefix + "  " + s.listener + " queued=" + s.queue.size()
+                        + "/" + s.capacity + " delivered=" + s.delivered
+                        + " conflated=" + s.conflated + " dropped=" + s.dropped
+                        + " failed=" + s.failed);
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.android.server.maxpower.chain;
+
+/** Original rule: one global rate LR0/(1+0.0005*updates) + tiny L2. No per-coordinate state. */
+public final class SgdOptimizer implements Optimizer {
+    private static final float LR0 = 0.05f;
+    private static final float L2 = 1e-5f;
+
+    private float mLr0;
+    private float mL2;
+    private float mLr;
+
+    public SgdOptimizer() {
+        this(LR0, L2);
+    }
+
+    /** lr0/l2: ChainConfig.lr / l2. */
+    public SgdOptimizer(float lr0, float l2) {
+        setRates(lr0, l2);
+        mLr = lr0;
+    }
+
+    /** Takes effect from the next begin(); the decay schedule continues from the update count. */
+    public void setRates(float lr0, float l2) {
+        mLr0 = lr0;
+        mL2 = l2;
+    }
+
+    @Override
+    public int type() { return TYPE_SGD; }
+
+    @Override
+    public void begin(long updates) {
+        mLr = (float) (mLr0 / (1.0 + 0.0005 * updates));
+    }
+
+    @Override
+    public float step(int k, float w, float g) {
+        return w * (1f - mLr * mL2) - mLr * g;
+    }
+}
@@ -0,0 +1,214 @@
+package com.android.server.maxpower.chain;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a candidate model next to the live one without touching the live path.
+ *
+ * The manager forwards the same training examples, launcher launches and transitions; each
+ * is one post to a background thread, dropped (and counted) when MAX_QUEUED posts are
+ * already waiting. On the background thread the shadow scores the launch after the fact
+ * and both decisions are judged against the app the user actually opened next from A
+ * within the window:
+ *  - hit:   the model would open / opened exactly that app
+ *  - waste: it would open / opened something else, or the user opened nothing
+ *  - missed: no launch although the user went on to an eligible candidate
+ *
+ * A live launch brings its B to the foreground itself, so live hits are optimistic; the
+ * comparison is most telling where the two disagree (see agree).
+ *
+ * Evaluation state is confined to the shadow thread; counters are read under mLock.
+ * close() ends the thread; the owner calls it when the evaluator is removed or replaced.
+ */
+public final class ShadowEvaluator {
+    private static final String TAG = "ShadowEvaluator";
+    private static final int MAX_QUEUED = 64;
+
+    /** The model under evaluation. */
+    public interface Model {
+        float inferProbability(String pkgA, String pkgB);
+        void train(String pkgA, String pkgB, int label);
+    }
+
+    public static Model wrap(TinyNextAppPredictorLite p) {
+        return new Model() {
+            @Override
+            public float inferProbability(String a, String b) { return p.inferProbability(a, b); }
+
+            @Override
+            public void train(String a, String b, int label) { p.train(a, b, label); }
+        };
+    }
+
+    /** TinyNextAppModel is not thread-safe; only the shadow thread may touch it. */
+    public static Model wrap(TinyNextAppModel m) {
+        return new Model() {
+            @Override
+            public float inferProbability(String a, String b) { return m.infer(a, b); }
+
+            @Override
+            public void train(String a, String b, int label) { m.train(a, b, label, 1); }
+        };
+    }
+
+    private final Model mModel;
+    private final float mThreshold;
+    private final long mWindowMs;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private volatile boolean mClosed;
+    private final AtomicInteger mQueued = new AtomicInteger();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    // pending launch, shadow thread only
+    private String mPendingA;
+    private int mPendingUser;
+    private long mPendingAt;
+    private String mLiveB;
+    private String mShadowB;
+    private List<String> mPendingCandidates;
+
+    private final Object mLock = new Object();
+    private long mEvaluated;
+    private long mLiveLaunches;
+    private long mLiveHits;
+    private long mLiveWaste;
+    private long mLiveMissed;
+    private long mShadowLaunches;
+    private long mShadowHits;
+    private long mShadowWaste;
+    private long mShadowMissed;
+    private long mAgree;
+    private long mTrained;
+
+    /** threshold: the shadow's would-be launch threshold; windowMs as ChainConfig.windowMs. */
+    public ShadowEvaluator(Model model, float threshold, long windowMs) {
+        mModel = model;
+        mThreshold = threshold;
+        mWindowMs = windowMs;
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /** Stops accepting events and quits the thread once already queued ones ran. */
+    public void close() {
+        mClosed = true;
+        mThread.quitSafely();
+    }
+
+    // -------- live path: one bounded post each, never blocks --------
+
+    /** Same examples the live model just trained on (negs may be empty). */
+    public void onTrain(String pkgA, String pkgB, List<String> negs) {
+        post(() -> {
+            mModel.train(pkgA, pkgB, 1);
+            for (int i = 0; i < negs.size(); i++) mModel.train(pkgA, negs.get(i), 0);
+            synchronized (mLock) { mTrained += 1 + negs.size(); }
+        });
+    }
+
+    /** launchedB: what the live model opened, or null. candidates must not be mutated. */
+    public void onLaunch(String pkgA, int userId, List<String> candidates, String launchedB,
+            long nowUptime) {
+        post(() -> {
+            resolve(null);
+            mPendingA = pkgA;
+            mPendingUser = userId;
+            mPendingAt = nowUptime;
+            mLiveB = launchedB;
+            mShadowB = scoreTop1(pkgA, candidates);
+            mPendingCandidates = candidates;
+        });
+    }
+
+    public void onTransition(String fromPkg, String toPkg, int userId, long nowUptime) {
+        post(() -> {
+            if (mPendingA == null) return;
+            if (nowUptime - mPendingAt > mWindowMs) {
+                resolve(null);
+            } else if (userId == mPendingUser && mPendingA.equals(fromPkg)) {
+                resolve(toPkg);
+            }
+        });
+    }
+
+    private void post(Runnable r) {
+        if (mClosed) return;
+        if (mQueued.incrementAndGet() > MAX_QUEUED) {
+            mQueued.decrementAndGet();
+            mDropped.incrementAndGet();
+            return;
+        }
+        boolean posted = mHandler.post(() -> {
+            mQueued.decrementAndGet();
+            r.run();
+        });
+        if (!posted) mQueued.decrementAndGet(); // raced with close()
+    }
+
+    // -------- shadow thread --------
+
+    private String scoreTop1(String pkgA, List<String> candidates) {
+        String best = null;
+        float bestP = -1f;
+        for (int i = 0; i < candidates.size(); i++) {
+            String b = candidates.get(i);
+            if (b.equals(pkgA)) continue;
+            float p = mModel.inferProbability(pkgA, b);
+            if (p > bestP) {
+                bestP = p;
+                best = b;
+            }
+        }
+        return bestP >= mThreshold ? best : null;
+    }
+
+    /** Judges the pending launch; actual = app opened next from A (null = none). */
+    private void resolve(String actual) {
+        if (mPendingA == null) return;
+        final boolean reachable = actual != null && mPendingCandidates.contains(actual);
+        synchronized (mLock) {
+            mEvaluated++;
+            if (mLiveB != null) {
+                mLiveLaunches++;
+                if (mLiveB.equals(actual)) mLiveHits++;
+                else mLiveWaste++;
+            } else if (reachable) {
+                mLiveMissed++;
+            }
+            if (mShadowB != null) {
+                mShadowLaunches++;
+                if (mShadowB.equals(actual)) mShadowHits++;
+                else mShadowWaste++;
+            } else if (reachable) {
+                mShadowMissed++;
+            }
+            if (mLiveB == null ? mShadowB == null : mLiveB.equals(mShadowB)) mAgree++;
+        }
+        mPendingA = null;
+        mLiveB = null;
+        mShadowB = null;
+        mPendingCandidates = null;
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.println(prefix + "ShadowEvaluator: threshold=" + mThreshold
+                    + " evaluated=" + mEvaluated + " agree=" + mAgree
+                    + " trained=" + mTrained + (mClosed ? " closed" : "")
+                    + " queued=" + mQueued.get() + " dropped=" + mDropped.get());
+            pw.println(prefix + "  live:   launches=" + mLiveLaunches + " hits=" + mLiveHits
+                    + " waste=" + mLiveWaste + " missed=" + mLiveMissed);
+            pw.println(prefix + "  shadow: launches=" + mShadowLaunches + " hits=" + mShadowHits
+                    + " waste=" + mShadowWaste + " missed=" + mShadowMissed);
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package com.android.server.maxpower.chain;
+
+import android.util.ArrayMap;
+import android.util.Slog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Per-user top-K successor table published in a memory-mapped file, so other components
+ * (launcher preloading, memory management) read predictions without binder calls or locks.
+ *
+ * Layout (native byte order):
+ *   header   magic, version, seq (long), rows, k, nameCap, heapBytes, heapUsed, names, flags
+ *   names    nameCap x (offset, length) into the heap
+ *   heap     UTF-8 package names, append-only
+ *   rows     rows x (userId, nameA, n, pad, updatedMs, k x (nameB, score))
+ *
+ * Rows are an open-addressed table keyed by (userId, A) with String.hashCode() and at most
+ * MAX_PROBE linear probes; a full probe window overwrites its oldest row. The single writer
+ * wraps every change in a seqlock: seq is odd while writing, and readers retry when seq
+ * changed or was odd around their copy. When the name heap fills up the table is cleared
+ * and refills as rows are published again.
+ *
+ * A new writer (service restart) never resizes a file that readers may have mapped: it
+ * builds the region in "<file>.new", sets FLAG_RETIRED in the old file's header and renames
+ * the new file over it. Readers of the old mapping keep a valid but frozen view and reopen
+ * once Reader.isRetired() says so.
+ */
+public final class SharedPredictionTable {
+    private static final String TAG = "SharedPredictionTable";
+
+    static final int MAGIC = 0x4E58544B; // "NXTK"
+    static final int VERSION = 1;
+    static final int MAX_PROBE = 8;
+
+    // header offsets
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_SEQ = 8;
+    private static final int H_ROWS = 16;
+    private static final int H_K = 20;
+    private static final int H_NAME_CAP = 24;
+    private static final int H_HEAP_BYTES = 28;
+    private static final int H_HEAP_USED = 32;
+    private static final int H_NAMES = 36;
+    private static final int H_FLAGS = 40;
+    private static final int HEADER_BYTES = 64;
+
+    /** Header flag: a newer table replaced this file; reopen it. */
+    static final int FLAG_RETIRED = 1;
+
+    // row layout
+    private static final int R_USER = 0;
+    private static final int R_A = 4;
+    private static final int R_N = 8;
+    private static final int R_UPDATED = 16;
+    private static final int R_ENTRIES = 24;
+    private static final int EMPTY = -1;
+
+    private final int mRows;
+    private final int mK;
+    private final int mNameCap;
+    private final int mHeapBytes;
+    private final int mNamesOff;
+    private final int mHeapOff;
+    private final int mRowsOff;
+    private final int mRowBytes;
+    private final MappedByteBuffer mBuf;
+
+    // writer state (guarded by this)
+    private final ArrayMap<String, Integer> mNameIds = new ArrayMap<>();
+    private int mHeapUsed;
+    private long mSeq;
+    private long mPublished;
+    private long mResets;
+
+    /** Creates the region and replaces file with it (see class doc). */
+    public SharedPredictionTable(File file, int rows, int k, int nameCap, int heapBytes)
+            throws IOException {
+        mRows = rows;
+        mK = k;
+        mNameCap = nameCap;
+        mHeapBytes = heapBytes;
+        mNamesOff = HEADER_BYTES;
+        mHeapOff = mNamesOff + nameCap * 8;
+        mRowsOff = mHeapOff + heapBytes;
+        mRowBytes = R_ENTRIES + k * 8;
+        final int size = mRowsOff + rows * mRowBytes;
+        final File tmp = new File(file.getPath() + ".new");
+        // private until the rename: nobody maps it, so resizing is safe
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            raf.setLength(0);
+            raf.setLength(size);
+            mBuf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        mBuf.order(ByteOrder.nativeOrder());
+        mBuf.putInt(H_MAGIC, MAGIC);
+        mBuf.putInt(H_VERSION, VERSION);
+        mBuf.putInt(H_ROWS, rows);
+        mBuf.putInt(H_K, k);
+        mBuf.putInt(H_NAME_CAP, nameCap);
+        mBuf.putInt(H_HEAP_BYTES, heapBytes);
+        synchronized (this) {
+            beginWrite();
+            clearLocked();
+            endWrite();
+        }
+        retire(file);
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("cannot replace " + file);
+        }
+    }
+
+    /** Flags an existing table as replaced; only its header is touched, never its size. */
+    private static void retire(File file) {
+        if (!file.exists()) return;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < HEADER_BYTES) return;
+            MappedByteBuffer old = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_BYTES);
+            old.order(ByteOrder.nativeOrder());
+            if (old.getInt(H_MAGIC) != MAGIC) return;
+            old.putInt(H_FLAGS, old.getInt(H_FLAGS) | FLAG_RETIRED);
+        } catch (IOException e) {
+            Slog.w(TAG, "cannot retire " + file, e);
+        }
+    }
+
+    /** Replaces the row (userId, pkgA) with the first n of pkgs/scores (best first). */
+    public synchronized void publish(int userId, String pkgA, String[] pkgs, float[] scores,
+            int n) {
+        n = Math.min(n, mK);
+        // resolve names first: a heap reset must not happen in the middle of a row
+        if (!hasRoomLocked(pkgA, pkgs, n)) {
+            beginWrite();
+            clearLocked();
+            endWrite();
+            mResets++;
+            Slog.i(TAG, "name heap full; cleared");
+        }
+        beginWrite();
+        final int a = nameIdLocked(pkgA);
+        final int row = rowForWriteLocked(userId, pkgA);
+        final int base = mRowsOff + row * mRowBytes;
+        mBuf.putInt(base + R_USER, userId);
+        mBuf.putInt(base + R_A, a);
+        mBuf.putLong(base + R_UPDATED, System.currentTimeMillis());
+        for (int i = 0; i < n; i++) {
+            mBuf.putInt(base + R_ENTRIES + i * 8, nameIdLocked(pkgs[i]));
+            mBuf.putFloat(base + R_ENTRIES + i * 8 + 4, scores[i]);
+        }
+        mBuf.putInt(base + R_N, n);
+        endWrite();
+        mPublished++;
+    }
+
+    /** Flushes dirty pages to the file (tests / crash analysis); readers don't need it. */
+    public synchronized void force() {
+        mBuf.force();
+    }
+
+    public int k() {
+        return mK;
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "SharedPredictionTable: rows=" + mRows + " k=" + mK
+                + " names=" + mNameIds.size() + "/" + mNameCap
+                + " heap=" + mHeapUsed + "/" + mHeapBytes
+                + " seq=" + mSeq + " published=" + mPublished + " resets=" + mResets);
+    }
+
+    // -------- writer internals --------
+
+    private void beginWrite() {
+        mBuf.putLong(H_SEQ, ++mSeq); // odd
+        VarHandle.storeStoreFence();
+    }
+
+    private void endWrite() {
+        VarHandle.storeStoreFence();
+        mBuf.putLong(H_SEQ, ++mSeq); // even
+    }
+
+    private void clearLocked() {
+        mNameIds.clear();
+        mHeapUsed = 0;
+        mBuf.putInt(H_HEAP_USED, 0);
+        mBuf.putInt(H_NAMES, 0);
+        for (int r = 0; r < mRows; r++) {
+            int base = mRowsOff + r * mRowBytes;
+            mBuf.putInt(base + R_A, EMPTY);
+            mBuf.putInt(base + R_N, 0);
+            mBuf.putLong(base + R_UPDATED, 0);
+        }
+    }
+
+    private boolean hasRoomLocked(String pkgA, String[] pkgs, int n) {
+        int names = mNameIds.size();
+        int bytes = mHeapUsed;
+        for (int i = -1; i < n; i++) {
+            String p = i < 0 ? pkgA : pkgs[i];
+            if (mNameIds.containsKey(p)) continue;
+            names++;
+            bytes += p.getBytes(StandardCharsets.UTF_8).length;
+        }
+        return names <= mNameCap && bytes <= mHeapBytes;
+    }
+
+    /** Caller checked hasRoomLocked(). */
+    private int nameIdLocked(String pkg) {
+        Integer id = mNameIds.get(pkg);
+        if (id != null) return id;
+        byte[] b = pkg.getBytes(StandardCharsets.UTF_8);
+        int newId = mNameIds.size();
+        for (int i = 0; i < b.length; i++) mBuf.put(mHeapOff + mHeapUsed + i, b[i]);
+        mBuf.putInt(mNamesOff + newId * 8, mHeapUsed);
+        mBuf.putInt(mNamesOff + newId * 8 + 4, b.length);
+        mHeapUsed += b.length;
+        mNameIds.put(pkg, newId);
+        mBuf.putInt(H_HEAP_USED, mHeapUsed);
+        mBuf.putInt(H_NAMES, mNameIds.size());
+        return newId;
+    }
+
+    private int rowForWriteLocked(int userId, String pkgA) {
+        final int start = slot(userId, pkgA, mRows);
+        final Integer aId = mNameIds.get(pkgA);
+        int oldest = start;
+        long oldestMs = Long.MAX_VALUE;
+        for (int p = 0; p < Math.min(MAX_PROBE, mRows); p++) {
+            int r = (start + p) % mRows;
+            int base = mRowsOff + r * mRowBytes;
+            int a = mBuf.getInt(base + R_A);
+            if (a == EMPTY) return r;
+            if (aId != null && a == aId && mBuf.getInt(base + R_USER) == userId) return r;
+            long updated = mBuf.getLong(base + R_UPDATED);
+            if (updated < oldestMs) {
+                oldestMs = updated;
+                oldest = r;
+            }
+        }
+        return oldest;
+    }
+
+    static int slot(int userId, String pkgA, int rows) {
+        int h = pkgA.hashCode() * 31 + userId;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % rows;
+    }
+
+    // -------- reader (any process) --------
+
+    /** Read-only view of a published table; lock-free, retries around concurrent writes. */
+    public static final class Reader {
+        private static final int MAX_RETRIES = 16;
+
+        private final MappedByteBuffer mBuf;
+        private final int mRows;
+        private final int mK;
+        private final int mNamesOff;
+        private final int mHeapOff;
+        private final int mRowsOff;
+        private final int mRowBytes;
+
+        public Reader(File file) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                mBuf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            }
+            mBuf.order(ByteOrder.nativeOrder());
+            if (mBuf.getInt(H_MAGIC) != MAGIC || mBuf.getInt(H_VERSION) != VERSION) {
+                throw new IOException("not a prediction table");
+            }
+            mRows = mBuf.getInt(H_ROWS);
+            mK = mBuf.getInt(H_K);
+            int nameCap = mBuf.getInt(H_NAME_CAP);
+            int heapBytes = mBuf.getInt(H_HEAP_BYTES);
+            mNamesOff = HEADER_BYTES;
+            mHeapOff = mNamesOff + nameCap * 8;
+            mRowsOff = mHeapOff + heapBytes;
+            mRowBytes = R_ENTRIES + mK * 8;
+        }
+
+        public int k() {
+            return mK;
+        }
+
+        /** Table version; changes on every publish. */
+        public long sequence() {
+            return mBuf.getLong(H_SEQ);
+        }
+
+        /** The writer replaced the file: this view no longer changes, open a new Reader. */
+        public boolean isRetired() {
+            return (mBuf.getInt(H_FLAGS) & FLAG_RETIRED) != 0;
+        }
+
+        /**
+         * Copies the successors of (userId, pkgA), best first, into the out arrays (length
+         * >= k()). Returns how many, 0 if unknown, -1 if no stable copy could be taken.
+         */
+        public int lookup(int userId, String pkgA, String[] outPkgs, float[] outScores) {
+            final byte[] want = pkgA.getBytes(StandardCharsets.UTF_8);
+            final int start = slot(userId, pkgA, mRows);
+            for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+                final long s1 = mBuf.getLong(H_SEQ);
+                if ((s1 & 1) != 0) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                VarHandle.loadLoadFence();
+                int n = 0;
+                boolean torn = false;
+                try {
+                    for (int p = 0; p < Math.min(MAX_PROBE, mRows); p++) {
+                        int base = mRowsOff + ((start + p) % mRows) * mRowBytes;
+                        int a = mBuf.getInt(base + R_A);
+                        if (a == EMPTY) break;
+                        if (mBuf.getInt(base + R_USER) != userId || !nameEquals(a, want)) continue;
+                        n = Math.min(mBuf.getInt(base + R_N), Math.min(mK, outPkgs.length));
+                        for (int i = 0; i < n; i++) {
+                            outPkgs[i] = name(mBuf.getInt(base + R_ENTRIES + i * 8));
+                            outScores[i] = mBuf.getFloat(base + R_ENTRIES + i * 8 + 4);
+                        }
+                        break;
+                    }
+                } catch (IndexOutOfBoundsException | IllegalArgumentException
+                        | NegativeArraySizeException e) {
+                    torn = true; // offsets read mid-write
+                }
+                VarHandle.loadLoadFence();
+                if (!torn && mBuf.getLong(H_SEQ) == s1) return n;
+            }
+            return -1;
+        }
+
+        private boolean nameEquals(int id, byte[] want) {
+            int off = mBuf.getInt(mNamesOff + id * 8);
+            int len = mBuf.getInt(mNamesOff + id * 8 + 4);
+            if (len != want.length) return false;
+            for (int i = 0; i < len; i++) {
+                if (mBuf.get(mHeapOff + off + i) != want[i]) return false;
+            }
+            return true;
+        }
+
+        private String name(int id) {
+            int off = mBuf.getInt(mNamesOff + id * 8);
+            int len = mBuf.getInt(mNamesOff + id * 8 + 4);
+            byte[] b = new byte[len];
+            for (int i = 0; i < len; i++) b[i] = mBuf.get(mHeapOff + off + i);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package com.android.server.maxpower.chain;
+
+import android.util.ArrayMap;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Space-Saving heavy-hitter counter with fixed capacity (Metwally et al., Stream-Summary).
+ *
+ * Monitors at most `capacity` keys. An unseen key takes over the slot of the current minimum
+ * and inherits its count as error. Guarantees, with N = total increments:
+ *  - count(k) - error(k) <= true(k) <= count(k)
+ *  - error(k) <= N / capacity, and every key with true(k) > N / capacity is monitored.
+ *
+ * Entries are grouped in buckets of equal count kept in ascending order, so +1 updates and
+ * min-eviction are O(1) (larger deltas walk forward over buckets). All state lives in
+ * parallel int arrays, including the key index: open addressing with linear probing at load
+ * <= 1/2, so lookups are expected O(1) and nothing is boxed.
+ *
+ * Not thread-safe: guard with the owner's lock.
+ */
+public final class SpaceSavingSketch {
+    private static final int NONE = -1;
+
+    private final int mCapacity;
+
+    // entries
+    private final String[] mKeys;
+    private final int[] mCount;
+    private final int[] mErr;
+    private final int[] mBucketOf;
+    private final int[] mEPrev;
+    private final int[] mENext;
+    private int mSize;
+    // largest mErr[] of a monitored entry; < 0 = recompute (its holder was removed)
+    private int mMaxErr;
+
+    // key index: slot -> entry + 1, 0 = empty; power-of-two length >= 2 * capacity
+    private final int[] mSlots;
+    private final int mSlotMask;
+    private final int mSlotShift;
+
+    // buckets (one spare: a new bucket is linked before the emptied one is freed)
+    private final int[] mBCount;
+    private final int[] mBEntries; // first entry of the bucket
+    private final int[] mBPrev;
+    private final int[] mBNext;
+    private int mBFirst = NONE;    // lowest count
+    private int mBLast = NONE;     // highest count
+    private int mBFree = NONE;
+
+    private long mTotal;
+
+    /** On-disk key encoding; e.g. dictionary ids instead of strings. */
+    public interface KeyCodec {
+        void writeKey(DataOutputStream out, String key) throws IOException;
+        /** null = key not decodable; the entry is skipped. */
+        String readKey(DataInputStream in) throws IOException;
+    }
+
+    private static final KeyCodec UTF_CODEC = new KeyCodec() {
+        @Override
+        public void writeKey(DataOutputStream out, String key) throws IOException {
+            out.writeUTF(key);
+        }
+
+        @Override
+        public String readKey(DataInputStream in) throws IOException {
+            return in.readUTF();
+        }
+    };
+
+    public SpaceSavingSketch(int capacity) {
+        mCapacity = Math.max(1, capacity);
+        mKeys = new String[mCapacity];
+        mCount = new int[mCapacity];
+        mErr = new int[mCapacity];
+        mBucketOf = new int[mCapacity];
+        mEPrev = new int[mCapacity];
+        mENext = new int[mCapacity];
+        mSlots = new int[Integer.highestOneBit(mCapacity) << 2];
+        mSlotMask = mSlots.length - 1;
+        mSlotShift = Integer.numberOfLeadingZeros(mSlotMask);
+        mBCount = new int[mCapacity + 1];
+        mBEntries = new int[mCapacity + 1];
+        mBPrev = new int[mCapacity + 1];
+        mBNext = new int[mCapacity + 1];
+        clear();
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /** Total increments seen since clear(). */
+    public long total() {
+        return mTotal;
+    }
+
+    /** Largest error of a monitored count; 0 when no entry took over a slot. */
+    public int maxError() {
+        if (mMaxErr < 0) {
+            int max = 0;
+            for (int e = 0; e < mSize; e++) max = Math.max(max, mErr[e]);
+            mMaxErr = max;
+        }
+        return mMaxErr;
+    }
+
+    public void clear() {
+        Arrays.fill(mSlots, 0);
+        for (int i = 0; i < mCapacity; i++) mKeys[i] = null;
+        mSize = 0;
+        mMaxErr = 0;
+        mTotal = 0;
+        mBFirst = NONE;
+        mBLast = NONE;
+        mBFree = NONE;
+        for (int b = mBCount.length - 1; b >= 0; b--) {
+            mBNext[b] = mBFree;
+            mBFree = b;
+        }
+    }
+
+    public void add(String key, int delta) {
+        if (key == null || delta <= 0) return;
+        mTotal += delta;
+        int idx = indexOf(key);
+        if (idx != NONE) {
+            increment(idx, delta);
+            return;
+        }
+        if (mSize < mCapacity) {
+            int e = mSize++;
+            mKeys[e] = key;
+            mErr[e] = 0;
+            indexPut(key, e);
+            attach(e, delta, NONE);
+            return;
+        }
+        // take over the minimum; its count becomes our error
+        int e = mBEntries[mBFirst];
+        indexRemove(mKeys[e]);
+        mKeys[e] = key;
+        mErr[e] = mCount[e];
+        if (mMaxErr >= 0 && mErr[e] > mMaxErr) mMaxErr = mErr[e];
+        indexPut(key, e);
+        increment(e, delta);
+    }
+
+    /** Key of entry i, 0 <= i < size(). Entry order changes on remove(). */
+    public String keyAt(int i) {
+        return mKeys[i];
+    }
+
+    /**
+     * Stops monitoring key (e.g. uninstalled package). The last entry moves into its slot,
+     * so callers walking keyAt() downwards see every remaining entry once. total() is kept.
+     */
+    public boolean remove(String key) {
+        final int e = indexRemove(key);
+        if (e == NONE) return false;
+        if (mErr[e] == mMaxErr && mErr[e] > 0) mMaxErr = -1;
+        final int b = mBucketOf[e];
+        detach(e);
+        if (mBEntries[b] == NONE) freeBucket(b);
+        final int last = --mSize;
+        if (e != last) moveEntry(last, e);
+        mKeys[last] = null;
+        return true;
+    }
+
+    private void moveEntry(int from, int to) {
+        mKeys[to] = mKeys[from];
+        mCount[to] = mCount[from];
+        mErr[to] = mErr[from];
+        mBucketOf[to] = mBucketOf[from];
+        mEPrev[to] = mEPrev[from];
+        mENext[to] = mENext[from];
+        if (mEPrev[to] != NONE) mENext[mEPrev[to]] = to;
+        else mBEntries[mBucketOf[to]] = to;
+        if (mENext[to] != NONE) mEPrev[mENext[to]] = to;
+        indexPut(mKeys[to], to);
+    }
+
+    /** Estimated count (upper bound); 0 if not monitored. */
+    public int estimate(String key) {
+        int idx = key == null ? NONE : indexOf(key);
+        return idx == NONE ? 0 : mCount[idx];
+    }
+
+    /** Guaranteed count (lower bound); 0 if not monitored. */
+    public int guaranteed(String key) {
+        int idx = key == null ? NONE : indexOf(key);
+        return idx == NONE ? 0 : mCount[idx] - mErr[idx];
+    }
+
+    /** key -> count; guaranteed = lower bounds (entries at 0 omitted), else estimates. */
+    public ArrayMap<String, Integer> toCounts(boolean guaranteed) {
+        ArrayMap<String, Integer> out = new ArrayMap<>(mSize);
+        for (int e = 0; e < mSize; e++) {
+            int c = guaranteed ? mCount[e] - mErr[e] : mCount[e];
+            if (c > 0) out.put(mKeys[e], c);
+        }
+        return out;
+    }
+
+    public SpaceSavingSketch copy() {
+        SpaceSavingSketch s = new SpaceSavingSketch(mCapacity);
+        s.copyFrom(this);
+        return s;
+    }
+
+    /** Replaces content with src's. A smaller capacity keeps the largest entries. */
+    public void copyFrom(SpaceSavingSketch src) {
+        clear();
+        int skip = Math.max(0, src.mSize - mCapacity);
+        for (int b = src.mBFirst; b != NONE; b = src.mBNext[b]) {
+            for (int e = src.mBEntries[b]; e != NONE; e = src.mENext[e]) {
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+                restoreEntry(src.mKeys[e], src.mCount[e], src.mErr[e]);
+            }
+        }
+        mTotal = src.mTotal;
+    }
+
+    // -------- serialization: ascending count order, varints --------
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        writeTo(out, UTF_CODEC);
+    }
+
+    public void writeTo(DataOutputStream out, KeyCodec codec) throws IOException {
+        out.writeInt(mCapacity);
+        out.writeLong(mTotal);
+        out.writeInt(mSize);
+        for (int b = mBFirst; b != NONE; b = mBNext[b]) {
+            for (int e = mBEntries[b]; e != NONE; e = mENext[e]) {
+                codec.writeKey(out, mKeys[e]);
+                VarInt.write(out, mCount[e]);
+                VarInt.write(out, mErr[e]);
+            }
+        }
+    }
+
+    /** Replaces content. A smaller capacity keeps the largest entries. */
+    public void readFrom(DataInputStream in) throws IOException {
+        readFrom(in, UTF_CODEC);
+    }
+
+    public void readFrom(DataInputStream in, KeyCodec codec) throws IOException {
+        clear();
+        in.readInt(); // capacity it was written with
+        long total = in.readLong();
+        int n = in.readInt();
+        int skip = Math.max(0, n - mCapacity);
+        for (int i = 0; i < n; i++) {
+            String key = codec.readKey(in);
+            int count = VarInt.read(in);
+            int err = VarInt.read(in);
+            if (i < skip || key == null || count <= 0) continue;
+            restoreEntry(key, count, Math.min(err, count));
+        }
+        mTotal = total;
+    }
+
+    /** Appends an entry; O(1) when entries arrive in ascending count order. */
+    private void restoreEntry(String key, int count, int err) {
+        if (mSize >= mCapacity || indexOf(key) != NONE) return;
+        int e = mSize++;
+        mKeys[e] = key;
+        mErr[e] = err;
+        if (mMaxErr >= 0 && err > mMaxErr) mMaxErr = err;
+        indexPut(key, e);
+        int start = mBLast != NONE && mBCount[mBLast] <= count ? mBLast : NONE;
+        attach(e, count, start);
+    }
+
+    // -------- key index --------
+
+    private int slotOf(String key) {
+        return (key.hashCode() * 0x9E3779B9) >>> mSlotShift; // Fibonacci hashing: top bits
+    }
+
+    private int indexOf(String key) {
+        for (int s = slotOf(key); ; s = (s + 1) & mSlotMask) {
+            int v = mSlots[s];
+            if (v == 0) return NONE;
+            if (key.equals(mKeys[v - 1])) return v - 1;
+        }
+    }
+
+    /** Maps key to e, replacing its current entry if indexed. mKeys[e] must already be key. */
+    private void indexPut(String key, int e) {
+        int s = slotOf(key);
+        while (mSlots[s] != 0 && !key.equals(mKeys[mSlots[s] - 1])) s = (s + 1) & mSlotMask;
+        mSlots[s] = e + 1;
+    }
+
+    /** Unmaps key; returns its entry or NONE. Backward-shift delete, no tombstones. */
+    private int indexRemove(String key) {
+        int s = slotOf(key);
+        while (true) {
+            int v = mSlots[s];
+            if (v == 0) return NONE;
+            if (key.equals(mKeys[v - 1])) break;
+            s = (s + 1) & mSlotMask;
+        }
+        final int e = mSlots[s] - 1;
+        // pull later probes of the run back over the hole
+        int hole = s;
+        for (int n = (hole + 1) & mSlotMask; mSlots[n] != 0; n = (n + 1) & mSlotMask) {
+            int home = slotOf(mKeys[mSlots[n] - 1]);
+            if (((n - home) & mSlotMask) >= ((n - hole) & mSlotMask)) {
+                mSlots[hole] = mSlots[n];
+                hole = n;
+            }
+        }
+        mSlots[hole] = 0;
+        return e;
+    }
+
+    // -------- stream-summary --------
+
+    private void increment(int e, int delta) {
+        int b = mBucketOf[e];
+        detach(e);
+        attach(e, mCount[e] + delta, b);
+        if (mBEntries[b] == NONE) freeBucket(b);
+    }
+
+    /** Puts e into the bucket for newCount, scanning from start (count <= newCount) or head. */
+    private void attach(int e, int newCount, int start) {
+        int prev = start == NONE ? NONE : mBPrev[start];
+        int cur = start == NONE ? mBFirst : start;
+        while (cur != NONE && mBCount[cur] < newCount) {
+            prev = cur;
+            cur = mBNext[cur];
+        }
+        int target;
+        if (cur != NONE && mBCount[cur] == newCount) {
+            target = cur;
+        } else {
+            target = newBucket(newCount, prev, cur);
+        }
+        mCount[e] = newCount;
+        mBucketOf[e] = target;
+        mEPrev[e] = NONE;
+        mENext[e] = mBEntries[target];
+        if (mENext[e] != NONE) mEPrev[mENext[e]] = e;
+        mBEntries[target] = e;
+    }
+
+    private void detach(int e) {
+        int b = mBucketOf[e];
+        if (mEPrev[e] != NONE) mENext[mEPrev[e]] = mENext[e];
+        else mBEntries[b] = mENext[e];
+        if (mENext[e] != NONE) mEPrev[mENext[e]] = mEPrev[e];
+        mEPrev[e] = NONE;
+        mENext[e] = NONE;
+    }
+
+    private int newBucket(int count, int prev, int next) {
+        int b = mBFree;
+        mBFree = mBNext[b];
+        mBCount[b] = count;
+        mBEntries[b] = NONE;
+        mBPrev[b] = prev;
+        mBNext[b] = next;
+        if (prev != NONE) mBNext[prev] = b;
+        else mBFirst = b;
+        if (next != NONE) mBPrev[next] = b;
+        else mBLast = b;
+        return b;
+    }
+
+    private void freeBucket(int b) {
+        if (mBPrev[b] != NONE) mBNext[mBPrev[b]] = mBNext[b];
+        else mBFirst = mBNext[b];
+        if (mBNext[b] != NONE) mBPrev[mBNext[b]] = mBPrev[b];
+        else mBLast = mBPrev[b];
+        mBNext[b] = mBFree;
+        mBFree = b;
+    }
+}
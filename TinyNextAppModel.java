@@ -1,49 +1,72 @@
 package com.android.server.maxpower.chain;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 
 public final class TinyNextAppModel {
+    /** Default hash space (2^11). */
     public static final int D = 2048;
 
-    private final float[] w = new float[D];
+    private final int dim;
+    // sparse until dense enough; see HashedWeights
+    private final HashedWeights w;
     private long updates = 0;
 
-    // tune
-    private static final float LR0 = 0.05f;
-    private static final float L2 = 1e-5f;
+    // update rule; SGD keeps the original LR0/(1+0.0005*updates) schedule
+    private Optimizer opt = new SgdOptimizer();
+
+    public TinyNextAppModel() {
+        this(D);
+    }
+
+    public TinyNextAppModel(int dim) {
+        this.dim = dim;
+        this.w = new HashedWeights(dim);
+    }
 
     public float infer(String a, String b) {
         int[] idx = feats(a, b);
         float z = 0f;
-        for (int k : idx) z += w[k];
+        for (int k : idx) z += w.get(k);
         return sigmoid(z);
     }
 
-    /** weighted SGD: weight>=1 speeds up batch training */
+    /** weighted update: weight>=1 scales the gradient, speeds up batch training */
     public void train(String a, String b, int label, int weight) {
         int[] idx = feats(a, b);
         float z = 0f;
-        for (int k : idx) z += w[k];
+        for (int k : idx) z += w.get(k);
         float p = sigmoid(z);
         float y = (label != 0) ? 1f : 0f;
-        float err = (y - p);
-
-        float lr = (float)(LR0 / (1.0 + 0.0005 * updates));
-        float step = lr * Math.max(1, weight);
+        float g = (p - y) * Math.max(1, weight);
 
-        for (int k : idx) {
-            float wk = w[k];
-            wk = wk * (1f - step * L2) + step * err;
-            w[k] = wk;
-        }
+        opt.begin(updates);
+        for (int k : idx) w.set(k, opt.step(k, w.get(k), g));
         updates++;
     }
 
-    public float[] weights() { return w; }
+    /** Optimizer.TYPE_*; per-coordinate state starts fresh. */
+    public void setOptimizer(int type) {
+        if (opt.type() != type) opt = Optimizer.create(type, dim);
+    }
+
+    public Optimizer optimizer() { return opt; }
+
+    public int dim() { return dim; }
+    public float weight(int k) { return w.get(k); }
+    public void setWeight(int k, float v) { w.set(k, v); }
+    public int nonZeroCount() { return w.nonZeroCount(); }
+
+    /** Sparse form: dim, count, (index, value) for non-zero weights only. */
+    public void writeWeights(DataOutputStream out) throws IOException { w.writeTo(out); }
+    public boolean readWeights(DataInputStream in) throws IOException { return w.readFrom(in); }
+
     public long getUpdates() { return updates; }
     public void setUpdates(long u) { updates = u; }
 
-    private static int[] feats(String a, String b) {
+    private int[] feats(String a, String b) {
         // bias + A2B + optional A,B
         return new int[] {
                 hash("BIAS"),
@@ -53,15 +76,15 @@ public final class TinyNextAppModel {
         };
     }
 
-    private static int hash(String s) {
+    private int hash(String s) {
         byte[] bb = s.getBytes(StandardCharsets.UTF_8);
         int h = 0x811c9dc5;
         for (byte value : bb) {
             h ^= (value & 0xff);
             h *= 0x01000193;
         }
-        int idx = h % D;
-        if (idx < 0) idx += D;
+        int idx = h % dim;
+        if (idx < 0) idx += dim;
         return idx;
     }
 
@@ -1,25 +1,50 @@
 package com.android.server.maxpower.chain;
 
 import android.os.SystemClock;
+import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Slog;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public final class TinyNextAppPredictorLite {
     private static final String TAG = "TinyPredictorLite";
 
     private static final int D = 2048;
-    private static final float DEFAULT_LR = 0.05f;
-    private static final float L2 = 1e-5f;
 
+    // habits fade with this half life; applied lazily per touched weight
+    private static final long DECAY_HALF_LIFE_MS = 30L * 24 * 60 * 60 * 1000;
+    private static final float EVICT_BELOW = 1e-4f;
+
+    // stored weights; effective = mDecay.effective(mW[k], mGen[k])
     private final float[] mW = new float[D];
+    private final int[] mGen = new int[D];
+    private final LazyDecay mDecay = new LazyDecay(DECAY_HALF_LIFE_MS, EVICT_BELOW);
+    private Optimizer mOptimizer = new SgdOptimizer();
     private long mUpdates = 0;
+    // SGD rates, kept across optimizer switches (ChainConfig.lr / l2)
+    private float mSgdLr0 = ChainConfig.DEFAULT.lr;
+    private float mSgdL2 = ChainConfig.DEFAULT.l2;
+
+    // guards mW/mGen/mDecay/mOptimizer/mUpdates/mSgd*, mPersisted*, mForgets, mLastSaveUptime
+    private final Object mLock = new Object();
 
     private final AtomicFile mFile;
 
+    // write-behind checkpointing; null => legacy direct saves to mFile
+    private PersistenceWorker mWorker;
+    private Participant mParticipant;
+    private long mPersistedUpdates;
+    // forgetPackages() calls, and how many of them the last durable checkpoint covers
+    private long mForgets;
+    private long mPersistedForgets;
+
+    // true while weights are being replaced from disk; scores are stale until it clears
+    private volatile boolean mRebuilding;
+
     private long mLastSaveUptime;
     private static final long MIN_SAVE_INTERVAL_MS = 10 * 60 * 1000;
     private static final long MIN_UPDATES_BETWEEN_SAVES = 50;
@@ -31,44 +56,133 @@ public final class TinyNextAppPredictorLite {
     public float inferProbability(String pkgA, String pkgB) {
         int[] idx = features(pkgA, pkgB);
         float z = 0f;
-        for (int i = 0; i < idx.length; i++) z += mW[idx[i]];
+        synchronized (mLock) {
+            mDecay.advanceTo(SystemClock.elapsedRealtime());
+            for (int i = 0; i < idx.length; i++) z += weightLocked(idx[i]);
+        }
         return sigmoid(z);
     }
 
+    /** Extra multiplicative forgetting on top of the time-based half life. O(1). */
+    public void applyDecay(float factor) {
+        synchronized (mLock) {
+            mDecay.decay(factor);
+        }
+    }
+
+    /** Switch update rule (Optimizer.TYPE_*); per-coordinate state starts fresh. */
+    public void setOptimizer(int type) {
+        synchronized (mLock) {
+            if (mOptimizer.type() == type) return;
+            mOptimizer = type == Optimizer.TYPE_SGD
+                    ? new SgdOptimizer(mSgdLr0, mSgdL2) : Optimizer.create(type, D);
+        }
+    }
+
+    /** SGD base rate and L2; applied now if SGD is active, else on switching back to it. */
+    public void setSgdRates(float lr0, float l2) {
+        synchronized (mLock) {
+            mSgdLr0 = lr0;
+            mSgdL2 = l2;
+            if (mOptimizer instanceof SgdOptimizer) ((SgdOptimizer) mOptimizer).setRates(lr0, l2);
+        }
+    }
+
+    /**
+     * Zeroes the hashed features of removed packages: their A=/B= features and the A2B
+     * feature of each removed pair ("A\0B"). Slots shared through hash collisions are zeroed
+     * too; the bias stays. Persists right away (the update-count throttle of maybeSave() would
+     * skip it): schedules a checkpoint with a worker, else writes mFile on the calling thread,
+     * so call it off the event thread (PackagePurger does, on its handler).
+     */
+    public void forgetPackages(ArraySet<String> pkgs, ArraySet<String> pairKeys) {
+        synchronized (mLock) {
+            for (int i = 0; i < pkgs.size(); i++) {
+                zeroLocked(hash("A=" + pkgs.valueAt(i)));
+                zeroLocked(hash("B=" + pkgs.valueAt(i)));
+            }
+            for (int i = 0; i < pairKeys.size(); i++) {
+                String key = pairKeys.valueAt(i);
+                int sep = key.indexOf('\0');
+                if (sep < 0) continue;
+                zeroLocked(hash("A2B=" + key.substring(0, sep) + "->" + key.substring(sep + 1)));
+            }
+            mForgets++; // dirty for the checkpoint worker
+        }
+        if (mWorker != null) {
+            mWorker.requestSave();
+        } else {
+            saveNow();
+        }
+    }
+
+    private void zeroLocked(int k) {
+        mW[k] = 0f;
+        mGen[k] = mDecay.generation();
+        mOptimizer.reset(k);
+    }
+
     public void train(String pkgA, String pkgB, int label) {
         int[] idx = features(pkgA, pkgB);
+        synchronized (mLock) {
+            trainLocked(idx, label);
+        }
+    }
+
+    private void trainLocked(int[] idx, int label) {
+        mDecay.advanceTo(SystemClock.elapsedRealtime());
         float z = 0f;
-        for (int i = 0; i < idx.length; i++) z += mW[idx[i]];
+        for (int i = 0; i < idx.length; i++) z += weightLocked(idx[i]);
         float p = sigmoid(z);
         float y = label != 0 ? 1f : 0f;
-        float err = (y - p);
-
-        float lr = (float) (DEFAULT_LR / (1.0 + 0.0005 * mUpdates));
+        float g = (p - y); // d(logloss)/dz
 
+        mOptimizer.begin(mUpdates);
         for (int i = 0; i < idx.length; i++) {
             int k = idx[i];
-            float w = mW[k];
-            w = w * (1f - lr * L2) + lr * err;
-            mW[k] = w;
+            setWeightLocked(k, mOptimizer.step(k, weightLocked(k), g));
         }
         mUpdates++;
     }
 
+    private float weightLocked(int k) {
+        return mDecay.effective(mW[k], mGen[k]);
+    }
+
+    private void setWeightLocked(int k, float w) {
+        mW[k] = mDecay.toStored(w);
+        mGen[k] = mDecay.generation();
+    }
+
+    /** Decay-applied copy of all weights (persistence only). */
+    private float[] materializeLocked() {
+        float[] out = new float[D];
+        for (int k = 0; k < D; k++) out[k] = weightLocked(k);
+        return out;
+    }
+
+    /**
+     * Route saves through the shared checkpoint worker instead of mFile; call before load(),
+     * which then restores from the checkpoint.
+     */
+    public void attachTo(PersistenceWorker worker) {
+        final Participant p = new Participant();
+        mWorker = worker;
+        mParticipant = p;
+        worker.register(p);
+    }
+
+    /**
+     * Restores the model: from the worker's checkpoint when attached, else (or when the
+     * checkpoint has no model yet, i.e. the first boot after attaching) from mFile.
+     */
     public void load() {
+        if (mWorker != null && mWorker.restore(mParticipant)) return;
         try {
             FileInputStream fis = mFile.openRead();
             DataInputStream in = new DataInputStream(new BufferedInputStream(fis));
-            int d = in.readInt();
-            if (d != D) {
-                Slog.w(TAG, "D mismatch. expected=" + D + " got=" + d + " reset.");
-                in.close();
-                return;
-            }
-            long upd = in.readLong();
-            for (int i = 0; i < D; i++) mW[i] = in.readFloat();
-            mUpdates = upd;
+            readFrom(in);
             in.close();
-            Slog.i(TAG, "Loaded model updates=" + mUpdates);
         } catch (FileNotFoundException e) {
             Slog.i(TAG, "No model file yet");
         } catch (IOException e) {
@@ -76,22 +190,51 @@ public final class TinyNextAppPredictorLite {
         }
     }
 
+    /** Training steps applied so far (restored with the model); 0 on a fresh model. */
+    public long getUpdateCount() {
+        synchronized (mLock) { return mUpdates; }
+    }
+
     public void maybeSave() {
-        long now = SystemClock.uptimeMillis();
-        if ((mUpdates % MIN_UPDATES_BETWEEN_SAVES) != 0) return;
-        if (now - mLastSaveUptime < MIN_SAVE_INTERVAL_MS) return;
-        saveNow();
-        mLastSaveUptime = now;
+        final long now = SystemClock.uptimeMillis();
+        synchronized (mLock) {
+            if (mWorker == null) {
+                if ((mUpdates % MIN_UPDATES_BETWEEN_SAVES) != 0) return;
+                if (now - mLastSaveUptime < MIN_SAVE_INTERVAL_MS) return;
+                // claimed before writing, so concurrent callers don't save twice
+                mLastSaveUptime = now;
+            } else if (mUpdates - mPersistedUpdates < MIN_UPDATES_BETWEEN_SAVES) {
+                return;
+            }
+        }
+        if (mWorker != null) {
+            // non-blocking; actual write happens on the worker
+            mWorker.requestSave();
+        } else {
+            saveNow();
+        }
     }
 
     public void saveNow() {
+        if (mWorker != null) {
+            mWorker.saveNow();
+            return;
+        }
+        final float[] w;
+        final long upd;
+        final int optType;
+        final byte[] optState;
+        synchronized (mLock) {
+            w = materializeLocked();
+            upd = mUpdates;
+            optType = mOptimizer.type();
+            optState = optimizerStateLocked();
+        }
         FileOutputStream fos = null;
         try {
             fos = mFile.startWrite();
             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
-            out.writeInt(D);
-            out.writeLong(mUpdates);
-            for (int i = 0; i < D; i++) out.writeFloat(mW[i]);
+            writeTo(out, w, upd, optType, optState);
             out.flush();
             mFile.finishWrite(fos);
         } catch (IOException e) {
@@ -100,6 +243,121 @@ public final class TinyNextAppPredictorLite {
         }
     }
 
+    // -------- serialization (shared by mFile and checkpoint section) --------
+
+    // D, updates, weights[D], then (optimizer type, per-coordinate state); older files end after weights
+    private static void writeTo(DataOutputStream out, float[] w, long updates,
+            int optType, byte[] optState) throws IOException {
+        out.writeInt(D);
+        out.writeLong(updates);
+        for (int i = 0; i < D; i++) out.writeFloat(w[i]);
+        out.writeInt(optType);
+        out.write(optState);
+    }
+
+    private byte[] optimizerStateLocked() {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bos);
+            mOptimizer.writeState(out);
+            out.flush();
+        } catch (IOException e) {
+            // in-memory stream
+        }
+        return bos.toByteArray();
+    }
+
+    /** Whether weights are being replaced (load/restore); callers may skip LR scoring. */
+    public boolean isRebuilding() {
+        return mRebuilding;
+    }
+
+    private void readFrom(DataInputStream in) throws IOException {
+        mRebuilding = true;
+        try {
+            readModel(in);
+        } finally {
+            mRebuilding = false;
+        }
+    }
+
+    private void readModel(DataInputStream in) throws IOException {
+        int d = in.readInt();
+        if (d != D) {
+            Slog.w(TAG, "D mismatch. expected=" + D + " got=" + d + " reset.");
+            return;
+        }
+        long upd = in.readLong();
+        float[] w = new float[D];
+        for (int i = 0; i < D; i++) w[i] = in.readFloat();
+        int optType = -1;
+        try {
+            optType = in.readInt();
+        } catch (EOFException e) {
+            // written before optimizer state existed
+        }
+        synchronized (mLock) {
+            // state of another update rule is useless for the configured one
+            if (optType == mOptimizer.type()) mOptimizer.readState(in);
+            // file holds decayed values: restart the decay clock at scale 1
+            mDecay.reset();
+            System.arraycopy(w, 0, mW, 0, D);
+            Arrays.fill(mGen, mDecay.generation());
+            mUpdates = upd;
+            mPersistedUpdates = upd;
+            mPersistedForgets = mForgets;
+        }
+        Slog.i(TAG, "Loaded model updates=" + upd);
+    }
+
+    private final class Participant implements PersistenceWorker.Participant {
+        @Override
+        public String getName() { return "model"; }
+
+        @Override
+        public boolean isDirty() {
+            synchronized (mLock) {
+                return mUpdates != mPersistedUpdates || mForgets != mPersistedForgets;
+            }
+        }
+
+        @Override
+        public PersistenceWorker.Snapshot snapshot() {
+            final float[] w;
+            final long upd;
+            final long forgets;
+            final int optType;
+            final byte[] optState;
+            synchronized (mLock) {
+                w = materializeLocked();
+                upd = mUpdates;
+                forgets = mForgets;
+                optType = mOptimizer.type();
+                optState = optimizerStateLocked();
+            }
+            return new PersistenceWorker.Snapshot() {
+                @Override
+                public void writeTo(DataOutputStream out) throws IOException {
+                    TinyNextAppPredictorLite.writeTo(out, w, upd, optType, optState);
+                }
+
+                @Override
+                public void onPersisted() {
+                    synchronized (mLock) {
+                        mPersistedUpdates = upd;
+                        // a purge after this snapshot stays dirty
+                        mPersistedForgets = Math.max(mPersistedForgets, forgets);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void restore(DataInputStream in) throws IOException {
+            readFrom(in);
+        }
+    }
+
     // -------- features: only A->B (+bias, optional A,B) --------
 
     private int[] features(String pkgA, String pkgB) {
@@ -0,0 +1,143 @@
+package com.android.server.maxpower.chain;
+
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Last top-1 prediction per A, persisted in a tiny file.
+ *
+ * Loaded before the model at boot, so predictions can be served while the model is still
+ * restoring. Capped at MAX_ENTRIES (least recently updated dropped).
+ */
+public final class Top1Cache {
+    private static final String TAG = "Top1Cache";
+    private static final int MAGIC = 0x544F5031; // "TOP1"
+    private static final int MAX_ENTRIES = 256;
+    private static final long MIN_SAVE_INTERVAL_MS = 10 * 60 * 1000;
+
+    public static final class Entry {
+        public final String pkgB;
+        public final float score;
+        final long updatedUptime;
+
+        Entry(String pkgB, float score, long updatedUptime) {
+            this.pkgB = pkgB;
+            this.score = score;
+            this.updatedUptime = updatedUptime;
+        }
+    }
+
+    private final AtomicFile mFile;
+    private final Object mLock = new Object();
+    private final ArrayMap<String, Entry> mEntries = new ArrayMap<>();
+    private boolean mDirty;
+    private long mLastSaveUptime;
+
+    public Top1Cache(AtomicFile file) {
+        mFile = file;
+    }
+
+    public Entry get(String pkgA) {
+        synchronized (mLock) { return mEntries.get(pkgA); }
+    }
+
+    public void put(String pkgA, String pkgB, float score) {
+        synchronized (mLock) {
+            Entry cur = mEntries.get(pkgA);
+            if (cur != null && cur.pkgB.equals(pkgB) && Math.abs(cur.score - score) < 0.01f) return;
+            mEntries.put(pkgA, new Entry(pkgB, score, SystemClock.uptimeMillis()));
+            if (mEntries.size() > MAX_ENTRIES) removeOldestLocked();
+            mDirty = true;
+        }
+    }
+
+    public int size() {
+        synchronized (mLock) { return mEntries.size(); }
+    }
+
+    private void removeOldestLocked() {
+        int oldest = 0;
+        for (int i = 1; i < mEntries.size(); i++) {
+            if (mEntries.valueAt(i).updatedUptime < mEntries.valueAt(oldest).updatedUptime) {
+                oldest = i;
+            }
+        }
+        mEntries.removeAt(oldest);
+    }
+
+    public void load() {
+        ArrayMap<String, Entry> loaded = new ArrayMap<>();
+        try (FileInputStream fis = mFile.openRead();
+             DataInputStream in = new DataInputStream(new BufferedInputStream(fis))) {
+            if (in.readInt() != MAGIC) return;
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String a = in.readUTF();
+                String b = in.readUTF();
+                float p = in.readFloat();
+                // restored entries count as older than anything updated this boot
+                loaded.put(a, new Entry(b, p, 0));
+            }
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException e) {
+            Slog.w(TAG, "load failed", e);
+            return;
+        }
+        synchronized (mLock) {
+            for (int i = 0; i < loaded.size(); i++) {
+                // fresher entries put before load finished win
+                if (!mEntries.containsKey(loaded.keyAt(i))) {
+                    mEntries.put(loaded.keyAt(i), loaded.valueAt(i));
+                }
+            }
+        }
+    }
+
+    /** Throttled; does file I/O on the calling thread. */
+    public void maybeSave() {
+        final long now = SystemClock.uptimeMillis();
+        final String[] keys;
+        final Entry[] vals;
+        synchronized (mLock) {
+            if (!mDirty || now - mLastSaveUptime < MIN_SAVE_INTERVAL_MS) return;
+            keys = new String[mEntries.size()];
+            vals = new Entry[mEntries.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = mEntries.keyAt(i);
+                vals[i] = mEntries.valueAt(i);
+            }
+            mDirty = false;
+            mLastSaveUptime = now;
+        }
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                out.writeUTF(keys[i]);
+                out.writeUTF(vals[i].pkgB);
+                out.writeFloat(vals[i].score);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Slog.w(TAG, "save failed", e);
+            if (fos != null) mFile.failWrite(fos);
+            synchronized (mLock) { mDirty = true; }
+        }
+    }
+}
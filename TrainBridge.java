@@ -0,0 +1,21 @@
+package com.android.server.maxpower.chain.job;
+
+import com.android.server.maxpower.chain.IncrementalTrainer;
+
+/**
+ * Hands the service-owned trainer to TrainJobService (which is instantiated by JobScheduler).
+ */
+public final class TrainBridge {
+    private static volatile IncrementalTrainer sTrainer;
+
+    private TrainBridge() {}
+
+    /** Called by the owning service once its stores are loaded; null to detach. */
+    public static void setTrainer(IncrementalTrainer trainer) {
+        sTrainer = trainer;
+    }
+
+    static IncrementalTrainer getTrainer() {
+        return sTrainer;
+    }
+}
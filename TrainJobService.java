@@ -2,20 +2,50 @@ package com.android.server.maxpower.chain.job;
 
 import android.app.job.JobParameters;
 import android.app.job.JobService;
+import android.os.Process;
+import android.util.Slog;
 
+import com.android.server.maxpower.chain.IncrementalTrainer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs one time-budgeted training slice per idle window on a background thread.
+ * Progress is persisted by IncrementalTrainer, so a stopped job resumes next time.
+ */
 public class TrainJobService extends JobService {
+    private static final String TAG = "TrainJobService";
+
+    // CPU time per job; larger backlogs continue in the next idle window
+    private static final long CPU_BUDGET_MS = 2_000;
+
+    // stop flag of the running slice (one job id => at most one)
+    private volatile AtomicBoolean mStop;
 
     @Override
     public boolean onStartJob(JobParameters params) {
-        // Call into your framework/service singleton to run training.
-        // Return false since we finish immediately.
-        boolean didTrain = TrainBridge.tryTrainNow(getApplicationContext());
-        jobFinished(params, !didTrain); // reschedule if not trained
-        return false;
+        final IncrementalTrainer trainer = TrainBridge.getTrainer();
+        if (trainer == null) {
+            // service not restored yet: nothing to do this window, no backoff retries
+            return false;
+        }
+        final AtomicBoolean stop = new AtomicBoolean();
+        mStop = stop;
+        Thread t = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            int result = trainer.runSlice(CPU_BUDGET_MS, stop);
+            if (stop.get()) return; // onStopJob already asked for a reschedule
+            jobFinished(params, result == IncrementalTrainer.RESULT_MORE);
+        }, "maxpower-train");
+        t.start();
+        return true; // finishing on the worker thread
     }
 
     @Override
     public boolean onStopJob(JobParameters params) {
+        AtomicBoolean stop = mStop;
+        if (stop != null) stop.set(true); // slice ends after the current chunk
+        Slog.i(TAG, "stopped; will resume from cursor");
         return true; // retry if interrupted
     }
 }
@@ -2,6 +2,7 @@ package com.android.server.maxpower.chain;
 
 import android.os.SystemClock;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Slog;
 
@@ -9,33 +10,150 @@ import com.android.server.maxpower.chain.proto.ChainBufferProto;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
- * Collect transitions A->B (input already filtered) and persist to Proto via AtomicFile.
+ * Collect transitions A->B (input already filtered) and persist via AtomicFile.
+ *
+ * Persistence = snapshot (rewritten only on compaction) + append-only journal of
+ * (idA, idB, delta) records. A save appends only the events since the last save.
+ * Snapshots store (idA, idB, count) varints against a shared PackageDictionary, preceded by
+ * the names of ids the dictionary file does not have yet, so a checkpoint is one file write
+ * and one fsync; the dictionary file itself is only rewritten once that delta grows past
+ * DICT_FLUSH_NAMES. Older snapshots are read once and rewritten in that format.
+ *
+ * MODE_SPACE_SAVING keeps a fixed-size SpaceSavingSketch instead of exact counts: bounded
+ * error (<= events / maxPairs) and O(1) updates, so long histories fit in a few KB.
+ * Drained counts are then the guaranteed lower bounds. Exact-mode files migrate on load.
  */
-public final class TransitionBufferStore {
+public final class TransitionBufferStore implements PackagePurger.Purgeable {
     private static final String TAG = "TransitionBufferStore";
 
-    private final int mMaxPairs;                 // e.g. 10_000
+    // legacy: header in front of the proto; older files have none (generation 0)
+    private static final int SNAPSHOT_MAGIC = 0x54425331; // "TBS1"
+    // legacy: sketch with UTF keys
+    private static final int SKETCH_MAGIC = 0x5442534B; // "TBSK"
+    // legacy: gen, varint n, n x (varint idA, varint idB, varint count); ids need the dict file
+    private static final int DICT_V1_MAGIC = 0x54425332; // "TBS2"
+    // legacy: gen, SpaceSavingSketch.writeTo() with dictionary ids as keys
+    private static final int DICT_V1_SKETCH_MAGIC = 0x54424B32; // "TBK2"
+    // current: gen, names delta (varint base, varint m, m x UTF name of ids base..), TBS2 records
+    private static final int DICT_MAGIC = 0x54425333; // "TBS3"
+    // current: gen, names delta, then the TBK2 sketch
+    private static final int DICT_SKETCH_MAGIC = 0x54424B33; // "TBK3"
+    // rewrite the dictionary file once snapshots carry this many names of their own
+    private static final int DICT_FLUSH_NAMES = 32;
+    // rewrite snapshot + restart journal once the journal grows past this
+    private static final long COMPACT_JOURNAL_BYTES = 32 * 1024;
+
+    public static final int MODE_EXACT = 0;
+    public static final int MODE_SPACE_SAVING = 1;
+
+    private final int mMaxPairs;                 // e.g. 10_000 (sketch: capacity, e.g. 256)
     private final int mMinEventsBetweenSaves;    // e.g. 200
     private final long mMinSaveIntervalMs;       // e.g. 60_000
 
     private final Object mLock = new Object();
+    // serializes journal/snapshot file I/O; never held while waiting for mLock holders
+    private final Object mIoLock = new Object();
     private final AtomicFile mFile;
+    private final TransitionJournal mJournal;
+    private final PackageDictionary mDict;
 
-    // key="A\0B" -> count
+    // key="A\0B" -> count (MODE_EXACT)
     private final ArrayMap<String, Integer> mCounts = new ArrayMap<>();
+    // MODE_SPACE_SAVING; same keys
+    private final SpaceSavingSketch mSketch;
 
     private boolean mDirty = false;
     private int mEventsSinceLastSave = 0;
     private long mLastSaveUptimeMs = 0;
 
+    // generation of the durable snapshot; journal on disk belongs to it
+    private long mGeneration = 0;
+    // journal unusable or too large => next save rewrites the snapshot
+    private boolean mCompactDue = true;
+    // snapshot on disk is not in the format we write => compact after load
+    private boolean mFormatMismatch = false;
+
+    /**
+     * Pair key "A\0B" <-> (varint idA, varint idB). Ids from base on are decoded from the
+     * snapshot's own names delta, lower ones from the dictionary.
+     */
+    private final class PairCodec implements SpaceSavingSketch.KeyCodec {
+        private final int mBase;
+        private final String[] mDelta;
+
+        PairCodec(int base, String[] delta) {
+            mBase = base;
+            mDelta = delta;
+        }
+
+        @Override
+        public void writeKey(DataOutputStream out, String key) throws IOException {
+            String[] ab = splitKey(key);
+            VarInt.write(out, mDict.idOf(ab[0]));
+            VarInt.write(out, mDict.idOf(ab[1]));
+        }
+
+        @Override
+        public String readKey(DataInputStream in) throws IOException {
+            String a = nameOf(VarInt.read(in));
+            String b = nameOf(VarInt.read(in));
+            return a == null || b == null ? null : makeKey(a, b);
+        }
+
+        private String nameOf(int id) {
+            if (id < mBase) return mDict.nameOf(id);
+            return id - mBase < mDelta.length ? mDelta[id - mBase] : null;
+        }
+    }
+
+    // writes, and reads of snapshots without a names delta
+    private final PairCodec mPairCodec = new PairCodec(Integer.MAX_VALUE, new String[0]);
+
+    private final TransitionJournal.Sink mReplaySink = new TransitionJournal.Sink() {
+        @Override
+        public void apply(String a, String b, int delta) {
+            applyDeltaLocked(makeKey(a, b), delta);
+        }
+
+        @Override
+        public void clear() {
+            mCounts.clear();
+            if (mSketch != null) mSketch.clear();
+        }
+    };
+
+    // write-behind checkpointing; null => legacy direct saves to mFile
+    private PersistenceWorker mWorker;
+    private Participant mParticipant;
+
     public TransitionBufferStore(AtomicFile file, int maxPairs, int minEventsBetweenSaves, long minSaveIntervalMs) {
+        this(file, maxPairs, minEventsBetweenSaves, minSaveIntervalMs, MODE_EXACT);
+    }
+
+    public TransitionBufferStore(AtomicFile file, int maxPairs, int minEventsBetweenSaves,
+            long minSaveIntervalMs, int mode) {
+        this(file, maxPairs, minEventsBetweenSaves, minSaveIntervalMs, mode, null);
+    }
+
+    /** dict: shared package dictionary; null = private one next to file ("<file>.dict"). */
+    public TransitionBufferStore(AtomicFile file, int maxPairs, int minEventsBetweenSaves,
+            long minSaveIntervalMs, int mode, PackageDictionary dict) {
         mFile = file;
+        mDict = dict != null ? dict
+                : new PackageDictionary(new AtomicFile(new File(file.getBaseFile().getPath() + ".dict")));
+        mSketch = mode == MODE_SPACE_SAVING ? new SpaceSavingSketch(maxPairs) : null;
+        mJournal = new TransitionJournal(new File(file.getBaseFile().getPath() + ".journal"));
         mMaxPairs = maxPairs;
         mMinEventsBetweenSaves = minEventsBetweenSaves;
         mMinSaveIntervalMs = minSaveIntervalMs;
@@ -48,60 +166,69 @@ public final class TransitionBufferStore {
 
         synchronized (mLock) {
             String key = makeKey(pkgA, pkgB);
+            mJournal.recordPairLocked(pkgA, pkgB, 1);
+            mDirty = true;
+            mEventsSinceLastSave++;
+
+            if (mSketch != null) {
+                mSketch.add(key, 1); // evicts the minimum itself, O(1)
+                return;
+            }
             Integer cur = mCounts.get(key);
             if (cur == null) cur = 0;
             mCounts.put(key, cur + 1);
 
-            mDirty = true;
-            mEventsSinceLastSave++;
-
             if (mCounts.size() > mMaxPairs) trimToCapLocked();
         }
     }
 
-    /** Restore at boot */
-    public void load() {
-        synchronized (mLock) {
-            mCounts.clear();
-            mDirty = false;
-            mEventsSinceLastSave = 0;
-        }
-        try (FileInputStream fis = mFile.openRead()) {
-            ChainBufferProto.TransitionBuffer proto =
-                    ChainBufferProto.TransitionBuffer.parseFrom(new BufferedInputStream(fis));
+    /**
+     * Route saves through the shared checkpoint worker instead of mFile; call before load(),
+     * which then restores from the checkpoint.
+     */
+    public void attachTo(PersistenceWorker worker) {
+        final Participant p = new Participant();
+        mWorker = worker;
+        mParticipant = p;
+        worker.register(p);
+    }
 
+    /**
+     * Restore at boot: snapshot + journal replay. The snapshot comes from the worker's
+     * checkpoint when attached, else (or before the first checkpoint) from mFile.
+     */
+    public void load() {
+        synchronized (mIoLock) {
             synchronized (mLock) {
-                for (int i = 0; i < proto.getPairsCount(); i++) {
-                    ChainBufferProto.PairCount pc = proto.getPairs(i);
-                    String a = pc.getA();
-                    String b = pc.getB();
-                    int c = pc.getCount();
-                    if (a == null || b == null || c <= 0) continue;
-                    mCounts.put(makeKey(a, b), c);
-                }
-                trimToCapLocked();
-                mLastSaveUptimeMs = SystemClock.uptimeMillis();
+                mCounts.clear();
+                if (mSketch != null) mSketch.clear();
+                mDirty = false;
+                mEventsSinceLastSave = 0;
             }
-            Slog.i(TAG, "Loaded pairs=" + proto.getPairsCount());
-        } catch (FileNotFoundException e) {
-            // first run
-        } catch (IOException e) {
-            Slog.w(TAG, "load failed", e);
+            if (mWorker != null && mWorker.restore(mParticipant)) return;
+            long gen = 0;
+            try (FileInputStream fis = mFile.openRead()) {
+                gen = readSnapshot(new BufferedInputStream(fis));
+            } catch (FileNotFoundException e) {
+                // first run
+            } catch (IOException e) {
+                Slog.w(TAG, "load failed", e);
+            }
+            replayJournalIo(gen);
         }
     }
 
     /** Save immediately (screen off / shutdown) */
     public void saveNow() {
-        final ChainBufferProto.TransitionBuffer proto;
-        synchronized (mLock) {
-            proto = buildProtoLocked();
+        if (mWorker != null) {
+            mWorker.saveNow();
+            return;
         }
-        writeProtoAtomic(proto);
-
-        synchronized (mLock) {
-            mDirty = false;
-            mEventsSinceLastSave = 0;
-            mLastSaveUptimeMs = SystemClock.uptimeMillis();
+        synchronized (mIoLock) {
+            flushJournalIo();
+            boolean compact;
+            synchronized (mLock) { compact = mCompactDue; }
+            if (compact) compactIo();
         }
     }
 
@@ -115,14 +242,18 @@ public final class TransitionBufferStore {
             boolean byTime = (now - mLastSaveUptimeMs) >= mMinSaveIntervalMs;
             should = byEvents || byTime;
         }
-        if (should) saveNow();
+        if (!should) return;
+        if (mWorker != null) mWorker.requestSave(); // non-blocking
+        else saveNow();
     }
 
     /** Drain for trainer (and clear memory) */
     public ArrayMap<String, Integer> drainAndClear() {
         synchronized (mLock) {
-            ArrayMap<String, Integer> out = new ArrayMap<>(mCounts);
+            ArrayMap<String, Integer> out = countsLocked();
             mCounts.clear();
+            if (mSketch != null) mSketch.clear();
+            mJournal.recordClearLocked();
             mDirty = true; // because content changed, persist empty after train
             mEventsSinceLastSave = mMinEventsBetweenSaves; // force next maybeSave
             return out;
@@ -133,6 +264,9 @@ public final class TransitionBufferStore {
     public void persistEmpty() {
         synchronized (mLock) {
             mCounts.clear();
+            if (mSketch != null) mSketch.clear();
+            mJournal.recordClearLocked();
+            mCompactDue = true; // empty snapshot is smaller than any journal
             mDirty = true;
             mEventsSinceLastSave = mMinEventsBetweenSaves;
         }
@@ -142,41 +276,343 @@ public final class TransitionBufferStore {
     /** Snapshot for predictor candidates if needed elsewhere */
     public ArrayMap<String, Integer> snapshotCounts() {
         synchronized (mLock) {
-            return new ArrayMap<>(mCounts);
+            return countsLocked();
+        }
+    }
+
+    /**
+     * Drops pairs of removed packages, at most maxScan per call. Exact mode journals the
+     * removal as a negative delta (like cap eviction); the sketch can't replay negative
+     * deltas, so there the next save rewrites the snapshot instead.
+     */
+    @Override
+    public int purgeSlice(ArraySet<String> pkgs, int from, int maxScan,
+            PackagePurger.PairSink out) {
+        synchronized (mLock) {
+            int i = Math.min(from, (mSketch != null ? mSketch.size() : mCounts.size()) - 1);
+            boolean removed = false;
+            for (int scanned = 0; i >= 0 && scanned < maxScan; i--, scanned++) {
+                String key = mSketch != null ? mSketch.keyAt(i) : mCounts.keyAt(i);
+                if (!PackagePurger.keyMentions(key, pkgs)) continue;
+                if (mSketch != null) {
+                    mSketch.remove(key);
+                    mCompactDue = true;
+                } else {
+                    String[] ab = splitKey(key);
+                    mJournal.recordPairLocked(ab[0], ab[1], -mCounts.valueAt(i));
+                    mCounts.removeAt(i);
+                }
+                PackagePurger.reportPair(key, out);
+                removed = true;
+            }
+            if (removed) {
+                mDirty = true;
+                mEventsSinceLastSave = mMinEventsBetweenSaves; // force next maybeSave
+            }
+            return i < 0 ? PackagePurger.DONE : i;
+        }
+    }
+
+    @Override
+    public void onPurgeDone() {
+        maybeSave();
+    }
+
+    /** Sketch mode: upper bound on the count error of any pair (0 in exact mode). */
+    public int getMaxCountError() {
+        synchronized (mLock) {
+            return mSketch != null ? mSketch.maxError() : 0;
         }
     }
 
+    private ArrayMap<String, Integer> countsLocked() {
+        // sketch: guaranteed counts only, never trains on inherited error
+        return mSketch != null ? mSketch.toCounts(true) : new ArrayMap<>(mCounts);
+    }
+
     // -------- internals --------
 
-    private ChainBufferProto.TransitionBuffer buildProtoLocked() {
-        ChainBufferProto.TransitionBuffer.Builder b =
-                ChainBufferProto.TransitionBuffer.newBuilder()
-                        .setVersion(1)
-                        .setLastWriteUptimeMs(SystemClock.uptimeMillis());
+    /** Reads a snapshot (any format) into the current mode; returns its generation. */
+    private long readSnapshot(InputStream raw) throws IOException {
+        mDict.ensureLoaded();
+        BufferedInputStream bin = raw instanceof BufferedInputStream
+                ? (BufferedInputStream) raw : new BufferedInputStream(raw);
+        long gen = 0;
+        int magic = 0;
+        bin.mark(12);
+        DataInputStream din = new DataInputStream(bin);
+        try {
+            magic = din.readInt();
+            if (magic == SNAPSHOT_MAGIC || magic == SKETCH_MAGIC
+                    || magic == DICT_V1_MAGIC || magic == DICT_V1_SKETCH_MAGIC
+                    || magic == DICT_MAGIC || magic == DICT_SKETCH_MAGIC) {
+                gen = din.readLong();
+            } else {
+                bin.reset(); // legacy: bare proto
+            }
+        } catch (EOFException e) {
+            bin.reset();
+        }
+
+        PairCodec codec = mPairCodec;
+        if (magic == DICT_MAGIC || magic == DICT_SKETCH_MAGIC) {
+            int base = VarInt.read(din);
+            String[] delta = new String[VarInt.read(din)];
+            for (int i = 0; i < delta.length; i++) delta[i] = din.readUTF();
+            codec = new PairCodec(base, delta);
+        }
 
-        for (int i = 0; i < mCounts.size(); i++) {
-            String key = mCounts.keyAt(i);
-            int count = mCounts.valueAt(i);
-            if (count <= 0) continue;
-            String[] ab = splitKey(key);
-            b.addPairs(ChainBufferProto.PairCount.newBuilder()
-                    .setA(ab[0])
-                    .setB(ab[1])
-                    .setCount(count)
-                    .build());
+        // parsed outside mLock into one of these
+        SpaceSavingSketch fileSketch = null;
+        ArrayMap<String, Integer> fileCounts = null;
+        if (magic == SKETCH_MAGIC || magic == DICT_V1_SKETCH_MAGIC
+                || magic == DICT_SKETCH_MAGIC) {
+            fileSketch = new SpaceSavingSketch(mSketch != null ? mSketch.capacity() : mMaxPairs);
+            if (magic == SKETCH_MAGIC) fileSketch.readFrom(din);
+            else fileSketch.readFrom(din, codec);
+        } else if (magic == DICT_V1_MAGIC || magic == DICT_MAGIC) {
+            fileCounts = readDictRecords(din, codec);
+        } else {
+            fileCounts = readProtoRecords(bin);
+        }
+
+        int pairs;
+        synchronized (mLock) {
+            mCounts.clear();
+            if (mSketch != null) mSketch.clear();
+            if (fileCounts != null) {
+                for (int i = 0; i < fileCounts.size(); i++) {
+                    // exact file into sketch mode = migration
+                    if (mSketch != null) mSketch.add(fileCounts.keyAt(i), fileCounts.valueAt(i));
+                    else mCounts.put(fileCounts.keyAt(i), fileCounts.valueAt(i));
+                }
+            } else if (mSketch != null) {
+                mSketch.copyFrom(fileSketch);
+            } else {
+                // over-cap is trimmed after journal replay
+                mCounts.putAll(fileSketch.toCounts(false));
+            }
+            pairs = mSketch != null ? mSketch.size() : mCounts.size();
+            // other format on disk => rewrite it in ours at the next save
+            mFormatMismatch = magic != (mSketch != null ? DICT_SKETCH_MAGIC : DICT_MAGIC);
+            mGeneration = gen;
+            mLastSaveUptimeMs = SystemClock.uptimeMillis();
+        }
+        Slog.i(TAG, "Loaded pairs=" + pairs + " gen=" + gen);
+        return gen;
+    }
+
+    private static ArrayMap<String, Integer> readDictRecords(DataInputStream in,
+            PairCodec codec) throws IOException {
+        int n = VarInt.read(in);
+        ArrayMap<String, Integer> out = new ArrayMap<>(n);
+        int unknown = 0;
+        for (int i = 0; i < n; i++) {
+            // no per-package Strings here; each pair costs its one "A\0B" key
+            String key = codec.readKey(in);
+            int c = VarInt.read(in);
+            if (key == null) {
+                unknown++;
+                continue;
+            }
+            if (c > 0) out.put(key, c);
+        }
+        if (unknown > 0) Slog.w(TAG, "dropped pairs with unknown package ids: " + unknown);
+        return out;
+    }
+
+    private static ArrayMap<String, Integer> readProtoRecords(InputStream in) throws IOException {
+        ChainBufferProto.TransitionBuffer proto = ChainBufferProto.TransitionBuffer.parseFrom(in);
+        ArrayMap<String, Integer> out = new ArrayMap<>(proto.getPairsCount());
+        for (int i = 0; i < proto.getPairsCount(); i++) {
+            ChainBufferProto.PairCount pc = proto.getPairs(i);
+            String a = pc.getA();
+            String b = pc.getB();
+            int c = pc.getCount();
+            if (a == null || b == null || c <= 0) continue;
+            out.put(makeKey(a, b), c);
+        }
+        return out;
+    }
+
+    private void replayJournalIo(long gen) {
+        synchronized (mLock) {
+            int frames = mJournal.replayLocked(gen, mReplaySink);
+            mGeneration = gen;
+            trimToCapLocked();
+            mCompactDue = mFormatMismatch
+                    || mJournal.getGeneration() != gen
+                    || mJournal.getFileBytes() > COMPACT_JOURNAL_BYTES;
+            int pairs = mSketch != null ? mSketch.size() : mCounts.size();
+            mDirty = mCompactDue || mJournal.hasPendingLocked();
+            mEventsSinceLastSave = 0;
+            if (frames > 0) Slog.i(TAG, "Replayed journal frames=" + frames + " pairs=" + pairs);
+        }
+    }
+
+    /** Appends events since last save to the journal (one fsync). Holds mIoLock. */
+    private void flushJournalIo() {
+        final byte[] payload;
+        synchronized (mLock) {
+            // while a compaction is due, pending records are folded into the next snapshot
+            if (mCompactDue) return;
+            payload = mJournal.takePendingLocked();
+        }
+        boolean ok = mJournal.append(payload);
+        synchronized (mLock) {
+            if (!ok || mJournal.getFileBytes() > COMPACT_JOURNAL_BYTES) {
+                mCompactDue = true; // lost frame or big journal => rewrite snapshot
+                return;
+            }
+            if (!mJournal.hasPendingLocked()) markSavedLocked();
+        }
+    }
+
+    /** Rewrites the snapshot with a new generation, then restarts the journal. Holds mIoLock. */
+    private void compactIo() {
+        final ArrayMap<String, Integer> snapshot;
+        final SpaceSavingSketch sketch;
+        final long gen;
+        synchronized (mLock) {
+            snapshot = mSketch != null ? null : new ArrayMap<>(mCounts);
+            sketch = mSketch != null ? mSketch.copy() : null;
+            gen = mGeneration + 1;
+            mJournal.rotateLocked();
+        }
+        if (!writeSnapshotAtomic(snapshot, sketch, gen)) return; // stays compact-due
+        onSnapshotDurableIo(gen);
+    }
+
+    private void onSnapshotDurableIo(long gen) {
+        // old journal is now covered by the snapshot; if reset fails, append() refuses
+        // and the next save compacts again
+        boolean ok = mJournal.reset(gen);
+        synchronized (mLock) {
+            mGeneration = gen;
+            mCompactDue = !ok;
+            if (ok && !mJournal.hasPendingLocked()) markSavedLocked();
+        }
+        // snapshots carry the delta themselves; only keep it from growing without bound
+        if (mDict.size() - mDict.persistedCount() >= DICT_FLUSH_NAMES) mDict.saveIfDirty();
+    }
+
+    private void markSavedLocked() {
+        mDirty = false;
+        mEventsSinceLastSave = 0;
+        mLastSaveUptimeMs = SystemClock.uptimeMillis();
+    }
+
+    private void applyDeltaLocked(String key, int delta) {
+        if (mSketch != null) {
+            // negative deltas are exact-mode evictions; the sketch evicts by itself
+            mSketch.add(key, delta);
+            return;
+        }
+        Integer cur = mCounts.get(key);
+        int v = (cur == null ? 0 : cur) + delta;
+        if (v <= 0) mCounts.remove(key);
+        else mCounts.put(key, v);
+    }
+
+    /**
+     * Exactly one of counts / sketch is non-null, matching the store mode. Self-contained:
+     * names of ids not yet in the dictionary file are written ahead of the records.
+     */
+    private void writeSnapshot(DataOutputStream out, ArrayMap<String, Integer> counts,
+            SpaceSavingSketch sketch, long gen) throws IOException {
+        mDict.ensureLoaded();
+        // assign every id first so the delta written below covers all of them
+        final int keys = sketch != null ? sketch.size() : counts.size();
+        for (int i = 0; i < keys; i++) {
+            String[] ab = splitKey(sketch != null ? sketch.keyAt(i) : counts.keyAt(i));
+            mDict.idOf(ab[0]);
+            mDict.idOf(ab[1]);
+        }
+        final int base = mDict.persistedCount();
+        final String[] delta = mDict.namesFrom(base);
+        out.writeInt(sketch != null ? DICT_SKETCH_MAGIC : DICT_MAGIC);
+        out.writeLong(gen);
+        VarInt.write(out, base);
+        VarInt.write(out, delta.length);
+        for (String name : delta) out.writeUTF(name);
+        if (sketch != null) {
+            sketch.writeTo(out, mPairCodec);
+        } else {
+            int n = 0;
+            for (int i = 0; i < counts.size(); i++) if (counts.valueAt(i) > 0) n++;
+            VarInt.write(out, n);
+            for (int i = 0; i < counts.size(); i++) {
+                int count = counts.valueAt(i);
+                if (count <= 0) continue;
+                mPairCodec.writeKey(out, counts.keyAt(i));
+                VarInt.write(out, count);
+            }
         }
-        return b.build();
     }
 
-    private void writeProtoAtomic(ChainBufferProto.TransitionBuffer proto) {
+    private boolean writeSnapshotAtomic(ArrayMap<String, Integer> counts,
+            SpaceSavingSketch sketch, long gen) {
         FileOutputStream fos = null;
         try {
             fos = mFile.startWrite();
-            proto.writeTo(new BufferedOutputStream(fos));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            writeSnapshot(out, counts, sketch, gen);
+            out.flush();
             mFile.finishWrite(fos);
+            return true;
         } catch (IOException e) {
             Slog.w(TAG, "save failed", e);
             if (fos != null) mFile.failWrite(fos);
+            return false;
+        }
+    }
+
+    private final class Participant implements PersistenceWorker.Participant {
+        @Override
+        public String getName() { return "transitions"; }
+
+        @Override
+        public boolean isDirty() {
+            synchronized (mLock) { return mCompactDue; }
+        }
+
+        @Override
+        public void flushJournal() {
+            synchronized (mIoLock) { flushJournalIo(); }
+        }
+
+        @Override
+        public PersistenceWorker.Snapshot snapshot() {
+            final ArrayMap<String, Integer> counts;
+            final SpaceSavingSketch sketch;
+            final long gen;
+            synchronized (mLock) {
+                counts = mSketch != null ? null : new ArrayMap<>(mCounts);
+                sketch = mSketch != null ? mSketch.copy() : null;
+                gen = mGeneration + 1;
+                mJournal.rotateLocked();
+                // no appends until this snapshot is durable
+                mCompactDue = true;
+            }
+            return new PersistenceWorker.Snapshot() {
+                @Override
+                public void writeTo(DataOutputStream out) throws IOException {
+                    // proto built on the worker thread, outside mLock
+                    writeSnapshot(out, counts, sketch, gen);
+                }
+
+                @Override
+                public void onPersisted() {
+                    synchronized (mIoLock) { onSnapshotDurableIo(gen); }
+                }
+            };
+        }
+
+        @Override
+        public void restore(DataInputStream in) throws IOException {
+            synchronized (mIoLock) {
+                replayJournalIo(readSnapshot(in));
+            }
         }
     }
 
@@ -195,8 +631,10 @@ public final class TransitionBufferStore {
                 int v = mCounts.valueAt(i);
                 if (v < minVal) { minVal = v; minIdx = i; }
             }
-            if (minIdx >= 0) mCounts.removeAt(minIdx);
-            else break;
+            if (minIdx < 0) break;
+            String[] ab = splitKey(mCounts.keyAt(minIdx));
+            mJournal.recordPairLocked(ab[0], ab[1], -minVal);
+            mCounts.removeAt(minIdx);
         }
     }
 }
@@ -0,0 +1,328 @@
+package com.android.server.maxpower.chain;
+
+import android.util.ArrayMap;
+import android.util.Slog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead journal for TransitionBufferStore.
+ *
+ * File:   MAGIC(int) VERSION(int) generation(long) frame*
+ * Frame:  len(varint) payload crc32(int)      -- one frame per flush
+ * Record: DEFINE id name | PAIR idA idB zigzag(delta) | CLEAR   (all varints)
+ *
+ * Package ids are local to one generation (dictionary restarts after compaction).
+ * The journal is only replayed on top of a snapshot of the same generation, so a crash
+ * between "snapshot written" and "journal reset" never double counts.
+ *
+ * Threading: record*Locked() / rotateLocked() / takePendingLocked() under the store lock;
+ * file I/O (append/reset/replay) from one thread at a time (store's I/O lock).
+ */
+public final class TransitionJournal {
+    private static final String TAG = "TransitionJournal";
+    private static final int MAGIC = 0x544A524E; // "TJRN"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+
+    private static final int OP_DEFINE = 0;
+    private static final int OP_PAIR = 1;
+    private static final int OP_CLEAR = 2;
+
+    /** Receives replayed records. */
+    public interface Sink {
+        void apply(String a, String b, int delta);
+        void clear();
+    }
+
+    private final File mFile;
+
+    // dictionary of the current generation
+    private final ArrayMap<String, Integer> mIds = new ArrayMap<>();
+    private int mNextId;
+
+    // encoded records not yet on disk
+    private byte[] mPending = new byte[512];
+    private int mPendingLen;
+
+    // on-disk state (I/O thread)
+    private long mGeneration = -1; // -1 => no valid header on disk
+    private long mFileBytes;
+
+    public TransitionJournal(File file) {
+        mFile = file;
+    }
+
+    // -------- in-memory recording (store lock) --------
+
+    public void recordPairLocked(String a, String b, int delta) {
+        if (delta == 0) return;
+        int idA = idForLocked(a);
+        int idB = idForLocked(b);
+        ensurePendingLocked(1 + 3 * VarInt.MAX_BYTES);
+        mPendingLen = VarInt.write(mPending, mPendingLen, OP_PAIR);
+        mPendingLen = VarInt.write(mPending, mPendingLen, idA);
+        mPendingLen = VarInt.write(mPending, mPendingLen, idB);
+        mPendingLen = VarInt.write(mPending, mPendingLen, VarInt.zigzag(delta));
+    }
+
+    public void recordClearLocked() {
+        ensurePendingLocked(1);
+        mPendingLen = VarInt.write(mPending, mPendingLen, OP_CLEAR);
+    }
+
+    public boolean hasPendingLocked() {
+        return mPendingLen > 0;
+    }
+
+    /** Takes encoded records for append(); null if nothing pending. */
+    public byte[] takePendingLocked() {
+        if (mPendingLen == 0) return null;
+        byte[] out = new byte[mPendingLen];
+        System.arraycopy(mPending, 0, out, 0, mPendingLen);
+        mPendingLen = 0;
+        return out;
+    }
+
+    /**
+     * Start a new generation in memory: pending records and dictionary are dropped because
+     * the snapshot being written already contains them. Call reset() once that snapshot is durable.
+     */
+    public void rotateLocked() {
+        mIds.clear();
+        mNextId = 0;
+        mPendingLen = 0;
+    }
+
+    private int idForLocked(String pkg) {
+        Integer id = mIds.get(pkg);
+        if (id != null) return id;
+        int newId = mNextId++;
+        mIds.put(pkg, newId);
+        byte[] name = pkg.getBytes(StandardCharsets.UTF_8);
+        ensurePendingLocked(2 * VarInt.MAX_BYTES + VarInt.MAX_BYTES + name.length);
+        mPendingLen = VarInt.write(mPending, mPendingLen, OP_DEFINE);
+        mPendingLen = VarInt.write(mPending, mPendingLen, newId);
+        mPendingLen = VarInt.write(mPending, mPendingLen, name.length);
+        System.arraycopy(name, 0, mPending, mPendingLen, name.length);
+        mPendingLen += name.length;
+        return newId;
+    }
+
+    private void ensurePendingLocked(int extra) {
+        if (mPendingLen + extra <= mPending.length) return;
+        byte[] grown = new byte[Math.max(mPending.length * 2, mPendingLen + extra)];
+        System.arraycopy(mPending, 0, grown, 0, mPendingLen);
+        mPending = grown;
+    }
+
+    // -------- file I/O --------
+
+    public long getGeneration() {
+        return mGeneration;
+    }
+
+    public long getFileBytes() {
+        return mFileBytes;
+    }
+
+    /** Appends one frame and fsyncs. Returns false if the journal must be rewritten. */
+    public boolean append(byte[] payload) {
+        if (payload == null || payload.length == 0) return true;
+        if (mGeneration < 0) return false;
+
+        byte[] len = new byte[VarInt.MAX_BYTES];
+        int lenBytes = VarInt.write(len, 0, payload.length);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        int c = (int) crc.getValue();
+        byte[] tail = {(byte) (c >>> 24), (byte) (c >>> 16), (byte) (c >>> 8), (byte) c};
+
+        try (FileOutputStream fos = new FileOutputStream(mFile, true)) {
+            fos.write(len, 0, lenBytes);
+            fos.write(payload);
+            fos.write(tail);
+            fos.getFD().sync();
+            mFileBytes += lenBytes + payload.length + tail.length;
+            return true;
+        } catch (IOException e) {
+            Slog.w(TAG, "append failed: " + mFile, e);
+            return false;
+        }
+    }
+
+    /** Truncates the file to an empty journal of the given generation. */
+    public boolean reset(long generation) {
+        byte[] header = new byte[HEADER_BYTES];
+        putInt(header, 0, MAGIC);
+        putInt(header, 4, VERSION);
+        putInt(header, 8, (int) (generation >>> 32));
+        putInt(header, 12, (int) generation);
+        try (FileOutputStream fos = new FileOutputStream(mFile, false)) {
+            fos.write(header);
+            fos.getFD().sync();
+            mGeneration = generation;
+            mFileBytes = HEADER_BYTES;
+            return true;
+        } catch (IOException e) {
+            Slog.w(TAG, "reset failed: " + mFile, e);
+            mGeneration = -1;
+            return false;
+        }
+    }
+
+    /**
+     * Replays records of the given snapshot generation into sink and rebuilds the dictionary.
+     * A torn or corrupt tail is truncated. A journal of another generation is discarded.
+     * Returns the number of frames replayed. Caller holds the store lock (sink mutates it).
+     */
+    public int replayLocked(long generation, Sink sink) {
+        rotateLocked();
+        final byte[] data;
+        try {
+            data = readAll();
+        } catch (FileNotFoundException e) {
+            reset(generation);
+            return 0;
+        } catch (IOException e) {
+            Slog.w(TAG, "replay read failed", e);
+            reset(generation);
+            return 0;
+        }
+
+        if (data.length < HEADER_BYTES || getInt(data, 0) != MAGIC || getInt(data, 4) != VERSION) {
+            reset(generation);
+            return 0;
+        }
+        long fileGen = ((long) getInt(data, 8) << 32) | (getInt(data, 12) & 0xFFFFFFFFL);
+        if (fileGen != generation) {
+            // snapshot already contains (or superseded) this journal
+            Slog.i(TAG, "discard journal gen=" + fileGen + " snapshot gen=" + generation);
+            reset(generation);
+            return 0;
+        }
+
+        ArrayMap<Integer, String> names = new ArrayMap<>();
+        int[] pos = {HEADER_BYTES};
+        int validEnd = HEADER_BYTES;
+        int frames = 0;
+        CRC32 crc = new CRC32();
+        try {
+            while (pos[0] < data.length) {
+                int len = VarInt.read(data, pos, data.length);
+                int start = pos[0];
+                if (len < 0 || start + len + 4 > data.length) break; // torn
+                crc.reset();
+                crc.update(data, start, len);
+                if ((int) crc.getValue() != getInt(data, start + len)) break; // corrupt
+                if (!applyFrame(data, start, start + len, names, sink)) break;
+                pos[0] = start + len + 4;
+                validEnd = pos[0];
+                frames++;
+            }
+        } catch (IllegalArgumentException e) {
+            // malformed varint => treat as torn tail
+        }
+
+        if (validEnd < data.length) {
+            Slog.w(TAG, "truncating torn journal tail " + data.length + " -> " + validEnd);
+            truncate(validEnd);
+        }
+        mGeneration = generation;
+        mFileBytes = validEnd;
+        // continue appending with the same ids
+        for (int i = 0; i < names.size(); i++) mIds.put(names.valueAt(i), names.keyAt(i));
+        mNextId = names.size();
+        mPendingLen = 0;
+        return frames;
+    }
+
+    private static boolean applyFrame(byte[] d, int p, int end,
+            ArrayMap<Integer, String> names, Sink sink) {
+        int[] pos = {p};
+        // decode fully before applying so a bad frame has no partial effect
+        ArrayMap<Integer, String> defs = new ArrayMap<>();
+        int opsStart = p;
+        while (pos[0] < end) {
+            int op = VarInt.read(d, pos, end);
+            if (op == OP_DEFINE) {
+                int id = VarInt.read(d, pos, end);
+                int n = VarInt.read(d, pos, end);
+                if (n < 0 || pos[0] + n > end) return false;
+                defs.put(id, new String(d, pos[0], n, StandardCharsets.UTF_8));
+                pos[0] += n;
+            } else if (op == OP_PAIR) {
+                int a = VarInt.read(d, pos, end);
+                int b = VarInt.read(d, pos, end);
+                VarInt.read(d, pos, end);
+                if (!names.containsKey(a) && !defs.containsKey(a)) return false;
+                if (!names.containsKey(b) && !defs.containsKey(b)) return false;
+            } else if (op != OP_CLEAR) {
+                return false;
+            }
+        }
+
+        names.putAll(defs);
+        pos[0] = opsStart;
+        while (pos[0] < end) {
+            int op = VarInt.read(d, pos, end);
+            if (op == OP_DEFINE) {
+                VarInt.read(d, pos, end);
+                int n = VarInt.read(d, pos, end);
+                pos[0] += n;
+            } else if (op == OP_PAIR) {
+                String a = names.get(VarInt.read(d, pos, end));
+                String b = names.get(VarInt.read(d, pos, end));
+                sink.apply(a, b, VarInt.unzigzag(VarInt.read(d, pos, end)));
+            } else {
+                sink.clear();
+            }
+        }
+        return true;
+    }
+
+    private byte[] readAll() throws IOException {
+        try (FileInputStream fis = new FileInputStream(mFile)) {
+            long size = mFile.length();
+            byte[] out = new byte[(int) size];
+            int off = 0;
+            while (off < out.length) {
+                int r = fis.read(out, off, out.length - off);
+                if (r < 0) break;
+                off += r;
+            }
+            if (off == out.length) return out;
+            byte[] shorter = new byte[off];
+            System.arraycopy(out, 0, shorter, 0, off);
+            return shorter;
+        }
+    }
+
+    private void truncate(long length) {
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(length);
+            raf.getFD().sync();
+        } catch (IOException e) {
+            Slog.w(TAG, "truncate failed: " + mFile, e);
+        }
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16)
+                | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+}
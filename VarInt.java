@@ -0,0 +1,71 @@
+package com.android.server.maxpower.chain;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Unsigned LEB128 varints (+ zigzag for signed) over plain byte[] buffers or data streams.
+ * Used by the on-disk formats of the chain stores; no allocation.
+ */
+public final class VarInt {
+    private VarInt() {}
+
+    /** Max encoded size of one 32-bit varint. */
+    public static final int MAX_BYTES = 5;
+
+    /** Writes v at buf[pos]; returns new position. Caller ensures MAX_BYTES room. */
+    public static int write(byte[] buf, int pos, int v) {
+        while ((v & ~0x7F) != 0) {
+            buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+        return pos;
+    }
+
+    /**
+     * Reads a varint at buf[pos[0]] (pos advanced), limited to end.
+     * Throws IllegalArgumentException on truncated/overlong input.
+     */
+    public static int read(byte[] buf, int[] pos, int end) {
+        int p = pos[0];
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (p >= end) throw new IllegalArgumentException("truncated varint");
+            byte b = buf[p++];
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                pos[0] = p;
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+
+    public static void write(DataOutput out, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    public static int read(DataInput in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IOException("malformed varint");
+    }
+
+    public static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    public static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+}